@@ -85,3 +85,190 @@ CREATE TABLE DocumentReferences (
     CONSTRAINT FK_DR_Binary     FOREIGN KEY (binary_id)            REFERENCES Binaries(binary_id)
 );
 GO
+
+-- 8. Replace the IDENTITY keys of Patients, Encounters and Observations with one shared sequence.
+--    The server reserves ids in blocks of 50 (ResourceIdAllocator): every value v read from the
+--    sequence owns the ids (v-49 .. v). This lets a new row and its resource_json be written in a
+--    single INSERT instead of INSERT + UPDATE. INCREMENT BY must stay in sync with BLOCK_SIZE.
+DECLARE @max_id INT = (
+    SELECT MAX(id) FROM (
+        SELECT MAX(patient_id) AS id FROM Patients
+        UNION ALL SELECT MAX(encounter_id) FROM Encounters
+        UNION ALL SELECT MAX(observation_id) FROM Observations) AS ids);
+DECLARE @start INT = ISNULL(@max_id, 0) + 50;
+EXEC('CREATE SEQUENCE dbo.fhir_resource_id_seq AS INT START WITH ' + CAST(@start AS VARCHAR(12)) + ' INCREMENT BY 50');
+GO
+
+-- 8a. SQL Server cannot drop the IDENTITY property in place, so each table is copied.
+--     Foreign keys that point at the three tables have to go first and are re-created in 8c.
+DECLARE @drop_fks NVARCHAR(MAX) = N'';
+SELECT @drop_fks += N'ALTER TABLE ' + QUOTENAME(OBJECT_SCHEMA_NAME(parent_object_id)) + N'.'
+                  + QUOTENAME(OBJECT_NAME(parent_object_id)) + N' DROP CONSTRAINT ' + QUOTENAME(name) + N';'
+FROM sys.foreign_keys
+WHERE referenced_object_id IN (OBJECT_ID('dbo.Patients'), OBJECT_ID('dbo.Encounters'), OBJECT_ID('dbo.Observations'));
+EXEC sp_executesql @drop_fks;
+GO
+
+-- 8b. SELECT INTO ... UNION ALL copies every column but not the IDENTITY property.
+--     Indexes, defaults and unique constraints are not copied either; the known ones are re-added here.
+SET XACT_ABORT ON;
+BEGIN TRANSACTION;
+
+SELECT * INTO dbo.Patients_seq FROM dbo.Patients UNION ALL SELECT * FROM dbo.Patients WHERE 1 = 0;
+DROP TABLE dbo.Patients;
+EXEC sp_rename 'dbo.Patients_seq', 'Patients';
+ALTER TABLE Patients ALTER COLUMN patient_id INT NOT NULL;
+ALTER TABLE Patients ADD CONSTRAINT PK_Patients PRIMARY KEY (patient_id),
+                         CONSTRAINT UQ_Patients_Uid UNIQUE (patient_uid),
+                         CONSTRAINT UQ_Patients_Ohip UNIQUE (ohip_number),
+                         CONSTRAINT DF_Patients_Id DEFAULT (NEXT VALUE FOR dbo.fhir_resource_id_seq) FOR patient_id,
+                         CONSTRAINT DF_Patients_Created DEFAULT GETDATE() FOR created_at;
+
+SELECT * INTO dbo.Encounters_seq FROM dbo.Encounters UNION ALL SELECT * FROM dbo.Encounters WHERE 1 = 0;
+DROP TABLE dbo.Encounters;
+EXEC sp_rename 'dbo.Encounters_seq', 'Encounters';
+ALTER TABLE Encounters ALTER COLUMN encounter_id INT NOT NULL;
+ALTER TABLE Encounters ADD CONSTRAINT PK_Encounters PRIMARY KEY (encounter_id),
+                           CONSTRAINT DF_Encounters_Id DEFAULT (NEXT VALUE FOR dbo.fhir_resource_id_seq) FOR encounter_id;
+
+SELECT * INTO dbo.Observations_seq FROM dbo.Observations UNION ALL SELECT * FROM dbo.Observations WHERE 1 = 0;
+DROP TABLE dbo.Observations;
+EXEC sp_rename 'dbo.Observations_seq', 'Observations';
+ALTER TABLE Observations ALTER COLUMN observation_id INT NOT NULL;
+ALTER TABLE Observations ADD CONSTRAINT PK_Observations PRIMARY KEY (observation_id),
+                             CONSTRAINT DF_Obs_Id DEFAULT (NEXT VALUE FOR dbo.fhir_resource_id_seq) FOR observation_id,
+                             CONSTRAINT DF_Obs_Status DEFAULT 'final' FOR status,
+                             CONSTRAINT DF_Obs_Created DEFAULT GETDATE() FOR created_at;
+
+COMMIT TRANSACTION;
+GO
+
+-- 8c. Re-create the foreign keys dropped in 8a
+ALTER TABLE Encounters         ADD CONSTRAINT FK_Enc_Patient    FOREIGN KEY (patient_id)           REFERENCES Patients(patient_id);
+ALTER TABLE Observations       ADD CONSTRAINT FK_Obs_Patient    FOREIGN KEY (patient_id)           REFERENCES Patients(patient_id);
+ALTER TABLE Observations       ADD CONSTRAINT FK_Obs_Encounter  FOREIGN KEY (encounter_id)         REFERENCES Encounters(encounter_id);
+ALTER TABLE Compositions       ADD CONSTRAINT FK_Comp_Patient   FOREIGN KEY (patient_id)           REFERENCES Patients(patient_id);
+ALTER TABLE Compositions       ADD CONSTRAINT FK_Comp_Encounter FOREIGN KEY (encounter_id)         REFERENCES Encounters(encounter_id);
+ALTER TABLE DocumentReferences ADD CONSTRAINT FK_DR_Patient     FOREIGN KEY (subject_patient_id)   REFERENCES Patients(patient_id);
+ALTER TABLE DocumentReferences ADD CONSTRAINT FK_DR_Encounter   FOREIGN KEY (subject_encounter_id) REFERENCES Encounters(encounter_id);
+GO
+
+-- 9. Indexes for Observation search and $lastn. Every search filters on patient_id or encounter_id
+--    and is ordered by (effective_datetime, observation_id); observation_id comes with every
+--    nonclustered index as the clustered key, so the keyset seek needs no extra column.
+--    The INCLUDE columns let the COUNT and skip-ahead queries run without touching the base table.
+CREATE NONCLUSTERED INDEX IX_Obs_Patient_Code_Date
+    ON Observations (patient_id, loinc_code, effective_datetime)
+    INCLUDE (loinc_system, status, encounter_id);
+CREATE NONCLUSTERED INDEX IX_Obs_Patient_Date
+    ON Observations (patient_id, effective_datetime)
+    INCLUDE (loinc_system, loinc_code, status, encounter_id);
+CREATE NONCLUSTERED INDEX IX_Obs_Encounter_Date
+    ON Observations (encounter_id, effective_datetime)
+    INCLUDE (patient_id, loinc_system, loinc_code, status);
+GO
+
+-- 10. Resource versions: version_id is the optimistic-locking column (JPA @Version) and the FHIR
+--     meta.versionId / ETag; last_updated is meta.lastUpdated. Existing rows start at version 1.
+ALTER TABLE Patients     ADD version_id   INT       NOT NULL CONSTRAINT DF_Patients_Version     DEFAULT 1,
+                             last_updated DATETIME2 NOT NULL CONSTRAINT DF_Patients_LastUpdated DEFAULT SYSDATETIME();
+ALTER TABLE Encounters   ADD version_id   INT       NOT NULL CONSTRAINT DF_Encounters_Version     DEFAULT 1,
+                             last_updated DATETIME2 NOT NULL CONSTRAINT DF_Encounters_LastUpdated DEFAULT SYSDATETIME();
+ALTER TABLE Observations ADD version_id   INT       NOT NULL CONSTRAINT DF_Obs_Version     DEFAULT 1,
+                             last_updated DATETIME2 NOT NULL CONSTRAINT DF_Obs_LastUpdated DEFAULT SYSDATETIME();
+GO
+
+-- 10a. The raw read path returns resource_json untouched, so the stored JSON must carry the same
+--      meta.versionId / meta.lastUpdated as the columns. JSON_MODIFY keeps any other meta elements.
+DECLARE @offset INT = DATEPART(TZOFFSET, SYSDATETIMEOFFSET());
+UPDATE Patients
+   SET resource_json = JSON_MODIFY(JSON_MODIFY(
+           JSON_MODIFY(resource_json, '$.meta', ISNULL(JSON_QUERY(resource_json, '$.meta'), JSON_QUERY('{}'))),
+           '$.meta.versionId', CAST(version_id AS VARCHAR(12))),
+           '$.meta.lastUpdated', CONVERT(VARCHAR(40), TODATETIMEOFFSET(last_updated, @offset), 127))
+ WHERE resource_json IS NOT NULL AND ISJSON(resource_json) = 1;
+UPDATE Encounters
+   SET resource_json = JSON_MODIFY(JSON_MODIFY(
+           JSON_MODIFY(resource_json, '$.meta', ISNULL(JSON_QUERY(resource_json, '$.meta'), JSON_QUERY('{}'))),
+           '$.meta.versionId', CAST(version_id AS VARCHAR(12))),
+           '$.meta.lastUpdated', CONVERT(VARCHAR(40), TODATETIMEOFFSET(last_updated, @offset), 127))
+ WHERE resource_json IS NOT NULL AND ISJSON(resource_json) = 1;
+UPDATE Observations
+   SET resource_json = JSON_MODIFY(JSON_MODIFY(
+           JSON_MODIFY(resource_json, '$.meta', ISNULL(JSON_QUERY(resource_json, '$.meta'), JSON_QUERY('{}'))),
+           '$.meta.versionId', CAST(version_id AS VARCHAR(12))),
+           '$.meta.lastUpdated', CONVERT(VARCHAR(40), TODATETIMEOFFSET(last_updated, @offset), 127))
+ WHERE resource_json IS NOT NULL AND ISJSON(resource_json) = 1;
+GO
+
+-- 11. Compressed resource JSON. New and updated rows store their JSON gzip-compressed in resource_blob
+--     and leave resource_json NULL; older rows are moved over in the background by ResourceJsonMigrator.
+--     The server reads both, so nothing has to be converted up front.
+ALTER TABLE Patients     ADD resource_blob VARBINARY(MAX) NULL;
+ALTER TABLE Encounters   ADD resource_blob VARBINARY(MAX) NULL;
+ALTER TABLE Observations ADD resource_blob VARBINARY(MAX) NULL;
+GO
+
+-- 11a. Storage before / after, per table (run before and after the migration has finished):
+--        SELECT COUNT(resource_json) AS rows_not_migrated,
+--               SUM(CAST(DATALENGTH(resource_json) AS BIGINT)) AS nvarchar_bytes,
+--               SUM(CAST(DATALENGTH(resource_blob) AS BIGINT)) AS blob_bytes
+--          FROM Observations;
+--        EXEC sp_spaceused 'Observations';
+--      LOB pages freed by setting resource_json to NULL are only given back after
+--        ALTER INDEX ALL ON Observations REBUILD WITH (LOB_COMPACTION = ON);
+GO
+
+-- 12. Patient name search. family_norm / given_norm hold the case- and accent-folded names and
+--     family_phonetic / given_phonetic their Double Metaphone codes (see NameNormalizer). They are
+--     computed by the server, not here: rows written before these columns existed are filled in by
+--     PatientNameIndex while it loads at startup. "starts with" searches are a LIKE 'abc%' seek on
+--     the _norm indexes; the INCLUDE columns keep the COUNT and skip-ahead queries off the base table.
+ALTER TABLE Patients ADD family_norm     VARCHAR(100) NULL,
+                         given_norm      VARCHAR(100) NULL,
+                         family_phonetic VARCHAR(8)   NULL,
+                         given_phonetic  VARCHAR(8)   NULL;
+GO
+CREATE NONCLUSTERED INDEX IX_Patients_FamilyNorm     ON Patients (family_norm)     INCLUDE (given_norm, dob);
+CREATE NONCLUSTERED INDEX IX_Patients_GivenNorm      ON Patients (given_norm)      INCLUDE (family_norm, dob);
+CREATE NONCLUSTERED INDEX IX_Patients_FamilyPhonetic ON Patients (family_phonetic);
+CREATE NONCLUSTERED INDEX IX_Patients_GivenPhonetic  ON Patients (given_phonetic);
+CREATE NONCLUSTERED INDEX IX_Patients_Dob            ON Patients (dob);
+GO
+
+-- 13. Observation trends ($trend, ObservationSeriesStore) read (patient_id, loinc_code) ->
+--     (effective_datetime, value_quantity); with value_quantity included that is a pure index seek.
+CREATE NONCLUSTERED INDEX IX_Obs_Patient_Code_Date
+    ON Observations (patient_id, loinc_code, effective_datetime)
+    INCLUDE (loinc_system, status, encounter_id, value_quantity)
+    WITH (DROP_EXISTING = ON);
+GO
+
+-- 14. Read replica heartbeat. With lhsc.datasource.replica.urls set, the server writes the current time
+--     (epoch ms) here on the primary every second and reads it back from each replica to measure its lag
+--     (see ReplicaSet). The table must be part of what is replicated.
+CREATE TABLE ReplicaHeartbeat (
+    id          INT    NOT NULL PRIMARY KEY,
+    beat_millis BIGINT NOT NULL
+);
+INSERT INTO ReplicaHeartbeat (id, beat_millis) VALUES (1, 0);
+GO
+
+-- 15. Change log for _history and the $changes feed (see ResourceChangeRepository). Every create and update
+--     of a Patient, Encounter or Observation adds one row with that version's resource_blob, in the same
+--     transaction as the resource row. change_seq only grows, so a consumer pages with change_seq > cursor
+--     on the clustered key; _history of a type or a resource seeks the two indexes below.
+--     Rows written before this step have no entries; their history starts with their next update.
+CREATE TABLE ResourceChanges (
+    change_seq    BIGINT IDENTITY(1,1) NOT NULL CONSTRAINT PK_ResourceChanges PRIMARY KEY CLUSTERED,
+    resource_type VARCHAR(20)    NOT NULL,
+    resource_id   INT            NOT NULL,
+    version_id    INT            NOT NULL,
+    change_type   CHAR(1)        NOT NULL,  -- C = created, U = updated
+    changed_at    DATETIME2      NOT NULL,
+    resource_blob VARBINARY(MAX) NULL
+);
+CREATE NONCLUSTERED INDEX IX_ResourceChanges_Resource  ON ResourceChanges (resource_type, resource_id, change_seq);
+CREATE NONCLUSTERED INDEX IX_ResourceChanges_Type      ON ResourceChanges (resource_type, change_seq);
+CREATE NONCLUSTERED INDEX IX_ResourceChanges_ChangedAt ON ResourceChanges (changed_at);
+GO
@@ -0,0 +1,82 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.masterehr.cache.ParsedResourceCache;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.entity.PatientEntity;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Synthetic rows for the benchmarks, generated from a fixed seed so every run sees the same data
+ * and nothing needs a database. JSON variants are produced by running the column mapping and
+ * encoding its result, i.e. the same shape the server stores in resource_json.
+ */
+final class BenchmarkFixtures {
+
+    private static final String[] FAMILY_NAMES = {"Smith", "Tremblay", "Singh", "Nguyen", "MacDonald", "Wong", "Martin"};
+    private static final String[] GIVEN_NAMES = {"Olivia", "Liam", "Emma", "Noah", "Amelia", "Lucas", "Aarav", "Chloe"};
+    private static final String[][] LOINC = {
+            {"8867-4", "/min"}, {"8480-6", "mm[Hg]"}, {"8462-4", "mm[Hg]"}, {"2339-0", "mg/dL"},
+            {"29463-7", "kg"}, {"8310-5", "Cel"}, {"2093-3", "mg/dL"}, {"4548-4", "%"}};
+
+    private BenchmarkFixtures() {
+    }
+
+    static PatientProvider patientProvider(FhirContext ctx, ParsedResourceCache cache) {
+        return new PatientProvider(null, null, null, encounterProvider(ctx, cache), observationProvider(ctx, cache),
+                null, null, cache, null, null, null, null, ctx, null, null);
+    }
+
+    static EncounterProvider encounterProvider(FhirContext ctx, ParsedResourceCache cache) {
+        return new EncounterProvider(null, null, null, cache, null, null, ctx);
+    }
+
+    static ObservationProvider observationProvider(FhirContext ctx, ParsedResourceCache cache) {
+        return new ObservationProvider(null, null, null, null, cache, null, null, null, ctx);
+    }
+
+    static PatientEntity patient(Random random, int id) {
+        PatientEntity entity = new PatientEntity();
+        entity.setPatientId(id);
+        entity.setPatientUid(new UUID(random.nextLong(), random.nextLong()));
+        entity.setOhipNumber(String.format("%010d", Math.abs(random.nextLong()) % 10_000_000_000L));
+        entity.setFirstName(GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+        entity.setLastName(FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)]);
+        entity.setDob(LocalDate.of(1930, 1, 1).plusDays(random.nextInt(90 * 365)));
+        entity.setGender(random.nextBoolean() ? "female" : "male");
+        return entity;
+    }
+
+    static EncounterEntity encounter(Random random, int id, int patientId) {
+        EncounterEntity entity = new EncounterEntity();
+        entity.setEncounterId(id);
+        entity.setPatientId(patientId);
+        entity.setStatus("finished");
+        entity.setReasonForVisit("Follow-up visit " + random.nextInt(1000));
+        LocalDateTime start = LocalDateTime.of(2020, 1, 1, 8, 0).plusMinutes(random.nextInt(5 * 365 * 24 * 60));
+        entity.setVisitDate(start);
+        entity.setDischargeDate(start.plusMinutes(15 + random.nextInt(240)));
+        return entity;
+    }
+
+    static ObservationEntity observation(Random random, int id, int patientId, int encounterId) {
+        String[] loinc = LOINC[random.nextInt(LOINC.length)];
+        ObservationEntity entity = new ObservationEntity();
+        entity.setObservationId(id);
+        entity.setPatientId(patientId);
+        entity.setEncounterId(encounterId);
+        entity.setLoincSystem("http://loinc.org");
+        entity.setLoincCode(loinc[0]);
+        entity.setStatus("final");
+        entity.setEffectiveDatetime(LocalDateTime.of(2020, 1, 1, 8, 0).plusMinutes(random.nextInt(5 * 365 * 24 * 60)));
+        entity.setValueQuantity(BigDecimal.valueOf(random.nextInt(20000), 2));
+        entity.setValueUnit(loinc[1]);
+        return entity;
+    }
+}
@@ -0,0 +1,115 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.masterehr.cache.ParsedResourceCache;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encodeResourceToString for single resources and for searchset Bundles of
+ * 100 and 1000 Observations, and of creating a new parser per call (as the providers do on
+ * create/update) versus reusing one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodeBenchmark {
+
+    private FhirContext ctx;
+    private IParser reusedParser;
+    private Patient patient;
+    private Observation observation;
+    private String observationJson;
+
+    /** The Bundle fixture, in its own state so only encodeBundle runs once per size. */
+    @State(Scope.Thread)
+    public static class BundleState {
+        @Param({"100", "1000"})
+        public int bundleSize;
+
+        Bundle bundle;
+
+        @Setup
+        public void setUp() {
+            FhirContext ctx = FhirContext.forR4();
+            ObservationProvider observationProvider = BenchmarkFixtures.observationProvider(ctx,
+                    new ParsedResourceCache(ctx, 50_000_000L));
+            Random random = new Random(42);
+
+            bundle = new Bundle();
+            bundle.setType(Bundle.BundleType.SEARCHSET);
+            bundle.setTotal(bundleSize);
+            for (int i = 0; i < bundleSize; i++) {
+                Observation entry = observationProvider.transformToFhirObservation(
+                        BenchmarkFixtures.observation(random, 100 + i, 1, 3));
+                bundle.addEntry()
+                        .setFullUrl("http://localhost:8090/fhir/Observation/" + (100 + i))
+                        .setResource(entry)
+                        .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        ctx = FhirContext.forR4();
+        ParsedResourceCache cache = new ParsedResourceCache(ctx, 50_000_000L);
+        reusedParser = ctx.newJsonParser().setPrettyPrint(false);
+        PatientProvider patientProvider = BenchmarkFixtures.patientProvider(ctx, cache);
+        ObservationProvider observationProvider = BenchmarkFixtures.observationProvider(ctx, cache);
+
+        Random random = new Random(42);
+        patient = patientProvider.transformToFhirPatient(BenchmarkFixtures.patient(random, 1));
+        observation = observationProvider.transformToFhirObservation(BenchmarkFixtures.observation(random, 2, 1, 3));
+        observationJson = reusedParser.encodeResourceToString(observation);
+    }
+
+    @Benchmark
+    public String encodePatient() {
+        return reusedParser.encodeResourceToString(patient);
+    }
+
+    @Benchmark
+    public String encodeObservation() {
+        return reusedParser.encodeResourceToString(observation);
+    }
+
+    @Benchmark
+    public String encodeBundle(BundleState state) {
+        return reusedParser.encodeResourceToString(state.bundle);
+    }
+
+    @Benchmark
+    public String encodeObservationNewParser() {
+        return ctx.newJsonParser().setPrettyPrint(false).encodeResourceToString(observation);
+    }
+
+    @Benchmark
+    public Observation parseObservationReusedParser() {
+        return reusedParser.parseResource(Observation.class, observationJson);
+    }
+
+    @Benchmark
+    public Observation parseObservationNewParser() {
+        return ctx.newJsonParser().parseResource(Observation.class, observationJson);
+    }
+}
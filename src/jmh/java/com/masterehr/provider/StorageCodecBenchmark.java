@@ -0,0 +1,103 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.masterehr.cache.ParsedResourceCache;
+import com.masterehr.entity.ResourceJsonCodec;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of the compressed resource_blob format (ResourceJsonCodec) for a Patient, an Observation
+ * and a 100-Observation Bundle as a stand-in for a large resource. The setup prints the stored size
+ * of each as NVARCHAR (2 bytes per char) and as gzip, i.e. the bytes SQL Server reads and sends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageCodecBenchmark {
+
+    private String patientJson;
+    private String observationJson;
+    private String bundleJson;
+    private byte[] patientBlob;
+    private byte[] observationBlob;
+    private byte[] bundleBlob;
+
+    @Setup
+    public void setUp() {
+        FhirContext ctx = FhirContext.forR4();
+        ParsedResourceCache cache = new ParsedResourceCache(ctx, 50_000_000L);
+        IParser parser = ctx.newJsonParser().setPrettyPrint(false);
+        PatientProvider patientProvider = BenchmarkFixtures.patientProvider(ctx, cache);
+        ObservationProvider observationProvider = BenchmarkFixtures.observationProvider(ctx, cache);
+
+        Random random = new Random(42);
+        patientJson = parser.encodeResourceToString(patientProvider.transformToFhirPatient(BenchmarkFixtures.patient(random, 1)));
+        observationJson = parser.encodeResourceToString(
+                observationProvider.transformToFhirObservation(BenchmarkFixtures.observation(random, 2, 1, 3)));
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.COLLECTION);
+        for (int i = 0; i < 100; i++) {
+            bundle.addEntry().setResource(observationProvider.transformToFhirObservation(
+                    BenchmarkFixtures.observation(random, 100 + i, 1, 3)));
+        }
+        bundleJson = parser.encodeResourceToString(bundle);
+
+        patientBlob = ResourceJsonCodec.encode(patientJson);
+        observationBlob = ResourceJsonCodec.encode(observationJson);
+        bundleBlob = ResourceJsonCodec.encode(bundleJson);
+        printSize("Patient", patientJson, patientBlob);
+        printSize("Observation", observationJson, observationBlob);
+        printSize("Bundle(100 Observations)", bundleJson, bundleBlob);
+    }
+
+    private static void printSize(String label, String json, byte[] blob) {
+        System.out.printf("%n%s: %d bytes as NVARCHAR, %d bytes gzip%n", label, 2 * json.length(), blob.length);
+    }
+
+    @Benchmark
+    public byte[] encodePatient() {
+        return ResourceJsonCodec.encode(patientJson);
+    }
+
+    @Benchmark
+    public String decodePatient() {
+        return ResourceJsonCodec.decode(patientBlob);
+    }
+
+    @Benchmark
+    public byte[] encodeObservation() {
+        return ResourceJsonCodec.encode(observationJson);
+    }
+
+    @Benchmark
+    public String decodeObservation() {
+        return ResourceJsonCodec.decode(observationBlob);
+    }
+
+    @Benchmark
+    public byte[] encodeBundle() {
+        return ResourceJsonCodec.encode(bundleJson);
+    }
+
+    @Benchmark
+    public String decodeBundle() {
+        return ResourceJsonCodec.decode(bundleBlob);
+    }
+}
@@ -0,0 +1,121 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.masterehr.cache.ParsedResourceCache;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.entity.PatientEntity;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-path cost of turning a row into a FHIR resource, per resource type:
+ *
+ *   fromColumns  transformToFhir* on a row without resource_json (column mapping)
+ *   fromJson     parsing resource_json, i.e. what a ParsedResourceCache miss costs
+ *   fromCache    transformToFhir* on a row with resource_json while it is cached (copy only)
+ *
+ * Run with the GC profiler (the default in the benchmark profile) to see allocation per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformBenchmark {
+
+    private IParser parser;
+    private PatientProvider patientProvider;
+    private EncounterProvider encounterProvider;
+    private ObservationProvider observationProvider;
+
+    private PatientEntity patientColumns;
+    private PatientEntity patientJson;
+    private EncounterEntity encounterColumns;
+    private EncounterEntity encounterJson;
+    private ObservationEntity observationColumns;
+    private ObservationEntity observationJson;
+
+    @Setup
+    public void setUp() {
+        FhirContext ctx = FhirContext.forR4();
+        ParsedResourceCache cache = new ParsedResourceCache(ctx, 50_000_000L);
+        parser = ctx.newJsonParser().setPrettyPrint(false);
+        patientProvider = BenchmarkFixtures.patientProvider(ctx, cache);
+        encounterProvider = BenchmarkFixtures.encounterProvider(ctx, cache);
+        observationProvider = BenchmarkFixtures.observationProvider(ctx, cache);
+
+        Random random = new Random(42);
+        patientColumns = BenchmarkFixtures.patient(random, 1);
+        encounterColumns = BenchmarkFixtures.encounter(random, 2, 1);
+        observationColumns = BenchmarkFixtures.observation(random, 3, 1, 2);
+
+        patientJson = BenchmarkFixtures.patient(new Random(42), 1);
+        patientJson.setResourceJson(parser.encodeResourceToString(patientProvider.transformToFhirPatient(patientColumns)));
+        encounterJson = BenchmarkFixtures.encounter(new Random(43), 2, 1);
+        encounterJson.setResourceJson(parser.encodeResourceToString(encounterProvider.transformToFhirEncounter(encounterColumns)));
+        observationJson = BenchmarkFixtures.observation(new Random(44), 3, 1, 2);
+        observationJson.setResourceJson(parser.encodeResourceToString(observationProvider.transformToFhirObservation(observationColumns)));
+    }
+
+    @Benchmark
+    public Patient patientFromColumns() {
+        return patientProvider.transformToFhirPatient(patientColumns);
+    }
+
+    @Benchmark
+    public Patient patientFromJson() {
+        return parser.parseResource(Patient.class, patientJson.getResourceJson());
+    }
+
+    @Benchmark
+    public Patient patientFromCache() {
+        return patientProvider.transformToFhirPatient(patientJson);
+    }
+
+    @Benchmark
+    public Encounter encounterFromColumns() {
+        return encounterProvider.transformToFhirEncounter(encounterColumns);
+    }
+
+    @Benchmark
+    public Encounter encounterFromJson() {
+        return parser.parseResource(Encounter.class, encounterJson.getResourceJson());
+    }
+
+    @Benchmark
+    public Encounter encounterFromCache() {
+        return encounterProvider.transformToFhirEncounter(encounterJson);
+    }
+
+    @Benchmark
+    public Observation observationFromColumns() {
+        return observationProvider.transformToFhirObservation(observationColumns);
+    }
+
+    @Benchmark
+    public Observation observationFromJson() {
+        return parser.parseResource(Observation.class, observationJson.getResourceJson());
+    }
+
+    @Benchmark
+    public Observation observationFromCache() {
+        return observationProvider.transformToFhirObservation(observationJson);
+    }
+}
@@ -0,0 +1,250 @@
+package com.masterehr.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.masterehr.config.DataSourceRouting;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.repository.ObservationPoint;
+import com.masterehr.repository.ObservationRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * In-memory time series of Observation values per (patient, LOINC code), for trend views such as
+ * HbA1c or blood pressure over the years.
+ *
+ * A series keeps its points in three parallel primitive arrays (effective time in epoch millis, value as
+ * a double, observation id), sorted by time, so a range is two binary searches and the last N are the
+ * tail of the arrays; about 20 bytes per point instead of an entity with BigDecimal and JSON per row.
+ * Only observations with both an effective time and a valueQuantity are part of a series.
+ *
+ * Series are loaded from the primary database on first use (ObservationRepository.findPoints), also when
+ * $trend is routed to a read replica, and kept up to date after commit when observations are written; a
+ * series that is not loaded is simply read fresh next time.
+ * Observations written elsewhere (another instance, direct SQL) are not seen until the series is reloaded,
+ * at the latest lhsc.cache.observation-series.ttl-minutes after it was loaded.
+ * Memory is bounded by lhsc.cache.observation-series.max-bytes (Caffeine, W-TinyLFU) and published as
+ * lhsc.cache.observation-series.bytes / .series, with .requests{result=hit|miss}.
+ * With lhsc.cache.observation-series.enabled=false every call reads the database.
+ */
+@Component
+public class ObservationSeriesStore {
+
+    private record Key(int patientId, String code) {}
+
+    private final ObservationRepository observationRepository;
+    private final boolean enabled;
+    private final Cache<Key, Series> cache;
+
+    @Autowired
+    public ObservationSeriesStore(ObservationRepository observationRepository, MeterRegistry meterRegistry,
+            @Value("${lhsc.cache.observation-series.enabled:true}") boolean enabled,
+            @Value("${lhsc.cache.observation-series.max-bytes:67108864}") long maxBytes,
+            @Value("${lhsc.cache.observation-series.ttl-minutes:60}") long ttlMinutes) {
+        this.observationRepository = observationRepository;
+        this.enabled = enabled;
+        long ttlNanos = Duration.ofMinutes(ttlMinutes).toNanos();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .<Key, Series>weigher((key, series) -> series.bytes())
+                // Counted from the load, not from the last addAfterCommit: rows written around this server
+                // (another instance, direct SQL) show up at the latest ttl after the series was read
+                .expireAfter(new Expiry<Key, Series>() {
+                    @Override
+                    public long expireAfterCreate(Key key, Series series, long currentTime) {
+                        return ttlNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Key key, Series series, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(Key key, Series series, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        Gauge.builder("lhsc.cache.observation-series.bytes", cache,
+                        c -> c.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L))
+                .description("Estimated memory held by cached observation series")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("lhsc.cache.observation-series.series", cache, Cache::estimatedSize)
+                .description("Cached (patient, code) series")
+                .register(meterRegistry);
+        FunctionCounter.builder("lhsc.cache.observation-series.requests", cache, c -> c.stats().hitCount())
+                .tag("result", "hit")
+                .register(meterRegistry);
+        FunctionCounter.builder("lhsc.cache.observation-series.requests", cache, c -> c.stats().missCount())
+                .tag("result", "miss")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return The patient's series for the code, loading it on a miss. Never null; empty if there are no values.
+     */
+    public Series get(int patientId, String code) {
+        Key key = new Key(patientId, code);
+        // A cached series is only kept current by addAfterCommit from its load on, so it must not be loaded
+        // from a replica that may not have the latest rows yet; uncached, the request's database is fine
+        return enabled ? cache.get(key, k -> DataSourceRouting.call(DataSourceRouting.Target.PRIMARY, () -> load(k)))
+                : load(key);
+    }
+
+    /**
+     * Adds newly stored observations to their loaded series once the current transaction commits
+     * (immediately if there is none).
+     */
+    public void addAfterCommit(Collection<ObservationEntity> observations) {
+        if (!enabled) {
+            return;
+        }
+        Runnable apply = () -> {
+            for (ObservationEntity observation : observations) {
+                if (observation.getPatientId() == null || observation.getLoincCode() == null
+                        || observation.getEffectiveDatetime() == null || observation.getValueQuantity() == null) {
+                    continue;
+                }
+                // Only series already in memory; the others pick the row up when they are loaded
+                cache.asMap().computeIfPresent(new Key(observation.getPatientId(), observation.getLoincCode()),
+                        (key, series) -> series.with(epochMillis(observation.getEffectiveDatetime()),
+                                observation.getValueQuantity().doubleValue(), observation.getObservationId()));
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        } else {
+            apply.run();
+        }
+    }
+
+    private Series load(Key key) {
+        // Already ordered by (effective_datetime, observation_id)
+        List<ObservationPoint> points = observationRepository.findPoints(key.patientId(), key.code());
+        int size = points.size();
+        long[] times = new long[size];
+        double[] values = new double[size];
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ObservationPoint point = points.get(i);
+            times[i] = epochMillis(point.effectiveDatetime());
+            values[i] = point.valueQuantity().doubleValue();
+            ids[i] = point.observationId();
+        }
+        return new Series(times, values, ids);
+    }
+
+    private static long epochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * An immutable series sorted by (time, observation id). Adding a point returns a new series.
+     */
+    public static final class Series {
+
+        private final long[] times;
+        private final double[] values;
+        private final int[] ids;
+
+        Series(long[] times, double[] values, int[] ids) {
+            this.times = times;
+            this.values = values;
+            this.ids = ids;
+        }
+
+        public int size() {
+            return times.length;
+        }
+
+        public long timeAt(int index) {
+            return times[index];
+        }
+
+        public double valueAt(int index) {
+            return values[index];
+        }
+
+        public int observationIdAt(int index) {
+            return ids[index];
+        }
+
+        /**
+         * @return The index of the first point at or after the given time (size() if there is none).
+         */
+        public int firstAtOrAfter(long epochMillis) {
+            int low = 0;
+            int high = times.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] < epochMillis) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return The index after the last point at or before the given time.
+         */
+        public int endAtOrBefore(long epochMillis) {
+            return (epochMillis == Long.MAX_VALUE) ? times.length : firstAtOrAfter(epochMillis + 1);
+        }
+
+        int bytes() {
+            // Three arrays plus object headers; what the cache is bounded by
+            return 64 + times.length * (Long.BYTES + Double.BYTES + Integer.BYTES);
+        }
+
+        Series with(long time, double value, int id) {
+            for (int existing : ids) {
+                if (existing == id) {
+                    // Already there: the series was loaded after the row was committed
+                    return this;
+                }
+            }
+            int index = firstAtOrAfter(time);
+            while (index < times.length && times[index] == time && ids[index] < id) {
+                index++;
+            }
+            int size = times.length;
+            long[] newTimes = new long[size + 1];
+            double[] newValues = new double[size + 1];
+            int[] newIds = new int[size + 1];
+            System.arraycopy(times, 0, newTimes, 0, index);
+            System.arraycopy(values, 0, newValues, 0, index);
+            System.arraycopy(ids, 0, newIds, 0, index);
+            newTimes[index] = time;
+            newValues[index] = value;
+            newIds[index] = id;
+            System.arraycopy(times, index, newTimes, index + 1, size - index);
+            System.arraycopy(values, index, newValues, index + 1, size - index);
+            System.arraycopy(ids, index, newIds, index + 1, size - index);
+            return new Series(newTimes, newValues, newIds);
+        }
+    }
+}
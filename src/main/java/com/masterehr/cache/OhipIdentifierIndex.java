@@ -0,0 +1,278 @@
+package com.masterehr.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory OHIP number -> patient_id index, used to answer conditional creates and updates
+ * (If-None-Exist: identifier=...ca-on-ohip|[number]) without a database round trip.
+ *
+ * OHIP numbers are 10 digits, so they are stored as long keys in an open-addressing hash table
+ * of two primitive arrays: about 12 bytes per patient instead of ~100 for a HashMap entry with
+ * boxed keys. Anything else (letters, other lengths, a leading zero) goes into a small overflow map
+ * under its exact string, so "0123456789" and "123456789" can never share a key.
+ *
+ * The index is loaded in the background once the application is ready; until then isReady()
+ * returns false and callers must ask the database. Changes are applied after the surrounding
+ * transaction commits, so a rolled-back insert never becomes visible here. A miss only means
+ * "not created through this instance"; the unique constraint on ohip_number remains the final
+ * guard against duplicates created elsewhere.
+ */
+@Component
+public class OhipIdentifierIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(OhipIdentifierIndex.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongIntMap numeric = new LongIntMap(1024);
+    private final Map<String, Integer> overflow = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    @Autowired
+    public OhipIdentifierIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * This method loads every OHIP number from the Patients table on a background thread once the
+     * application has started. Entries added meanwhile by creates are newer and are kept.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        Thread.ofVirtual().name("ohip-index-rebuild").start(() -> {
+            long start = System.nanoTime();
+            try {
+                int[] rows = new int[1];
+                // Own template so the large fetch size does not leak into the shared bean
+                JdbcTemplate streaming = new JdbcTemplate(jdbcTemplate.getDataSource());
+                streaming.setFetchSize(5000);
+                streaming.query("SELECT ohip_number, patient_id FROM Patients WHERE ohip_number IS NOT NULL", rs -> {
+                    load(rs.getString(1), rs.getInt(2));
+                    rows[0]++;
+                });
+                ready = true;
+                log.info("OHIP identifier index loaded {} patients in {} ms", rows[0], (System.nanoTime() - start) / 1_000_000);
+            } catch (RuntimeException e) {
+                log.error("Could not load the OHIP identifier index; conditional operations will query the database", e);
+            }
+        });
+    }
+
+    /**
+     * @return false while the index is still loading (callers must then query the database).
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return The patient id for this OHIP number, or null if this index does not know it.
+     */
+    public Integer find(String ohipNumber) {
+        String key = normalize(ohipNumber);
+        long numericKey = numericKey(key);
+        if (numericKey < 0) {
+            return overflow.get(key);
+        }
+        lock.readLock().lock();
+        try {
+            int id = numeric.get(numericKey);
+            return (id == 0) ? null : id;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records a patient's OHIP number once the current transaction commits (immediately if there is none).
+     * @param previousOhipNumber The number the patient had before an update, or null.
+     */
+    public void putAfterCommit(String previousOhipNumber, String ohipNumber, int patientId) {
+        Runnable apply = () -> {
+            if (previousOhipNumber != null && !normalize(previousOhipNumber).equals(normalize(ohipNumber))) {
+                remove(previousOhipNumber, patientId);
+            }
+            if (ohipNumber != null) {
+                put(ohipNumber, patientId);
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        } else {
+            apply.run();
+        }
+    }
+
+    public void put(String ohipNumber, int patientId) {
+        String key = normalize(ohipNumber);
+        long numericKey = numericKey(key);
+        if (numericKey < 0) {
+            overflow.put(key, patientId);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            numeric.put(numericKey, patientId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(String ohipNumber, int patientId) {
+        String key = normalize(ohipNumber);
+        long numericKey = numericKey(key);
+        if (numericKey < 0) {
+            overflow.remove(key, patientId);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (numeric.get(numericKey) == patientId) {
+                numeric.remove(numericKey);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Startup load: never overwrites an entry a create has added in the meantime
+    void load(String ohipNumber, int patientId) {
+        String key = normalize(ohipNumber);
+        long numericKey = numericKey(key);
+        if (numericKey < 0) {
+            overflow.putIfAbsent(key, patientId);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (numeric.get(numericKey) == 0) {
+                numeric.put(numericKey, patientId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static String normalize(String ohipNumber) {
+        return ohipNumber.trim();
+    }
+
+    /**
+     * @return The number as a long, or -1 if it is not exactly 10 digits without a leading zero; only
+     * then does the long stand for this one string.
+     */
+    static long numericKey(String key) {
+        if (key.length() != 10 || key.charAt(0) == '0') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * long -> int hash table with linear probing. Values are patient ids, which start at 1,
+     * so 0 marks an empty slot. Not thread-safe; guarded by the index's lock.
+     */
+    static final class LongIntMap {
+        private long[] keys;
+        private int[] values;
+        private int size;
+
+        LongIntMap(int capacity) {
+            keys = new long[capacity];
+            values = new int[capacity];
+        }
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; values[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return 0;
+        }
+
+        void put(long key, int value) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (values[slot] != 0) {
+                if (keys[slot] == key) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        void remove(long key) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (values[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (values[slot] == 0) {
+                return;
+            }
+            values[slot] = 0;
+            size--;
+            // Re-insert the rest of the probe run so later lookups do not stop at the new hole
+            for (int next = (slot + 1) & mask; values[next] != 0; next = (next + 1) & mask) {
+                long movedKey = keys[next];
+                int movedValue = values[next];
+                values[next] = 0;
+                size--;
+                put(movedKey, movedValue);
+            }
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.masterehr.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.masterehr.interceptor.RequestTimings;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Supplier;
+
+/**
+ * Keeps recently parsed FHIR resources in memory so hot reads do not re-parse resource_json.
+ *
+ * Entries are keyed by resource type and id and remember the version they were parsed from;
+ * a lookup with a different version is a miss and replaces the entry, so a stale resource is
+ * never returned. The cache is bounded by the total length of the cached JSON and uses
+ * Caffeine's W-TinyLFU policy (recency plus frequency) to decide what to evict.
+ *
+ * Resources are mutable, so callers always receive their own copy.
+ */
+@Component
+public class ParsedResourceCache {
+
+    private record Key(String resourceType, Integer id) {}
+
+    private record Entry(String version, Resource resource, int weight) {}
+
+    private final FhirContext fhirContext;
+    private final Cache<Key, Entry> cache;
+
+    @Autowired
+    public ParsedResourceCache(FhirContext fhirContext,
+            @Value("${lhsc.cache.parsed-resources.max-json-chars:50000000}") long maxJsonChars) {
+        this.fhirContext = fhirContext;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxJsonChars)
+                .<Key, Entry>weigher((key, entry) -> entry.weight())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the parsed resource for the given row, parsing the JSON only on a cache miss.
+     * @param type The resource class, e.g. Patient.class.
+     * @param id The row id.
+     * @param version The version of the row, or null to derive one from the JSON itself.
+     * @param json The stored resource_json of the row.
+     * @return A copy of the parsed resource that the caller is free to modify.
+     */
+    public <T extends Resource> T getOrParse(Class<T> type, Integer id, String version, String json) {
+        return getOrParse(type, id, (version != null) ? version : contentVersion(json), () -> json);
+    }
+
+    /**
+     * Same as above for a row whose version is known, with the JSON only produced on a miss
+     * (decompressing resource_blob is skipped on a hit).
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Resource> T getOrParse(Class<T> type, Integer id, String version, Supplier<String> json) {
+        String resourceType = fhirContext.getResourceType(type);
+        Key key = new Key(resourceType, id);
+
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && entry.version().equals(version)) {
+            return (T) entry.resource().copy();
+        }
+
+        String resourceJson = json.get();
+        long parseStart = System.nanoTime();
+        T parsed = fhirContext.newJsonParser().parseResource(type, resourceJson);
+        RequestTimings.add(RequestTimings.Phase.PARSE, System.nanoTime() - parseStart);
+        cache.put(key, new Entry(version, parsed.copy(), resourceJson.length()));
+        return parsed;
+    }
+
+    /**
+     * Drops the cached resource, e.g. after it has been updated.
+     */
+    public void invalidate(String resourceType, Integer id) {
+        cache.invalidate(new Key(resourceType, id));
+    }
+
+    /**
+     * @return Hit, miss and eviction counters since startup.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long estimatedSize() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Fallback for callers that have no row version: the JSON content itself identifies the version.
+     */
+    private static String contentVersion(String json) {
+        return json.length() + ":" + Integer.toHexString(json.hashCode());
+    }
+}
@@ -0,0 +1,492 @@
+package com.masterehr.cache;
+
+import com.masterehr.entity.NameNormalizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of patient family and given names for typeahead search (GET /Patient?family=Smi).
+ *
+ * Each name is indexed in its normalized form (NameNormalizer): a sorted map from name to patient ids
+ * answers "starts with" with a range scan, a trigram -> names map answers :contains, and a Double
+ * Metaphone code -> names map answers phonetic. Ids are kept as sorted int arrays per distinct
+ * name, so a million patients cost a few MB and a lookup takes microseconds plus the merge of the
+ * matching id lists.
+ *
+ * Like OhipIdentifierIndex it is loaded in the background once the application is ready (until then
+ * isReady() is false and searches go to the database) and changes are applied after commit.
+ * Patients written elsewhere (another instance, direct SQL) are picked up by re-reading the rows whose
+ * last_updated is past the newest one seen, every lhsc.patient-name-index.refresh-ms. If the index has not
+ * been refreshed for lhsc.patient-name-index.max-staleness-ms, e.g. because the database cannot be
+ * reached, isReady() is false again and searches go to the database until a refresh succeeds.
+ * The load also fills family_norm / given_norm and the phonetic columns of rows written before
+ * those columns existed, so the database search agrees with the index.
+ */
+@Component
+public class PatientNameIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(PatientNameIndex.class);
+
+    public enum Field { FAMILY, GIVEN }
+
+    public enum Match { STARTS_WITH, CONTAINS, PHONETIC }
+
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+    // Rows are re-read this far behind the newest last_updated seen: timestamps are taken before commit,
+    // so a slow transaction can commit a row that is older than one already read, and clocks differ
+    private static final Duration REFRESH_OVERLAP = Duration.ofMinutes(1);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final long refreshMillis;
+    private final long maxStalenessNanos;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NameField family = new NameField();
+    private final NameField given = new NameField();
+    // Patients changed while the index was loading; the load must not put their old names back
+    private final Set<Integer> changedDuringLoad = ConcurrentHashMap.newKeySet();
+    private volatile boolean ready;
+    // Newest last_updated read so far, and when the index was last in line with the table (System.nanoTime())
+    private volatile LocalDateTime newestUpdate;
+    private volatile long refreshedAt;
+
+    @Autowired
+    public PatientNameIndex(JdbcTemplate jdbcTemplate,
+            @Value("${lhsc.patient-name-index.refresh-ms:30000}") long refreshMillis,
+            @Value("${lhsc.patient-name-index.max-staleness-ms:120000}") long maxStalenessMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.refreshMillis = refreshMillis;
+        this.maxStalenessNanos = Duration.ofMillis(maxStalenessMillis).toNanos();
+    }
+
+    /**
+     * Loads every patient name on a background thread once the application has started,
+     * then fills the search columns of older rows and keeps refreshing the index.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        Thread.ofVirtual().name("patient-name-index-rebuild").start(() -> {
+            long start = System.nanoTime();
+            try {
+                int[] rows = new int[1];
+                // Own template so the large fetch size does not leak into the shared bean
+                JdbcTemplate streaming = new JdbcTemplate(jdbcTemplate.getDataSource());
+                streaming.setFetchSize(5000);
+                streaming.query("SELECT patient_id, first_name, last_name, last_updated FROM Patients", rs -> {
+                    load(rs.getInt(1), rs.getString(2), rs.getString(3));
+                    seen(rs.getTimestamp(4));
+                    rows[0]++;
+                });
+                refreshedAt = start;
+                ready = true;
+                changedDuringLoad.clear();
+                log.info("Patient name index loaded {} patients in {} ms", rows[0], (System.nanoTime() - start) / 1_000_000);
+            } catch (RuntimeException e) {
+                log.error("Could not load the patient name index; name searches will query the database", e);
+                return;
+            }
+            backfillSearchColumns();
+            refreshPeriodically();
+        });
+    }
+
+    /**
+     * @return false while the index is loading, or when it has not been refreshed for too long to be trusted.
+     */
+    public boolean isReady() {
+        return ready && System.nanoTime() - refreshedAt < maxStalenessNanos;
+    }
+
+    private void refreshPeriodically() {
+        boolean failing = false;
+        while (true) {
+            try {
+                Thread.sleep(refreshMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                refresh();
+                failing = false;
+            } catch (RuntimeException e) {
+                if (!failing) {
+                    log.warn("Could not refresh the patient name index: {}", e.getMessage());
+                    failing = true;
+                }
+            }
+        }
+    }
+
+    private record ChangedRow(int id, String firstName, String lastName) {}
+
+    // Re-reads the patients updated since the newest change seen and replaces their names in the index
+    private void refresh() {
+        long start = System.nanoTime();
+        LocalDateTime since = (newestUpdate != null) ? newestUpdate.minus(REFRESH_OVERLAP) : LocalDateTime.of(1900, 1, 1, 0, 0);
+        List<ChangedRow> changed = new ArrayList<>();
+        jdbcTemplate.query("SELECT patient_id, first_name, last_name, last_updated FROM Patients WHERE last_updated >= ?",
+                rs -> {
+                    changed.add(new ChangedRow(rs.getInt(1), rs.getString(2), rs.getString(3)));
+                    seen(rs.getTimestamp(4));
+                }, Timestamp.valueOf(since));
+        if (!changed.isEmpty()) {
+            int[] ids = new int[changed.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = changed.get(i).id();
+            }
+            Arrays.sort(ids);
+            lock.writeLock().lock();
+            try {
+                // The previous names are not kept per patient, so take the ids out of every name first
+                given.removeAll(ids);
+                family.removeAll(ids);
+                for (ChangedRow row : changed) {
+                    String givenKey = NameNormalizer.normalize(row.firstName());
+                    String familyKey = NameNormalizer.normalize(row.lastName());
+                    if (givenKey != null) {
+                        given.add(givenKey, row.id());
+                    }
+                    if (familyKey != null) {
+                        family.add(familyKey, row.id());
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        refreshedAt = start;
+    }
+
+    private void seen(Timestamp lastUpdated) {
+        if (lastUpdated != null) {
+            LocalDateTime time = lastUpdated.toLocalDateTime();
+            if (newestUpdate == null || time.isAfter(newestUpdate)) {
+                newestUpdate = time;
+            }
+        }
+    }
+
+    /**
+     * @param key The normalized search text (NameNormalizer.normalize), or for PHONETIC its phonetic code.
+     * @return The ids of the patients whose name matches, in ascending order.
+     */
+    public int[] find(Field field, Match match, String key) {
+        NameField names = (field == Field.FAMILY) ? family : given;
+        lock.readLock().lock();
+        try {
+            return switch (match) {
+                case STARTS_WITH -> names.idsOf(names.startingWith(key));
+                case CONTAINS -> names.idsOf(names.containing(key));
+                case PHONETIC -> names.idsOf(names.soundingLike(key));
+            };
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records a patient's names once the current transaction commits (immediately if there is none).
+     * @param previousFirstName The given name(s) before an update, or null for a new patient; likewise previousLastName.
+     */
+    public void putAfterCommit(String previousFirstName, String previousLastName, String firstName, String lastName,
+            int patientId) {
+        Runnable apply = () -> {
+            if (!ready) {
+                changedDuringLoad.add(patientId);
+            }
+            lock.writeLock().lock();
+            try {
+                replace(given, NameNormalizer.normalize(previousFirstName), NameNormalizer.normalize(firstName), patientId);
+                replace(family, NameNormalizer.normalize(previousLastName), NameNormalizer.normalize(lastName), patientId);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply.run();
+                }
+            });
+        } else {
+            apply.run();
+        }
+    }
+
+    private static void replace(NameField field, String previous, String current, int patientId) {
+        if (Objects.equals(previous, current)) {
+            if (current != null) {
+                field.add(current, patientId);
+            }
+            return;
+        }
+        if (previous != null) {
+            field.remove(previous, patientId);
+        }
+        if (current != null) {
+            field.add(current, patientId);
+        }
+    }
+
+    private void load(int patientId, String firstName, String lastName) {
+        if (changedDuringLoad.contains(patientId)) {
+            return;
+        }
+        String givenKey = NameNormalizer.normalize(firstName);
+        String familyKey = NameNormalizer.normalize(lastName);
+        lock.writeLock().lock();
+        try {
+            if (givenKey != null) {
+                given.add(givenKey, patientId);
+            }
+            if (familyKey != null) {
+                family.add(familyKey, patientId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private record UnsetRow(int id, int version, String firstName, String lastName) {}
+
+    // Rows from before the search columns existed; the version check leaves rows updated meanwhile alone
+    private void backfillSearchColumns() {
+        String select = "SELECT TOP (" + BACKFILL_BATCH_SIZE + ") patient_id, version_id, first_name, last_name FROM Patients"
+                + " WHERE patient_id > ? AND ((family_norm IS NULL AND last_name IS NOT NULL)"
+                + " OR (given_norm IS NULL AND first_name IS NOT NULL)) ORDER BY patient_id";
+        String update = "UPDATE Patients SET family_norm = ?, given_norm = ?, family_phonetic = ?, given_phonetic = ?"
+                + " WHERE patient_id = ? AND version_id = ?";
+        int[] updateTypes = {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.INTEGER};
+        try {
+            long rows = 0;
+            int lastId = Integer.MIN_VALUE;
+            while (true) {
+                List<UnsetRow> batch = jdbcTemplate.query(select,
+                        (rs, rowNum) -> new UnsetRow(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4)), lastId);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                List<Object[]> updates = new ArrayList<>(batch.size());
+                for (UnsetRow row : batch) {
+                    updates.add(new Object[]{
+                            NameNormalizer.normalize(row.lastName()), NameNormalizer.normalize(row.firstName()),
+                            NameNormalizer.phonetic(row.lastName()), NameNormalizer.phonetic(row.firstName()),
+                            row.id(), row.version()});
+                }
+                jdbcTemplate.batchUpdate(update, updates, updateTypes);
+                lastId = batch.get(batch.size() - 1).id();
+                rows += batch.size();
+            }
+            if (rows > 0) {
+                log.info("Filled the name search columns of {} patients", rows);
+            }
+        } catch (RuntimeException e) {
+            // Only database searches on those rows are affected; the next start continues
+            log.error("Filling the patient name search columns stopped", e);
+        }
+    }
+
+    /**
+     * The index of one name field. Not thread-safe; guarded by the index's lock.
+     */
+    private static final class NameField {
+        // Normalized name -> ids of the patients with that name
+        private final TreeMap<String, IntList> ids = new TreeMap<>();
+        // Every 3-character substring -> the names containing it
+        private final Map<String, Set<String>> trigrams = new HashMap<>();
+        private final Map<String, Set<String>> phonetic = new HashMap<>();
+
+        void add(String name, int patientId) {
+            IntList list = ids.get(name);
+            if (list == null) {
+                list = new IntList();
+                ids.put(name, list);
+                for (String trigram : trigrams(name)) {
+                    trigrams.computeIfAbsent(trigram, t -> new HashSet<>()).add(name);
+                }
+                String code = NameNormalizer.phonetic(name);
+                if (code != null) {
+                    phonetic.computeIfAbsent(code, c -> new HashSet<>()).add(name);
+                }
+            }
+            list.add(patientId);
+        }
+
+        void remove(String name, int patientId) {
+            IntList list = ids.get(name);
+            if (list == null || !list.remove(patientId) || !list.isEmpty()) {
+                return;
+            }
+            forget(name);
+        }
+
+        // One pass over every name; cheap next to the database round trip of a refresh
+        void removeAll(int[] sortedPatientIds) {
+            List<String> emptied = new ArrayList<>();
+            for (Map.Entry<String, IntList> entry : ids.entrySet()) {
+                if (entry.getValue().removeAll(sortedPatientIds) && entry.getValue().isEmpty()) {
+                    emptied.add(entry.getKey());
+                }
+            }
+            for (String name : emptied) {
+                forget(name);
+            }
+        }
+
+        private void forget(String name) {
+            ids.remove(name);
+            for (String trigram : trigrams(name)) {
+                removeFrom(trigrams, trigram, name);
+            }
+            String code = NameNormalizer.phonetic(name);
+            if (code != null) {
+                removeFrom(phonetic, code, name);
+            }
+        }
+
+        Collection<String> startingWith(String prefix) {
+            return ids.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet();
+        }
+
+        Collection<String> containing(String fragment) {
+            if (fragment.length() < 3) {
+                // Too short for a trigram; there are far fewer distinct names than patients
+                List<String> matches = new ArrayList<>();
+                for (String name : ids.keySet()) {
+                    if (name.contains(fragment)) {
+                        matches.add(name);
+                    }
+                }
+                return matches;
+            }
+            // Names containing the fragment contain all its trigrams: check the candidates of the rarest one
+            Set<String> candidates = null;
+            for (String trigram : trigrams(fragment)) {
+                Set<String> names = trigrams.get(trigram);
+                if (names == null) {
+                    return List.of();
+                }
+                if (candidates == null || names.size() < candidates.size()) {
+                    candidates = names;
+                }
+            }
+            List<String> matches = new ArrayList<>();
+            for (String name : candidates) {
+                if (name.contains(fragment)) {
+                    matches.add(name);
+                }
+            }
+            return matches;
+        }
+
+        Collection<String> soundingLike(String code) {
+            return phonetic.getOrDefault(code, Set.of());
+        }
+
+        int[] idsOf(Collection<String> names) {
+            int count = 0;
+            for (String name : names) {
+                count += ids.get(name).size;
+            }
+            int[] result = new int[count];
+            int position = 0;
+            for (String name : names) {
+                IntList list = ids.get(name);
+                System.arraycopy(list.values, 0, result, position, list.size);
+                position += list.size;
+            }
+            // Each patient has one name per field, so there are no duplicates to remove
+            Arrays.sort(result);
+            return result;
+        }
+
+        private static Set<String> trigrams(String name) {
+            Set<String> result = new HashSet<>();
+            for (int i = 0; i + 3 <= name.length(); i++) {
+                result.add(name.substring(i, i + 3));
+            }
+            return result;
+        }
+
+        private static void removeFrom(Map<String, Set<String>> map, String key, String name) {
+            Set<String> names = map.get(key);
+            if (names != null && names.remove(name) && names.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * A sorted set of ints in a growable array; most names belong to a handful of patients.
+     */
+    private static final class IntList {
+        private int[] values = new int[2];
+        private int size;
+
+        void add(int value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+        }
+
+        boolean remove(int value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        boolean removeAll(int[] sortedValues) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (Arrays.binarySearch(sortedValues, values[i]) < 0) {
+                    values[kept++] = values[i];
+                }
+            }
+            boolean removed = kept < size;
+            size = kept;
+            return removed;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
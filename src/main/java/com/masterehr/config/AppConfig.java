@@ -1,23 +1,57 @@
 package com.masterehr.config;
 
 import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportRuntimeHints;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class holds central application configuration and defines Spring Beans.
  */
 @Configuration
+@ImportRuntimeHints(FhirRuntimeHints.class)
 public class AppConfig {
 
+    /** The resource types this server reads and writes, plus the ones its responses are made of. */
+    static final List<Class<? extends Resource>> RESOURCE_TYPES = List.of(
+            Patient.class, Encounter.class, Observation.class, Bundle.class, Parameters.class, OperationOutcome.class);
+
     /**
      * This method creates a single, shared instance of a FhirContext for the
      * entire application. The @Bean annotation tells Spring to manage this object.
      * Any other component that needs a FhirContext can now have it injected.
+     * The model classes of RESOURCE_TYPES are scanned here, during startup, rather than by the
+     * first request that touches each type.
      * @return A configured FhirContext for FHIR R4.
      */
     @Bean
     public FhirContext fhirContext() {
-        return FhirContext.forR4();
+        FhirContext fhirContext = FhirContext.forR4();
+        for (Class<? extends Resource> type : RESOURCE_TYPES) {
+            fhirContext.getResourceDefinition(type);
+        }
+        return fhirContext;
+    }
+
+    /**
+     * This method creates the executor used to run independent database queries of one request
+     * side by side (e.g. Patient/$everything). Each task gets its own virtual thread, so waiting
+     * on the database costs no platform thread; the connection pool is what limits concurrency.
+     * @return An executor that starts a new virtual thread per task.
+     */
+    @Bean(destroyMethod = "close")
+    public ExecutorService queryExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
     }
 }
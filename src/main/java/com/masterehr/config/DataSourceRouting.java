@@ -0,0 +1,57 @@
+package com.masterehr.config;
+
+import java.util.function.Supplier;
+
+/**
+ * Which database the current thread's connections come from when read replicas are configured
+ * (see ReplicaRoutingDataSource). Unset means the primary.
+ *
+ * The target only matters when a connection is taken: a transaction that has already started keeps
+ * its connection. Work handed to another thread has to take the target along (see call()).
+ */
+public final class DataSourceRouting {
+
+    public enum Target { PRIMARY, REPLICA }
+
+    private static final ThreadLocal<Target> CURRENT = new ThreadLocal<>();
+
+    private DataSourceRouting() {
+    }
+
+    public static Target current() {
+        Target target = CURRENT.get();
+        return (target == null) ? Target.PRIMARY : target;
+    }
+
+    public static void set(Target target) {
+        CURRENT.set(target);
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Runs work with the given target and restores the previous one afterwards.
+     */
+    public static <T> T call(Target target, Supplier<T> work) {
+        Target previous = CURRENT.get();
+        CURRENT.set(target);
+        try {
+            return work.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    public static void run(Target target, Runnable work) {
+        call(target, () -> {
+            work.run();
+            return null;
+        });
+    }
+}
@@ -0,0 +1,86 @@
+package com.masterehr.config;
+
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import com.masterehr.interceptor.QueryCountInterceptor;
+import com.masterehr.interceptor.QueryCounter;
+import com.masterehr.interceptor.RawJsonReadInterceptor;
+import com.masterehr.interceptor.ReplicaRoutingInterceptor;
+import com.masterehr.interceptor.RequestMetricsInterceptor;
+import com.masterehr.provider.AsyncCreateInterceptor;
+import com.masterehr.provider.AsyncIngestProvider;
+import com.masterehr.provider.BulkExportDeleteInterceptor;
+import com.masterehr.provider.BulkExportProvider;
+import com.masterehr.provider.BundleStreamer;
+import com.masterehr.provider.ChangeFeedProvider;
+import com.masterehr.provider.EncounterProvider;
+import com.masterehr.provider.ObservationProvider;
+import com.masterehr.provider.PatientProvider;
+import com.masterehr.provider.SystemProvider;
+import com.masterehr.provider.TransferProvider;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reflection and resource hints for a GraalVM native image (mvn -Pnative native:compile).
+ *
+ * HAPI builds its model definitions by reflecting over the structure classes, and finds the
+ * providers' operations and the interceptors' hooks through their annotations. Neither is visible
+ * to the native-image analysis, so this registers every class the FhirContext scans for
+ * AppConfig.RESOURCE_TYPES (datatypes, backbone elements and enum factories included), the
+ * providers and interceptors, and the properties files HAPI loads by name.
+ */
+class FhirRuntimeHints implements RuntimeHintsRegistrar {
+
+    private static final MemberCategory[] MODEL_MEMBERS = {
+            MemberCategory.INVOKE_DECLARED_CONSTRUCTORS, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS,
+            MemberCategory.DECLARED_FIELDS, MemberCategory.INVOKE_DECLARED_METHODS, MemberCategory.INVOKE_PUBLIC_METHODS};
+
+    private static final List<Class<?>> HANDLERS = List.of(
+            PatientProvider.class, EncounterProvider.class, ObservationProvider.class, SystemProvider.class,
+            BulkExportProvider.class, AsyncIngestProvider.class, ChangeFeedProvider.class, TransferProvider.class,
+            RequestMetricsInterceptor.class, ReplicaRoutingInterceptor.class, RawJsonReadInterceptor.class,
+            BundleStreamer.class, AsyncCreateInterceptor.class, QueryCountInterceptor.class,
+            BulkExportDeleteInterceptor.class);
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        FhirContext fhirContext = FhirContext.forR4();
+        for (Class<? extends Resource> type : AppConfig.RESOURCE_TYPES) {
+            fhirContext.getResourceDefinition(type);
+        }
+        Set<Class<?>> registered = new HashSet<>();
+        for (BaseRuntimeElementDefinition<?> definition : fhirContext.getElementDefinitions()) {
+            registerModelType(hints, definition.getImplementingClass(), registered);
+        }
+
+        for (Class<?> handler : HANDLERS) {
+            hints.reflection().registerType(handler, MemberCategory.INVOKE_DECLARED_METHODS, MemberCategory.INVOKE_PUBLIC_METHODS);
+        }
+        // Named in spring.jpa.properties.hibernate.session_factory.statement_inspector
+        hints.reflection().registerType(QueryCounter.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+
+        hints.resources().registerPattern("ca/uhn/fhir/i18n/*.properties");
+        hints.resources().registerPattern("org/hl7/fhir/r4/model/*.properties");
+        hints.resources().registerPattern("org/hl7/fhir/r4/model/*/*.properties");
+    }
+
+    // The class with its superclasses and nested classes (BackboneElements, enums and their factories)
+    private static void registerModelType(RuntimeHints hints, Class<?> type, Set<Class<?>> registered) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            if (!registered.add(c)) {
+                return;
+            }
+            hints.reflection().registerType(c, MODEL_MEMBERS);
+            for (Class<?> nested : c.getDeclaredClasses()) {
+                registerModelType(hints, nested, registered);
+            }
+        }
+    }
+}
@@ -1,38 +1,111 @@
 package com.masterehr.config;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import com.masterehr.interceptor.QueryCountInterceptor;
+import com.masterehr.interceptor.RawJsonReadInterceptor;
+import com.masterehr.interceptor.ReplicaRoutingInterceptor;
+import com.masterehr.interceptor.RequestMetricsInterceptor;
+import com.masterehr.provider.AsyncCreateInterceptor;
+import com.masterehr.provider.AsyncIngestProvider;
+import com.masterehr.provider.BulkExportDeleteInterceptor;
+import com.masterehr.provider.BulkExportProvider;
+import com.masterehr.provider.BundleStreamer;
+import com.masterehr.provider.ChangeFeedProvider;
 import com.masterehr.provider.EncounterProvider;
 import com.masterehr.provider.PatientProvider;
 import com.masterehr.provider.ObservationProvider;
+import com.masterehr.provider.SystemProvider;
+import com.masterehr.provider.TransferProvider;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.Arrays;
 
-@WebServlet("/fhir/*")
+// Initialized on startup rather than on the first request, which would otherwise pay for scanning the providers
+@WebServlet(urlPatterns = "/fhir/*", loadOnStartup = 1)
 public class FhirServerConfig extends RestfulServer {
 
     private final PatientProvider patientProvider;
     private final EncounterProvider encounterProvider;
     private final ObservationProvider observationProvider;
+    private final SystemProvider systemProvider;
+    private final BulkExportProvider bulkExportProvider;
+    private final AsyncIngestProvider asyncIngestProvider;
+    private final ChangeFeedProvider changeFeedProvider;
+    private final TransferProvider transferProvider;
+    private final RawJsonReadInterceptor rawJsonReadInterceptor;
+    private final BundleStreamer bundleStreamer;
+    private final AsyncCreateInterceptor asyncCreateInterceptor;
+    private final BulkExportDeleteInterceptor bulkExportDeleteInterceptor;
+    private final QueryCountInterceptor queryCountInterceptor;
+    private final RequestMetricsInterceptor requestMetricsInterceptor;
+    private final ReplicaRoutingInterceptor replicaRoutingInterceptor;
     private final FhirContext fhirContext;
 
     @Autowired
     public FhirServerConfig(PatientProvider patientProvider, EncounterProvider encounterProvider, 
-    ObservationProvider observationProvider, FhirContext fhirContext) {
+    ObservationProvider observationProvider, SystemProvider systemProvider, BulkExportProvider bulkExportProvider,
+    AsyncIngestProvider asyncIngestProvider, ChangeFeedProvider changeFeedProvider, TransferProvider transferProvider, RawJsonReadInterceptor rawJsonReadInterceptor, BundleStreamer bundleStreamer,
+    AsyncCreateInterceptor asyncCreateInterceptor, BulkExportDeleteInterceptor bulkExportDeleteInterceptor,
+    QueryCountInterceptor queryCountInterceptor, RequestMetricsInterceptor requestMetricsInterceptor,
+    ReplicaRoutingInterceptor replicaRoutingInterceptor, FhirContext fhirContext) {
         this.patientProvider = patientProvider;
         this.encounterProvider = encounterProvider;
         this.observationProvider = observationProvider;
+        this.systemProvider = systemProvider;
+        this.bulkExportProvider = bulkExportProvider;
+        this.asyncIngestProvider = asyncIngestProvider;
+        this.changeFeedProvider = changeFeedProvider;
+        this.transferProvider = transferProvider;
+        this.rawJsonReadInterceptor = rawJsonReadInterceptor;
+        this.bundleStreamer = bundleStreamer;
+        this.asyncCreateInterceptor = asyncCreateInterceptor;
+        this.bulkExportDeleteInterceptor = bulkExportDeleteInterceptor;
+        this.queryCountInterceptor = queryCountInterceptor;
+        this.requestMetricsInterceptor = requestMetricsInterceptor;
+        this.replicaRoutingInterceptor = replicaRoutingInterceptor;
         this.fhirContext = fhirContext;
     }
 
     @Override
     protected void initialize() throws ServletException {
         setFhirContext(fhirContext);
+
+        // Keeps search results (e.g. KeysetBundleProvider) between page requests so next/previous links work
+        FifoMemoryPagingProvider pagingProvider = new FifoMemoryPagingProvider(500);
+        pagingProvider.setDefaultPageSize(50);
+        pagingProvider.setMaximumPageSize(1000);
+        setPagingProvider(pagingProvider);
+
         setResourceProviders(Arrays.asList(patientProvider, encounterProvider,observationProvider));
+        // Plain providers hold system-level operations such as transaction/batch Bundles
+        registerProvider(systemProvider);
+        registerProvider(bulkExportProvider);
+        registerProvider(asyncIngestProvider);
+        registerProvider(changeFeedProvider);
+        registerProvider(transferProvider);
+        // Registered first so its timers also cover requests answered by the interceptors below
+        registerInterceptor(requestMetricsInterceptor);
+        if (replicaRoutingInterceptor.isEnabled()) {
+            // Lets reads use a read replica; ordered ahead of the interceptors below that query themselves
+            registerInterceptor(replicaRoutingInterceptor);
+        }
         registerInterceptor(new ResponseHighlighterInterceptor());
+        // DELETE on the $export status URL, which HAPI would not route to an operation
+        registerInterceptor(bulkExportDeleteInterceptor);
+        // Serves plain JSON reads straight from resource_json, skipping parse + encode
+        registerInterceptor(rawJsonReadInterceptor);
+        // Writes plain JSON search pages entry by entry instead of building and encoding a Bundle
+        registerInterceptor(bundleStreamer);
+        // POST with "Prefer: respond-async": journal, queue and answer 202; the database write happens behind
+        registerInterceptor(asyncCreateInterceptor);
+        if (queryCountInterceptor.isEnabled()) {
+            // Debug only: X-Query-Count response header
+            registerInterceptor(queryCountInterceptor);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package com.masterehr.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.annotation.WebFilter;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many /fhir/* requests run at the same time to the size of the JDBC connection pool.
+ *
+ * With spring.threads.virtual.enabled=true every request gets its own virtual thread, so the
+ * number of concurrent requests is no longer capped by Tomcat's thread pool. Without a limit,
+ * a burst of slow SQL Server queries would leave hundreds of requests waiting inside Hikari for
+ * a connection. Here they wait on a fair semaphore instead, which for a virtual thread is just a
+ * parked continuation. A request that waits longer than lhsc.bulkhead.max-wait-ms gets a 503.
+ *
+ * Metrics: lhsc.bulkhead.wait (timer), lhsc.bulkhead.active, lhsc.bulkhead.queued and
+ * lhsc.requests.virtual.active (gauges). Connection pool saturation is published by Hikari
+ * itself as hikaricp.connections.active / .pending.
+ */
+@WebFilter("/fhir/*")
+public class JdbcBulkheadFilter implements Filter {
+
+    private final Semaphore permits;
+    private final long maxWaitMillis;
+    private final Timer waitTimer;
+    private final AtomicInteger virtualThreadRequests = new AtomicInteger();
+
+    @Autowired
+    public JdbcBulkheadFilter(MeterRegistry meterRegistry,
+            @Value("${lhsc.bulkhead.permits:${spring.datasource.hikari.maximum-pool-size:10}}") int permitCount,
+            @Value("${lhsc.bulkhead.max-wait-ms:30000}") long maxWaitMillis) {
+        this.permits = new Semaphore(permitCount, true);
+        this.maxWaitMillis = maxWaitMillis;
+
+        this.waitTimer = Timer.builder("lhsc.bulkhead.wait")
+                .description("Time /fhir requests waited for a bulkhead permit")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        Gauge.builder("lhsc.bulkhead.active", permits, p -> permitCount - p.availablePermits())
+                .description("Requests currently holding a bulkhead permit")
+                .register(meterRegistry);
+        Gauge.builder("lhsc.bulkhead.queued", permits, Semaphore::getQueueLength)
+                .description("Requests waiting for a bulkhead permit")
+                .register(meterRegistry);
+        Gauge.builder("lhsc.requests.virtual.active", virtualThreadRequests, AtomicInteger::get)
+                .description("/fhir requests currently running on virtual threads")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        boolean virtual = Thread.currentThread().isVirtual();
+        if (virtual) {
+            virtualThreadRequests.incrementAndGet();
+        }
+        try {
+            long start = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            if (!acquired) {
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.setHeader("Retry-After", "1");
+                httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy, please retry");
+                return;
+            }
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                permits.release();
+            }
+        } finally {
+            if (virtual) {
+                virtualThreadRequests.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.masterehr.config;
+
+import com.masterehr.interceptor.RequestTimings;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.repository.core.support.RepositoryFactoryBeanSupport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wiring for the request metrics recorded by RequestMetricsInterceptor.
+ */
+@Configuration
+public class MetricsConfig {
+
+    /**
+     * This method registers a post-processor that adds a listener to every Spring Data repository,
+     * so the time spent in repository calls is counted as the "db" phase of the current request.
+     * It is static so it can be created before the repository factory beans it post-processes.
+     * @return The post-processor.
+     */
+    @Bean
+    public static BeanPostProcessor repositoryTimingPostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessBeforeInitialization(Object bean, String beanName) {
+                if (bean instanceof RepositoryFactoryBeanSupport<?, ?, ?> factoryBean) {
+                    factoryBean.addRepositoryFactoryCustomizer(factory -> factory.addInvocationListener(
+                            invocation -> RequestTimings.add(RequestTimings.Phase.DB,
+                                    invocation.getDuration(TimeUnit.NANOSECONDS))));
+                }
+                return bean;
+            }
+        };
+    }
+}
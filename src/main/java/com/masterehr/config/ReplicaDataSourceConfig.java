@@ -0,0 +1,82 @@
+package com.masterehr.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read replica routing, active only when lhsc.datasource.replica.urls is set; otherwise Spring Boot
+ * creates the single spring.datasource pool as usual.
+ *
+ * The primary pool is still configured through spring.datasource.* and spring.datasource.hikari.*.
+ * Each replica URL gets its own pool (hikaricp.* metrics with pool=replica-N), and the DataSource the
+ * rest of the application (JPA, JdbcTemplate) sees is a ReplicaRoutingDataSource over all of them.
+ * Which requests may read from a replica is decided by ReplicaRoutingInterceptor.
+ */
+@Configuration
+@ConditionalOnProperty(name = "lhsc.datasource.replica.urls")
+public class ReplicaDataSourceConfig {
+
+    /**
+     * This method creates the primary connection pool, exactly as Spring Boot would without replicas.
+     * @return The pool for writes and for reads that must see them.
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    /**
+     * This method creates one pool per replica and starts measuring their lag.
+     * @return The replicas with their lag monitor.
+     */
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public ReplicaSet replicaSet(HikariDataSource primaryDataSource, DataSourceProperties properties,
+            MeterRegistry meterRegistry,
+            @Value("${lhsc.datasource.replica.urls}") String urls,
+            @Value("${lhsc.datasource.replica.username:${spring.datasource.username:}}") String username,
+            @Value("${lhsc.datasource.replica.password:${spring.datasource.password:}}") String password,
+            @Value("${lhsc.datasource.replica.pool-size:10}") int poolSize,
+            @Value("${lhsc.datasource.replica.max-lag-ms:5000}") long maxLagMillis,
+            @Value("${lhsc.datasource.replica.heartbeat-ms:1000}") long heartbeatMillis) {
+        List<DataSource> replicas = new ArrayList<>();
+        for (String url : urls.split("\\s*,\\s*")) {
+            if (url.isBlank()) {
+                continue;
+            }
+            HikariDataSource replica = new HikariDataSource();
+            replica.setPoolName("replica-" + replicas.size());
+            replica.setJdbcUrl(url.trim());
+            replica.setUsername(username);
+            replica.setPassword(password);
+            replica.setDriverClassName(properties.determineDriverClassName());
+            replica.setMaximumPoolSize(poolSize);
+            replica.setReadOnly(true);
+            replica.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+            replicas.add(replica);
+        }
+        return new ReplicaSet(primaryDataSource, replicas, maxLagMillis, heartbeatMillis, meterRegistry);
+    }
+
+    /**
+     * This method creates the DataSource used by JPA and every JdbcTemplate.
+     * @return The routing DataSource over the primary and the replicas.
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(HikariDataSource primaryDataSource, ReplicaSet replicaSet, MeterRegistry meterRegistry) {
+        return new ReplicaRoutingDataSource(primaryDataSource, replicaSet, meterRegistry);
+    }
+}
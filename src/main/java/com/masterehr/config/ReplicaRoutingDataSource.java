@@ -0,0 +1,57 @@
+package com.masterehr.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out primary connections, or replica connections while DataSourceRouting says REPLICA and a
+ * replica is within the lag threshold (see ReplicaSet). Everything that does not ask for a replica,
+ * including every write, uses the primary.
+ *
+ * Metric: lhsc.datasource.connections (counter, tag target=primary|replica) of the connections handed out.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final String PRIMARY = "primary";
+
+    private final ReplicaSet replicaSet;
+    private final Counter primaryConnections;
+    private final Counter replicaConnections;
+
+    public ReplicaRoutingDataSource(DataSource primary, ReplicaSet replicaSet, MeterRegistry meterRegistry) {
+        this.replicaSet = replicaSet;
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        for (int i = 0; i < replicaSet.getReplicas().size(); i++) {
+            targets.put(i, replicaSet.getReplicas().get(i));
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+
+        this.primaryConnections = Counter.builder("lhsc.datasource.connections").tag("target", "primary")
+                .description("Connections handed out by the routing data source")
+                .register(meterRegistry);
+        this.replicaConnections = Counter.builder("lhsc.datasource.connections").tag("target", "replica")
+                .description("Connections handed out by the routing data source")
+                .register(meterRegistry);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (DataSourceRouting.current() == DataSourceRouting.Target.REPLICA) {
+            Integer replica = replicaSet.pickReplica();
+            if (replica != null) {
+                replicaConnections.increment();
+                return replica;
+            }
+        }
+        primaryConnections.increment();
+        return PRIMARY;
+    }
+}
@@ -0,0 +1,156 @@
+package com.masterehr.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The read replicas and how far each one is behind the primary.
+ *
+ * Lag is measured with a heartbeat row (ReplicaHeartbeat, UpdateDatabase.sql step 14): every
+ * heartbeatMillis the current time is written on the primary and read back from each replica, so
+ * lag = now - the time the replica has seen. This works the same for Always On secondaries,
+ * transactional replication or log shipping. A replica that is further behind than maxLagMillis,
+ * cannot be reached or has not been measured yet gets no reads; with none left, reads use the primary.
+ *
+ * Metric: lhsc.datasource.replica.lag (gauge per replica, NaN while unknown).
+ */
+public class ReplicaSet {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaSet.class);
+
+    private static final long UNKNOWN = Long.MAX_VALUE;
+
+    private final JdbcTemplate primary;
+    private final List<DataSource> replicas;
+    private final List<JdbcTemplate> replicaTemplates = new ArrayList<>();
+    private final long maxLagMillis;
+    private final long heartbeatMillis;
+    private final AtomicLongArray lagMillis;
+    private final AtomicInteger next = new AtomicInteger();
+    private boolean heartbeatFailing;
+    private volatile boolean stopped;
+
+    public ReplicaSet(DataSource primary, List<DataSource> replicas, long maxLagMillis, long heartbeatMillis,
+            MeterRegistry meterRegistry) {
+        this.primary = new JdbcTemplate(primary);
+        this.replicas = List.copyOf(replicas);
+        this.maxLagMillis = maxLagMillis;
+        this.heartbeatMillis = heartbeatMillis;
+        this.lagMillis = new AtomicLongArray(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            lagMillis.set(i, UNKNOWN);
+            JdbcTemplate template = new JdbcTemplate(replicas.get(i));
+            // A replica that hangs must not hold up the heartbeat of the others
+            template.setQueryTimeout((int) Math.max(1, heartbeatMillis / 1000));
+            replicaTemplates.add(template);
+            int replica = i;
+            Gauge.builder("lhsc.datasource.replica.lag", lagMillis, lags -> lags.get(replica) == UNKNOWN ? Double.NaN : lags.get(replica))
+                    .tag("replica", String.valueOf(i))
+                    .description("How far the replica is behind the primary, from the heartbeat row")
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+        }
+    }
+
+    public List<DataSource> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return The index of the replica to read from (round robin over those within the lag threshold),
+     *         or null if reads have to go to the primary.
+     */
+    public Integer pickReplica() {
+        int count = replicas.size();
+        if (count == 0) {
+            return null;
+        }
+        int start = Math.floorMod(next.getAndIncrement(), count);
+        for (int i = 0; i < count; i++) {
+            int replica = (start + i) % count;
+            if (lagMillis.get(replica) <= maxLagMillis) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (!stopped) {
+                checkLag();
+                try {
+                    Thread.sleep(heartbeatMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "replica-heartbeat");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        for (DataSource replica : replicas) {
+            if (replica instanceof Closeable closeable) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    log.warn("Could not close a replica pool", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the heartbeat on the primary and measures every replica against it.
+     */
+    void checkLag() {
+        try {
+            long now = System.currentTimeMillis();
+            if (primary.update("UPDATE ReplicaHeartbeat SET beat_millis = ? WHERE id = 1", now) == 0) {
+                primary.update("INSERT INTO ReplicaHeartbeat (id, beat_millis) VALUES (1, ?)", now);
+            }
+            heartbeatFailing = false;
+        } catch (RuntimeException e) {
+            // Replicas are still measured against the last beat that got through, so their lag keeps growing
+            if (!heartbeatFailing) {
+                log.warn("Could not write the replica heartbeat: {}", e.getMessage());
+                heartbeatFailing = true;
+            }
+        }
+
+        for (int i = 0; i < replicaTemplates.size(); i++) {
+            long lag;
+            try {
+                List<Long> seen = replicaTemplates.get(i).queryForList(
+                        "SELECT beat_millis FROM ReplicaHeartbeat WHERE id = 1", Long.class);
+                lag = seen.isEmpty() ? UNKNOWN : Math.max(0, System.currentTimeMillis() - seen.get(0));
+            } catch (RuntimeException e) {
+                lag = UNKNOWN;
+            }
+            long previous = lagMillis.getAndSet(i, lag);
+            boolean usable = lag <= maxLagMillis;
+            if (usable != (previous <= maxLagMillis)) {
+                if (usable) {
+                    log.info("Replica {} is within {} ms of the primary again; reads resume", i, maxLagMillis);
+                } else {
+                    log.warn("Replica {} is {} behind the primary; reads go elsewhere", i,
+                            lag == UNKNOWN ? "an unknown time" : lag + " ms");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.masterehr.config;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ObservationRepository;
+import com.masterehr.repository.PatientRepository;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * Does the one-time work of the first Patient, Encounter and Observation requests during startup, so the
+ * first clients of a new instance do not wait for it. Runs before the application reports ready
+ * (ApplicationReadyEvent, the readiness probe), with the FHIR servlet already initialized (FhirServerConfig
+ * is loaded on startup) and the model definitions scanned (AppConfig.fhirContext).
+ *
+ * What is left: loading and JIT-compiling the JSON parser and encoder for the three resource types, and
+ * the first query of each repository, which opens the connection pool and compiles the queries. A
+ * database that cannot be reached is logged and skipped; it does not stop the server from starting.
+ */
+@Component
+public class StartupWarmup implements ApplicationRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupWarmup.class);
+
+    private final FhirContext fhirContext;
+    private final PatientRepository patientRepository;
+    private final EncounterRepository encounterRepository;
+    private final ObservationRepository observationRepository;
+    private final boolean enabled;
+    private final int iterations;
+
+    @Autowired
+    public StartupWarmup(FhirContext fhirContext, PatientRepository patientRepository,
+            EncounterRepository encounterRepository, ObservationRepository observationRepository,
+            @Value("${lhsc.startup.warmup.enabled:true}") boolean enabled,
+            @Value("${lhsc.startup.warmup.iterations:200}") int iterations) {
+        this.fhirContext = fhirContext;
+        this.patientRepository = patientRepository;
+        this.encounterRepository = encounterRepository;
+        this.observationRepository = observationRepository;
+        this.enabled = enabled;
+        this.iterations = iterations;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        warmParsers();
+        long parsers = System.nanoTime();
+        warmRepositories();
+        long end = System.nanoTime();
+        log.info("Startup warm-up took {} ms (parsers {} ms, repositories {} ms)",
+                (end - start) / 1_000_000, (parsers - start) / 1_000_000, (end - parsers) / 1_000_000);
+    }
+
+    private void warmParsers() {
+        Bundle bundle = sampleBundle();
+        // Enough round trips for the hot parser and encoder paths to leave the interpreter
+        for (int i = 0; i < iterations; i++) {
+            IParser parser = fhirContext.newJsonParser();
+            parser.parseResource(Bundle.class, parser.encodeResourceToString(bundle));
+        }
+    }
+
+    private void warmRepositories() {
+        try {
+            // No row has id 0; the point is the connection, the statements and the entity mapping
+            patientRepository.findById(0);
+            encounterRepository.findByPatientId(0);
+            observationRepository.findByPatientId(0);
+        } catch (RuntimeException e) {
+            log.warn("Startup warm-up skipped the database: {}", e.getMessage());
+        }
+    }
+
+    private static Bundle sampleBundle() {
+        Patient patient = new Patient();
+        patient.setId("Patient/1");
+        patient.addIdentifier().setSystem("http://hl7.org/fhir/sid/ca-on-ohip").setValue("1234567890");
+        patient.addName().setFamily("Warmup").addGiven("Startup");
+        patient.setGender(Enumerations.AdministrativeGender.UNKNOWN);
+        patient.setBirthDateElement(new DateType("1970-01-01"));
+
+        Encounter encounter = new Encounter();
+        encounter.setId("Encounter/1");
+        encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+        encounter.setSubject(new Reference("Patient/1"));
+        encounter.getPeriod().setStartElement(new DateTimeType("2024-01-01T08:00:00Z"));
+
+        Observation observation = new Observation();
+        observation.setId("Observation/1");
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+        observation.setSubject(new Reference("Patient/1"));
+        observation.setEncounter(new Reference("Encounter/1"));
+        observation.setEffective(new DateTimeType("2024-01-01T08:05:00Z"));
+        observation.setValue(new Quantity().setValue(72).setUnit("/min"));
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.addEntry().setResource(patient);
+        bundle.addEntry().setResource(encounter);
+        bundle.addEntry().setResource(observation);
+        return bundle;
+    }
+}
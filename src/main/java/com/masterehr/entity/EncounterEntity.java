@@ -1,14 +1,15 @@
 package com.masterehr.entity;
 
 import jakarta.persistence.*;
+import org.springframework.data.domain.Persistable;
 import java.time.LocalDateTime;
 
 @Entity
 @Table(name = "Encounters")
-public class EncounterEntity {
+public class EncounterEntity implements Persistable<Integer> {
 
+    // Assigned by ResourceIdAllocator before the first save, not by the database
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "encounter_id")
     private Integer encounterId;
 
@@ -30,10 +31,31 @@ public class EncounterEntity {
     @Column(name = "discharge_date")
     private LocalDateTime dischargeDate;
 
+    // Legacy UTF-16 copy of the JSON; only rows ResourceJsonMigrator has not moved to resource_blob yet
     @Lob
     @Column(name = "resource_json", columnDefinition = "NVARCHAR(MAX)")
+    private String legacyResourceJson;
+
+    // The JSON, gzip-compressed (see ResourceJsonCodec)
+    @Column(name = "resource_blob", columnDefinition = "VARBINARY(MAX)")
+    private byte[] resourceBlob;
+
+    // Decoded once per entity instance
+    @Transient
     private String resourceJson;
 
+    // Optimistic locking: checked and incremented by Hibernate on every update.
+    // Also the FHIR meta.versionId and ETag; new rows start at 1.
+    @Version
+    @Column(name = "version_id", nullable = false)
+    private Integer versionId = 1;
+
+    @Column(name = "last_updated", nullable = false)
+    private LocalDateTime lastUpdated;
+
+    @Transient
+    private boolean isNew = true;
+
     // Getters and Setters for all fields...
     // (You can use your IDE to generate these quickly)
 
@@ -51,6 +73,32 @@ public class EncounterEntity {
     public void setStatus(String status) { this.status = status; }
     public LocalDateTime getDischargeDate() { return dischargeDate; }
     public void setDischargeDate(LocalDateTime dischargeDate) { this.dischargeDate = dischargeDate; }
-    public String getResourceJson() { return resourceJson; }
-    public void setResourceJson(String resourceJson) { this.resourceJson = resourceJson; }
+    // Reads either storage format; writes always go to the compressed column
+    public String getResourceJson() {
+        if (resourceJson == null) {
+            resourceJson = (resourceBlob != null) ? ResourceJsonCodec.decode(resourceBlob) : legacyResourceJson;
+        }
+        return resourceJson;
+    }
+    public void setResourceJson(String resourceJson) {
+        this.resourceJson = resourceJson;
+        this.resourceBlob = ResourceJsonCodec.encode(resourceJson);
+        this.legacyResourceJson = null;
+    }
+    public byte[] getResourceBlob() { return resourceBlob; }
+    public boolean hasResourceJson() { return resourceBlob != null || (legacyResourceJson != null && !legacyResourceJson.isEmpty()); }
+    public Integer getVersionId() { return versionId; }
+    public void setVersionId(Integer versionId) { this.versionId = versionId; }
+    public LocalDateTime getLastUpdated() { return lastUpdated; }
+    public void setLastUpdated(LocalDateTime lastUpdated) { this.lastUpdated = lastUpdated; }
+
+    // Persistable: ids are assigned before save(), so "id == null" cannot tell new rows apart
+    @Override
+    public Integer getId() { return encounterId; }
+    @Override
+    public boolean isNew() { return isNew; }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() { this.isNew = false; }
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+package com.masterehr.entity;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * The search forms of a patient name, stored in family_norm / given_norm and family_phonetic /
+ * given_phonetic and used by PatientNameIndex, so the database and the in-memory index agree.
+ *
+ * normalize() folds case and accents (an accented "Belanger" -> "belanger"), drops apostrophes ("O'Neil" ->
+ * "oneil"), turns hyphens and other separators into single spaces and keeps only a-z, 0-9 and space.
+ * phonetic() is the Double Metaphone code of the normalized name, so "Smith" and "Smyth" share "SM0".
+ */
+public final class NameNormalizer {
+
+    private static final DoubleMetaphone DOUBLE_METAPHONE = new DoubleMetaphone();
+
+    private NameNormalizer() {
+    }
+
+    /**
+     * @return The normalized name, or null if nothing searchable is left.
+     */
+    public static String normalize(String name) {
+        if (name == null) {
+            return null;
+        }
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                if (pendingSpace && !normalized.isEmpty()) {
+                    normalized.append(' ');
+                }
+                pendingSpace = false;
+                normalized.append(c);
+            } else if (Character.getType(c) == Character.NON_SPACING_MARK || c == '\'' || c == '\u2019') {
+                // Accents left over from NFD, and apostrophes, vanish without a trace
+            } else {
+                String folded = fold(c);
+                if (folded != null) {
+                    if (pendingSpace && !normalized.isEmpty()) {
+                        normalized.append(' ');
+                    }
+                    pendingSpace = false;
+                    normalized.append(folded);
+                } else {
+                    pendingSpace = true;
+                }
+            }
+        }
+        return normalized.isEmpty() ? null : normalized.toString();
+    }
+
+    /**
+     * @return The phonetic code of the name, or null if it has no letters.
+     */
+    public static String phonetic(String name) {
+        String normalized = normalize(name);
+        if (normalized == null) {
+            return null;
+        }
+        String code = DOUBLE_METAPHONE.doubleMetaphone(normalized.replace(" ", ""));
+        return (code == null || code.isEmpty()) ? null : code;
+    }
+
+    // Letters NFD does not decompose: sharp s, ae, oe, o with stroke, l with stroke, d with stroke, eth, thorn, dotless i
+    private static String fold(char c) {
+        return switch (c) {
+            case '\u00df' -> "ss";
+            case '\u00e6' -> "ae";
+            case '\u0153' -> "oe";
+            case '\u00f8' -> "o";
+            case '\u0142' -> "l";
+            case '\u0111', '\u00f0' -> "d";
+            case '\u00fe' -> "th";
+            case '\u0131' -> "i";
+            default -> null;
+        };
+    }
+}
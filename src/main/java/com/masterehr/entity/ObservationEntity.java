@@ -1,15 +1,16 @@
 package com.masterehr.entity;
 
 import jakarta.persistence.*;
+import org.springframework.data.domain.Persistable;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
 @Entity
 @Table(name = "Observations")
-public class ObservationEntity {
+public class ObservationEntity implements Persistable<Integer> {
 
+    // Assigned by ResourceIdAllocator before the first save, not by the database
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "observation_id")
     private Integer observationId;
 
@@ -37,10 +38,31 @@ public class ObservationEntity {
     @Column(name = "value_unit", length = 50)
     private String valueUnit;
 
+    // Legacy UTF-16 copy of the JSON; only rows ResourceJsonMigrator has not moved to resource_blob yet
     @Lob
     @Column(name = "resource_json", columnDefinition = "NVARCHAR(MAX)")
+    private String legacyResourceJson;
+
+    // The JSON, gzip-compressed (see ResourceJsonCodec)
+    @Column(name = "resource_blob", columnDefinition = "VARBINARY(MAX)")
+    private byte[] resourceBlob;
+
+    // Decoded once per entity instance
+    @Transient
     private String resourceJson;
 
+    // Optimistic locking: checked and incremented by Hibernate on every update.
+    // Also the FHIR meta.versionId and ETag; new rows start at 1.
+    @Version
+    @Column(name = "version_id", nullable = false)
+    private Integer versionId = 1;
+
+    @Column(name = "last_updated", nullable = false)
+    private LocalDateTime lastUpdated;
+
+    @Transient
+    private boolean isNew = true;
+
     // Getters and Setters...
 
     public Integer getObservationId() { return observationId; }
@@ -61,6 +83,32 @@ public class ObservationEntity {
     public void setValueQuantity(BigDecimal valueQuantity) { this.valueQuantity = valueQuantity; }
     public String getValueUnit() { return valueUnit; }
     public void setValueUnit(String valueUnit) { this.valueUnit = valueUnit; }
-    public String getResourceJson() { return resourceJson; }
-    public void setResourceJson(String resourceJson) { this.resourceJson = resourceJson; }
+    // Reads either storage format; writes always go to the compressed column
+    public String getResourceJson() {
+        if (resourceJson == null) {
+            resourceJson = (resourceBlob != null) ? ResourceJsonCodec.decode(resourceBlob) : legacyResourceJson;
+        }
+        return resourceJson;
+    }
+    public void setResourceJson(String resourceJson) {
+        this.resourceJson = resourceJson;
+        this.resourceBlob = ResourceJsonCodec.encode(resourceJson);
+        this.legacyResourceJson = null;
+    }
+    public byte[] getResourceBlob() { return resourceBlob; }
+    public boolean hasResourceJson() { return resourceBlob != null || (legacyResourceJson != null && !legacyResourceJson.isEmpty()); }
+    public Integer getVersionId() { return versionId; }
+    public void setVersionId(Integer versionId) { this.versionId = versionId; }
+    public LocalDateTime getLastUpdated() { return lastUpdated; }
+    public void setLastUpdated(LocalDateTime lastUpdated) { this.lastUpdated = lastUpdated; }
+
+    // Persistable: ids are assigned before save(), so "id == null" cannot tell new rows apart
+    @Override
+    public Integer getId() { return observationId; }
+    @Override
+    public boolean isNew() { return isNew; }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() { this.isNew = false; }
 }
\ No newline at end of file
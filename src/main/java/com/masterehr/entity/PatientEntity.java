@@ -2,21 +2,24 @@ package com.masterehr.entity;
 
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
-import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.Lob;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
 import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import jakarta.persistence.Version;
+import org.springframework.data.domain.Persistable;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.UUID;
 
 @Entity
 @Table(name = "Patients")
-public class PatientEntity {
+public class PatientEntity implements Persistable<Integer> {
 
+    // Assigned by ResourceIdAllocator before the first save, not by the database
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     @Column(name = "patient_id")
     private Integer patientId;
 
@@ -32,6 +35,19 @@ public class PatientEntity {
     @Column(name = "last_name", length = 100)
     private String lastName;
 
+    // Search forms of the names (see NameNormalizer), kept in step by setFirstName / setLastName
+    @Column(name = "family_norm", length = 100)
+    private String familyNorm;
+
+    @Column(name = "given_norm", length = 100)
+    private String givenNorm;
+
+    @Column(name = "family_phonetic", length = 8)
+    private String familyPhonetic;
+
+    @Column(name = "given_phonetic", length = 8)
+    private String givenPhonetic;
+
     @Column(name = "dob")
     private LocalDate dob;
 
@@ -47,10 +63,31 @@ public class PatientEntity {
     @Column(name = "created_at")
     private LocalDateTime createdAt;
 
+    // Legacy UTF-16 copy of the JSON; only rows ResourceJsonMigrator has not moved to resource_blob yet
     @Lob
     @Column(name = "resource_json", columnDefinition = "NVARCHAR(MAX)")
+    private String legacyResourceJson;
+
+    // The JSON, gzip-compressed (see ResourceJsonCodec)
+    @Column(name = "resource_blob", columnDefinition = "VARBINARY(MAX)")
+    private byte[] resourceBlob;
+
+    // Decoded once per entity instance
+    @Transient
     private String resourceJson;
 
+    // Optimistic locking: checked and incremented by Hibernate on every update.
+    // Also the FHIR meta.versionId and ETag; new rows start at 1.
+    @Version
+    @Column(name = "version_id", nullable = false)
+    private Integer versionId = 1;
+
+    @Column(name = "last_updated", nullable = false)
+    private LocalDateTime lastUpdated;
+
+    @Transient
+    private boolean isNew = true;
+
 
     // --- Getters and Setters ---
     // Spring Data JPA uses these to create instances of your entity.
@@ -85,6 +122,8 @@ public class PatientEntity {
 
     public void setFirstName(String firstName) {
         this.firstName = firstName;
+        this.givenNorm = NameNormalizer.normalize(firstName);
+        this.givenPhonetic = NameNormalizer.phonetic(firstName);
     }
 
     public String getLastName() {
@@ -93,6 +132,24 @@ public class PatientEntity {
 
     public void setLastName(String lastName) {
         this.lastName = lastName;
+        this.familyNorm = NameNormalizer.normalize(lastName);
+        this.familyPhonetic = NameNormalizer.phonetic(lastName);
+    }
+
+    public String getFamilyNorm() {
+        return familyNorm;
+    }
+
+    public String getGivenNorm() {
+        return givenNorm;
+    }
+
+    public String getFamilyPhonetic() {
+        return familyPhonetic;
+    }
+
+    public String getGivenPhonetic() {
+        return givenPhonetic;
     }
 
     public LocalDate getDob() {
@@ -134,14 +191,65 @@ public class PatientEntity {
     public void setCreatedAt(LocalDateTime createdAt) {
         this.createdAt = createdAt;
     }
+    // Reads either storage format; writes always go to the compressed column
     public String getResourceJson() {
-    return resourceJson;
+        if (resourceJson == null) {
+            resourceJson = (resourceBlob != null) ? ResourceJsonCodec.decode(resourceBlob) : legacyResourceJson;
+        }
+        return resourceJson;
     }
 
     public void setResourceJson(String resourceJson) {
         this.resourceJson = resourceJson;
+        this.resourceBlob = ResourceJsonCodec.encode(resourceJson);
+        this.legacyResourceJson = null;
     }
 
+    public byte[] getResourceBlob() {
+        return resourceBlob;
+    }
+
+    // Without decompressing
+    public boolean hasResourceJson() {
+        return resourceBlob != null || (legacyResourceJson != null && !legacyResourceJson.isEmpty());
+    }
+
+    public Integer getVersionId() {
+        return versionId;
+    }
+
+    public void setVersionId(Integer versionId) {
+        this.versionId = versionId;
+    }
+
+    public LocalDateTime getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public void setLastUpdated(LocalDateTime lastUpdated) {
+        this.lastUpdated = lastUpdated;
+    }
+
+
+    // --- Persistable ---
+    // Our ids are assigned before save(), so Spring Data cannot use "id == null" to detect new rows.
+    // Without this, save() would merge() and issue a SELECT before every INSERT.
+
+    @Override
+    public Integer getId() {
+        return patientId;
+    }
+
+    @Override
+    public boolean isNew() {
+        return isNew;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        this.isNew = false;
+    }
 
     @Override
     public String toString() {
@@ -0,0 +1,55 @@
+package com.masterehr.entity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding of the resource_blob column: the resource JSON as UTF-8, gzip-compressed.
+ *
+ * The gzip header (0x1f 0x8b) is the format marker. A value without it is read as plain UTF-8,
+ * which leaves room for other formats later. gzip rather than raw deflate so the raw read path
+ * can send the stored bytes unchanged to clients that accept Content-Encoding: gzip.
+ */
+public final class ResourceJsonCodec {
+
+    private ResourceJsonCodec() {
+    }
+
+    public static byte[] encode(String json) {
+        if (json == null) {
+            return null;
+        }
+        byte[] utf8 = json.getBytes(StandardCharsets.UTF_8);
+        // FHIR JSON typically compresses 4-8x
+        ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 4 + 32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out, 8192)) {
+            gzip.write(utf8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static String decode(byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        if (!isGzip(stored)) {
+            return new String(stored, StandardCharsets.UTF_8);
+        }
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(stored), 8192)) {
+            return new String(gzip.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Corrupt resource_blob", e);
+        }
+    }
+
+    public static boolean isGzip(byte[] stored) {
+        return stored != null && stored.length >= 2 && (stored[0] & 0xff) == 0x1f && (stored[1] & 0xff) == 0x8b;
+    }
+}
@@ -0,0 +1,52 @@
+package com.masterehr.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Debug aid: adds an X-Query-Count header with the number of SQL statements the request ran,
+ * e.g. to check that _include stays at one IN query per page instead of one query per reference.
+ * Only active when lhsc.debug.query-count-header=true.
+ */
+@Component
+@Interceptor
+public class QueryCountInterceptor {
+
+    public static final String HEADER_QUERY_COUNT = "X-Query-Count";
+
+    private final boolean enabled;
+
+    @Autowired
+    public QueryCountInterceptor(@Value("${lhsc.debug.query-count-header:false}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED)
+    public boolean startCounting() {
+        QueryCounter.reset();
+        return true;
+    }
+
+    /**
+     * Called just before the response body is written, while headers can still be added.
+     */
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public boolean addHeader(HttpServletResponse theResponse) {
+        theResponse.setHeader(HEADER_QUERY_COUNT, Integer.toString(QueryCounter.get()));
+        return true;
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void stopCounting() {
+        QueryCounter.clear();
+    }
+}
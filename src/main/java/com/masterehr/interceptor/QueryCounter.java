@@ -0,0 +1,34 @@
+package com.masterehr.interceptor;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Counts the SQL statements Hibernate prepares on the current thread, so a request can report
+ * how many queries it cost (see QueryCountInterceptor). Hibernate creates this class itself from
+ * the hibernate.session_factory.statement_inspector property, hence the static counter.
+ *
+ * Only statements run on the request thread are counted; queries handed to the query executor
+ * (e.g. by Patient/$everything) and plain JdbcTemplate calls are not.
+ */
+public class QueryCounter implements StatementInspector {
+
+    private static final ThreadLocal<int[]> COUNT = ThreadLocal.withInitial(() -> new int[1]);
+
+    @Override
+    public String inspect(String sql) {
+        COUNT.get()[0]++;
+        return sql;
+    }
+
+    public static void reset() {
+        COUNT.get()[0] = 0;
+    }
+
+    public static int get() {
+        return COUNT.get()[0];
+    }
+
+    public static void clear() {
+        COUNT.remove();
+    }
+}
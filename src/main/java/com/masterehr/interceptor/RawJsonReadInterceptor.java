@@ -0,0 +1,155 @@
+package com.masterehr.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.ParameterUtil;
+import ca.uhn.fhir.util.DateUtils;
+import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ObservationRepository;
+import com.masterehr.repository.PatientRepository;
+import com.masterehr.repository.StoredResource;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Optional;
+
+/**
+ * Fast path for GET /fhir/[type]/[id] on Patient, Encounter and Observation.
+ *
+ * The normal @Read path parses resource_json into a HAPI model only to encode it straight back
+ * to JSON. When the row already has its JSON and the client wants plain JSON (no _summary,
+ * _elements, _pretty, XML or the HTML highlighter), this interceptor writes the stored JSON
+ * to the response as-is and stops HAPI from handling the request any further.
+ * In every other case it does nothing and the providers answer as usual.
+ *
+ * It also answers conditional reads: if If-None-Match names the current version, the response is
+ * 304 Not Modified after a lookup of the version column alone, whatever format was asked for.
+ * resource_json is neither read nor encoded. The stored JSON already carries meta.versionId and
+ * meta.lastUpdated (see ResourceVersions), so the fast path adds only the ETag and Last-Modified headers.
+ * Rows stored compressed (resource_blob) are sent gzip-encoded as they are when the client accepts gzip.
+ */
+@Component
+@Interceptor
+public class RawJsonReadInterceptor {
+
+    private final PatientRepository patientRepository;
+    private final EncounterRepository encounterRepository;
+    private final ObservationRepository observationRepository;
+
+    @Autowired
+    public RawJsonReadInterceptor(PatientRepository patientRepository, EncounterRepository encounterRepository,
+            ObservationRepository observationRepository) {
+        this.patientRepository = patientRepository;
+        this.encounterRepository = encounterRepository;
+        this.observationRepository = observationRepository;
+    }
+
+    /**
+     * Called once HAPI has worked out which operation the request is for.
+     * @return false if the response has already been written, true to let HAPI continue.
+     */
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+    public boolean serveStoredJson(RequestDetails theRequestDetails, HttpServletRequest theRequest,
+            HttpServletResponse theResponse) throws IOException {
+        if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.READ
+                || theRequestDetails.getId() == null
+                || !theRequestDetails.getId().isIdPartValidLong()) {
+            return true;
+        }
+        String resourceName = theRequestDetails.getResourceName();
+        Integer id = theRequestDetails.getId().getIdPartAsLong().intValue();
+
+        String ifNoneMatch = theRequest.getHeader(Constants.HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            Optional<Integer> version = findVersionId(resourceName, id);
+            if (version.isPresent() && matchesVersion(ifNoneMatch, version.get())) {
+                theResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                theResponse.setHeader(Constants.HEADER_ETAG, etag(version.get()));
+                return false;
+            }
+        }
+
+        if (!ResponseFormats.wantsPlainJson(theRequestDetails, theRequest)) {
+            return true;
+        }
+        Optional<StoredResource> stored = findStoredResource(resourceName, id);
+        if (stored.isEmpty() || !stored.get().hasJson()) {
+            // Unknown id (let the provider produce the 404) or a legacy row that needs column mapping
+            return true;
+        }
+
+        // Compressed rows go out exactly as stored when the client takes gzip: no inflate, no re-encode
+        byte[] body = ResponseFormats.acceptsGzip(theRequest) ? stored.get().gzippedJson() : null;
+        if (body != null) {
+            theResponse.setHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+        } else {
+            body = stored.get().json().getBytes(StandardCharsets.UTF_8);
+        }
+        theResponse.addHeader("Vary", Constants.HEADER_ACCEPT_ENCODING);
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType(Constants.CT_FHIR_JSON_NEW);
+        theResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        theResponse.setContentLength(body.length);
+        theResponse.setHeader(Constants.HEADER_ETAG, etag(stored.get().versionId()));
+        if (stored.get().lastUpdated() != null) {
+            theResponse.setHeader(Constants.HEADER_LAST_MODIFIED, DateUtils.formatDate(
+                    Date.from(stored.get().lastUpdated().atZone(ZoneId.systemDefault()).toInstant())));
+        }
+        try (OutputStream out = theResponse.getOutputStream()) {
+            out.write(body);
+        }
+        return false;
+    }
+
+    private Optional<StoredResource> findStoredResource(String resourceName, Integer id) {
+        switch (resourceName) {
+            case "Patient":
+                return patientRepository.findStoredResourceById(id);
+            case "Encounter":
+                return encounterRepository.findStoredResourceById(id);
+            case "Observation":
+                return observationRepository.findStoredResourceById(id);
+            default:
+                return Optional.empty();
+        }
+    }
+
+    private Optional<Integer> findVersionId(String resourceName, Integer id) {
+        switch (resourceName) {
+            case "Patient":
+                return patientRepository.findVersionIdById(id);
+            case "Encounter":
+                return encounterRepository.findVersionIdById(id);
+            case "Observation":
+                return observationRepository.findVersionIdById(id);
+            default:
+                return Optional.empty();
+        }
+    }
+
+    // If-None-Match may list several ETags, weak (W/"3") or strong ("3"), or be *
+    private static boolean matchesVersion(String ifNoneMatch, Integer version) {
+        for (String tag : ifNoneMatch.split(",")) {
+            String value = tag.trim();
+            if ("*".equals(value) || String.valueOf(version).equals(ParameterUtil.parseETagValue(value))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String etag(Integer version) {
+        return "W/\"" + version + "\"";
+    }
+}
@@ -0,0 +1,123 @@
+package com.masterehr.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.masterehr.config.DataSourceRouting;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Decides per request whether its queries may run on a read replica (see ReplicaDataSourceConfig).
+ * Only active when lhsc.datasource.replica.urls is set.
+ *
+ * GET reads, searches, paging and history, plus the operations in lhsc.datasource.replica.operations
+ * ($everything, $lastn, $trend and $stats by default), go to a replica. Everything else stays on the
+ * primary, in particular every create, update and transaction, and status checks such as $ingest-status
+ * that must see the latest writes.
+ *
+ * Read-your-writes: after a client has written, its reads stay on the primary for
+ * lhsc.datasource.replica.sticky-ms, long enough for a healthy replica to catch up. A client is the
+ * value of the lhsc.datasource.replica.client-header header when set (e.g. behind a proxy), else the
+ * remote address.
+ */
+@Component
+@Interceptor(order = ReplicaRoutingInterceptor.ORDER)
+public class ReplicaRoutingInterceptor {
+
+    // Ahead of the other POST_PROCESSED hooks: raw reads and streamed pages query from inside them
+    static final int ORDER = -100;
+
+    private static final Set<RestOperationTypeEnum> READS = EnumSet.of(
+            RestOperationTypeEnum.READ, RestOperationTypeEnum.VREAD,
+            RestOperationTypeEnum.SEARCH_TYPE, RestOperationTypeEnum.SEARCH_SYSTEM, RestOperationTypeEnum.GET_PAGE,
+            RestOperationTypeEnum.HISTORY_INSTANCE, RestOperationTypeEnum.HISTORY_TYPE, RestOperationTypeEnum.HISTORY_SYSTEM);
+
+    private static final Set<RestOperationTypeEnum> OPERATIONS = EnumSet.of(
+            RestOperationTypeEnum.EXTENDED_OPERATION_SERVER, RestOperationTypeEnum.EXTENDED_OPERATION_TYPE,
+            RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE);
+
+    private final boolean enabled;
+    private final Set<String> replicaOperations;
+    private final String clientHeader;
+    // Clients that wrote within the sticky window
+    private final Cache<String, Boolean> recentWriters;
+
+    @Autowired
+    public ReplicaRoutingInterceptor(
+            @Value("${lhsc.datasource.replica.urls:}") String replicaUrls,
+            @Value("${lhsc.datasource.replica.operations:$everything,$lastn,$trend,$stats}") String replicaOperations,
+            @Value("${lhsc.datasource.replica.sticky-ms:5000}") long stickyMillis,
+            @Value("${lhsc.datasource.replica.client-header:}") String clientHeader) {
+        this.enabled = !replicaUrls.isBlank();
+        this.replicaOperations = Arrays.stream(replicaOperations.split(","))
+                .map(String::trim)
+                .filter(operation -> !operation.isEmpty())
+                .collect(Collectors.toSet());
+        this.clientHeader = clientHeader.isBlank() ? null : clientHeader.trim();
+        this.recentWriters = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMillis(stickyMillis))
+                .maximumSize(100_000)
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+    public boolean route(ServletRequestDetails theRequestDetails) {
+        if (isWrite(theRequestDetails)) {
+            recentWriters.put(clientOf(theRequestDetails), Boolean.TRUE);
+        } else if (mayUseReplica(theRequestDetails) && recentWriters.getIfPresent(clientOf(theRequestDetails)) == null) {
+            DataSourceRouting.set(DataSourceRouting.Target.REPLICA);
+        }
+        return true;
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void completed(ServletRequestDetails theRequestDetails) {
+        if (isWrite(theRequestDetails)) {
+            // The window counts from the end of the write, however long it took
+            recentWriters.put(clientOf(theRequestDetails), Boolean.TRUE);
+        }
+        DataSourceRouting.clear();
+    }
+
+    private static boolean isWrite(ServletRequestDetails theRequestDetails) {
+        RequestTypeEnum requestType = theRequestDetails.getRequestType();
+        return requestType != RequestTypeEnum.GET && requestType != RequestTypeEnum.HEAD
+                && requestType != RequestTypeEnum.OPTIONS;
+    }
+
+    private boolean mayUseReplica(ServletRequestDetails theRequestDetails) {
+        if (theRequestDetails.getRequestType() != RequestTypeEnum.GET) {
+            return false;
+        }
+        RestOperationTypeEnum operationType = theRequestDetails.getRestOperationType();
+        return READS.contains(operationType)
+                || (OPERATIONS.contains(operationType) && replicaOperations.contains(theRequestDetails.getOperation()));
+    }
+
+    private String clientOf(ServletRequestDetails theRequestDetails) {
+        if (clientHeader != null) {
+            String client = theRequestDetails.getHeader(clientHeader);
+            if (client != null && !client.isBlank()) {
+                return client;
+            }
+        }
+        return theRequestDetails.getServletRequest().getRemoteAddr();
+    }
+}
@@ -0,0 +1,195 @@
+package com.masterehr.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records per-request timers for every FHIR operation, tagged with the operation (read,
+ * search-type, create, update, ...) and resource type, and split into phases:
+ *
+ *   lhsc.fhir.request        whole request, from HAPI receiving it until the response is written
+ *   lhsc.fhir.request.phase  phase=db         time in Spring Data repository calls
+ *                            phase=parse      parsing stored resource_json (cache misses only)
+ *                            phase=transform  the rest of the provider work (mapping, paging, includes)
+ *                            phase=encode     serializing and writing the response
+ *
+ * All timers publish p50/p95/p99 and a percentile histogram. Bundle responses also record
+ * lhsc.fhir.bundle.entries (entries per Bundle) and lhsc.fhir.search.results (Bundle.total).
+ * Streamed search Bundles (BundleStreamer) are written by the provider itself, so for them the
+ * encode phase is part of transform and the Bundle sizes are reported through recordBundle.
+ *
+ * The first request to succeed also sets lhsc.startup.first-request (gauge, ms since JVM start), the
+ * time-to-first-successful-request of this instance.
+ */
+@Component
+@Interceptor
+public class RequestMetricsInterceptor {
+
+    // Attributes on RequestDetails; the request thread carries the phase timings themselves
+    private static final String START = RequestMetricsInterceptor.class.getName() + ".start";
+    private static final String HANDLER_START = RequestMetricsInterceptor.class.getName() + ".handlerStart";
+    private static final String RESPONSE_START = RequestMetricsInterceptor.class.getName() + ".responseStart";
+    private static final String SUCCEEDED = RequestMetricsInterceptor.class.getName() + ".succeeded";
+    private static final String BUNDLE_RECORDED = RequestMetricsInterceptor.class.getName() + ".bundleRecorded";
+
+    private static final Logger log = LoggerFactory.getLogger(RequestMetricsInterceptor.class);
+
+    private final MeterRegistry meterRegistry;
+    private final AtomicBoolean firstSuccessRecorded = new AtomicBoolean();
+
+    @Autowired
+    public RequestMetricsInterceptor(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+    public boolean requestReceived(RequestDetails theRequestDetails) {
+        theRequestDetails.getUserData().put(START, System.nanoTime());
+        RequestTimings.start();
+        return true;
+    }
+
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+    public void handlerStarting(RequestDetails theRequestDetails) {
+        theRequestDetails.getUserData().put(HANDLER_START, System.nanoTime());
+    }
+
+    /**
+     * Called after the provider has run and the response Bundle has been built, just before encoding.
+     */
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public boolean responseReady(RequestDetails theRequestDetails, IBaseResource theResponseObject) {
+        theRequestDetails.getUserData().put(RESPONSE_START, System.nanoTime());
+        if (theResponseObject instanceof Bundle bundle
+                && !theRequestDetails.getUserData().containsKey(BUNDLE_RECORDED)) {
+            recordBundle(theRequestDetails, bundle.getEntry().size(), bundle.hasTotal() ? bundle.getTotal() : null);
+        }
+        return true;
+    }
+
+    /**
+     * Records the size of a Bundle response that was not built as a Bundle object.
+     * @param theTotal Bundle.total, or null if the response has none.
+     */
+    public void recordBundle(RequestDetails theRequestDetails, int theEntries, Integer theTotal) {
+        theRequestDetails.getUserData().put(BUNDLE_RECORDED, Boolean.TRUE);
+        Tags tags = tags(theRequestDetails);
+        DistributionSummary.builder("lhsc.fhir.bundle.entries")
+                .description("Entries per returned Bundle")
+                .tags(tags)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry)
+                .record(theEntries);
+        if (theTotal != null) {
+            DistributionSummary.builder("lhsc.fhir.search.results")
+                    .description("Bundle.total of search results")
+                    .tags(tags)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(meterRegistry)
+                    .record(theTotal);
+        }
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+    public void completedNormally(RequestDetails theRequestDetails) {
+        theRequestDetails.getUserData().put(SUCCEEDED, Boolean.TRUE);
+    }
+
+    @Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+    public void completed(RequestDetails theRequestDetails) {
+        try {
+            Long start = (Long) theRequestDetails.getUserData().get(START);
+            if (start == null) {
+                return;
+            }
+            long end = System.nanoTime();
+            Long handlerStart = (Long) theRequestDetails.getUserData().get(HANDLER_START);
+            Long responseStart = (Long) theRequestDetails.getUserData().get(RESPONSE_START);
+
+            boolean succeeded = succeeded(theRequestDetails);
+            // Also the requests answered by interceptors, often the first ones a new instance gets (plain reads)
+            if (succeeded && firstSuccessRecorded.compareAndSet(false, true)) {
+                recordFirstSuccess(theRequestDetails);
+            }
+            Tags tags = tags(theRequestDetails).and("outcome", succeeded ? "success" : "error");
+            timer("lhsc.fhir.request", "Total FHIR request time", tags).record(end - start, TimeUnit.NANOSECONDS);
+
+            long db = RequestTimings.get(RequestTimings.Phase.DB);
+            long parse = RequestTimings.get(RequestTimings.Phase.PARSE);
+            long encode = (responseStart != null) ? end - responseStart : 0;
+            long handler = (handlerStart != null) ? ((responseStart != null) ? responseStart : end) - handlerStart : 0;
+            long transform = Math.max(0, handler - db - parse);
+
+            recordPhase(tags, "db", db);
+            recordPhase(tags, "parse", parse);
+            recordPhase(tags, "transform", transform);
+            recordPhase(tags, "encode", encode);
+        } finally {
+            RequestTimings.clear();
+        }
+    }
+
+    /**
+     * Whether the response has a non-error status. COMPLETED_NORMALLY alone is not enough: it is not called
+     * for requests answered by an interceptor (RawJsonReadInterceptor, BundleStreamer, AsyncCreateInterceptor).
+     */
+    private static boolean succeeded(RequestDetails theRequestDetails) {
+        if (theRequestDetails instanceof ServletRequestDetails servletRequestDetails
+                && servletRequestDetails.getServletResponse() != null) {
+            return servletRequestDetails.getServletResponse().getStatus() < 400;
+        }
+        return theRequestDetails.getUserData().containsKey(SUCCEEDED);
+    }
+
+    private void recordFirstSuccess(RequestDetails theRequestDetails) {
+        long uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        Gauge.builder("lhsc.startup.first-request", () -> uptimeMillis)
+                .description("Milliseconds from JVM start until the first FHIR request succeeded")
+                .strongReference(true)
+                .register(meterRegistry);
+        log.info("First successful FHIR request ({} {}) completed {} ms after JVM start",
+                theRequestDetails.getRequestType(), theRequestDetails.getRequestPath(), uptimeMillis);
+    }
+
+    private void recordPhase(Tags tags, String phase, long nanos) {
+        timer("lhsc.fhir.request.phase", "FHIR request time by phase", tags.and("phase", phase))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String name, String description, Tags tags) {
+        return Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static Tags tags(RequestDetails theRequestDetails) {
+        String operation = (theRequestDetails.getRestOperationType() != null)
+                ? theRequestDetails.getRestOperationType().getCode()
+                : "unknown";
+        String resourceType = (theRequestDetails.getResourceName() != null)
+                ? theRequestDetails.getResourceName()
+                : "system";
+        return Tags.of("operation", operation, "resourceType", resourceType);
+    }
+}
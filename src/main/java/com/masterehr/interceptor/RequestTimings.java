@@ -0,0 +1,42 @@
+package com.masterehr.interceptor;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Collects how long the current request spent in each phase. The parts of the code that know
+ * about a phase (repository calls, JSON parsing) add their time here; RequestMetricsInterceptor
+ * starts and publishes the timings. Work done outside a request (e.g. bulk export) is dropped.
+ */
+public final class RequestTimings {
+
+    public enum Phase { DB, PARSE }
+
+    private static final ThreadLocal<Map<Phase, Long>> CURRENT = new ThreadLocal<>();
+
+    private RequestTimings() {
+    }
+
+    /**
+     * Adds elapsed time to a phase of the current request, if there is one.
+     */
+    public static void add(Phase phase, long nanos) {
+        Map<Phase, Long> timings = CURRENT.get();
+        if (timings != null) {
+            timings.merge(phase, nanos, Long::sum);
+        }
+    }
+
+    static void start() {
+        CURRENT.set(new EnumMap<>(Phase.class));
+    }
+
+    static long get(Phase phase) {
+        Map<Phase, Long> timings = CURRENT.get();
+        return (timings == null) ? 0 : timings.getOrDefault(phase, 0L);
+    }
+
+    static void clear() {
+        CURRENT.remove();
+    }
+}
@@ -0,0 +1,54 @@
+package com.masterehr.interceptor;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content negotiation checks shared by the paths that write stored JSON directly to the response
+ * (RawJsonReadInterceptor, BundleStreamer) instead of letting HAPI encode a resource.
+ */
+public final class ResponseFormats {
+
+    // Any of these parameters means the resource has to be transformed before it is returned
+    private static final Set<String> TRANSFORMING_PARAMETERS = Set.of(
+            Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS, Constants.PARAM_PRETTY);
+
+    private ResponseFormats() {
+    }
+
+    /**
+     * @return true if the client wants compact JSON exactly as stored: no _summary, _elements,
+     *         _pretty, XML or the HTML highlighter.
+     */
+    public static boolean wantsPlainJson(RequestDetails theRequestDetails, HttpServletRequest theRequest) {
+        Map<String, String[]> parameters = theRequestDetails.getParameters();
+        for (String parameter : TRANSFORMING_PARAMETERS) {
+            if (parameters.containsKey(parameter)) {
+                return false;
+            }
+        }
+
+        String[] format = parameters.get(Constants.PARAM_FORMAT);
+        if (format != null) {
+            return format.length == 1 && format[0].toLowerCase().contains("json");
+        }
+
+        // No Accept header means the server default, which is JSON. Browsers ask for HTML
+        // and should keep getting the ResponseHighlighterInterceptor page.
+        String accept = theRequest.getHeader(Constants.HEADER_ACCEPT);
+        if (accept == null || accept.isBlank()) {
+            return true;
+        }
+        String lowerAccept = accept.toLowerCase();
+        return !lowerAccept.contains("xml") && !lowerAccept.contains("html");
+    }
+
+    public static boolean acceptsGzip(HttpServletRequest theRequest) {
+        String acceptEncoding = theRequest.getHeader(Constants.HEADER_ACCEPT_ENCODING);
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+    }
+}
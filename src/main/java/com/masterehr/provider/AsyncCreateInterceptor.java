@@ -0,0 +1,101 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * POST /fhir/Encounter and /fhir/Observation with "Prefer: respond-async": the resource is handed to
+ * AsyncIngestService and the request answered 202 Accepted, with Content-Location pointing at
+ * $ingest-status?_id=[type]/[id] (see AsyncIngestProvider) and an informational OperationOutcome.
+ *
+ * Everything else, including conditional creates (If-None-Exist) and requests the service cannot take
+ * right now, continues to the normal @Create methods. The body read here is kept by HAPI for them.
+ */
+@Component
+@Interceptor
+public class AsyncCreateInterceptor {
+
+    private final AsyncIngestService ingestService;
+    private final FhirContext fhirContext;
+
+    @Autowired
+    public AsyncCreateInterceptor(AsyncIngestService ingestService, FhirContext fhirContext) {
+        this.ingestService = ingestService;
+        this.fhirContext = fhirContext;
+    }
+
+    /**
+     * @return false if the create was accepted for write-behind and answered, true to let HAPI continue.
+     */
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+    public boolean acceptAsync(RequestDetails theRequestDetails, HttpServletResponse theResponse) throws IOException {
+        if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.CREATE
+                || !AsyncIngestService.INGESTIBLE_TYPES.contains(theRequestDetails.getResourceName())
+                || theRequestDetails.getHeader(Constants.HEADER_IF_NONE_EXIST) != null) {
+            return true;
+        }
+        String prefer = theRequestDetails.getHeader(Constants.HEADER_PREFER);
+        if (prefer == null || !prefer.contains(Constants.HEADER_PREFER_RESPOND_ASYNC)) {
+            return true;
+        }
+
+        Optional<String> accepted = ingestService.submit(parse(theRequestDetails));
+        if (accepted.isEmpty()) {
+            return true;
+        }
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics("Accepted as " + accepted.get() + "; it will be stored shortly");
+
+        theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+        theResponse.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                theRequestDetails.getFhirServerBase() + "/$ingest-status?_id=" + accepted.get());
+        theResponse.setContentType(Constants.CT_FHIR_JSON_NEW);
+        theResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        try (Writer writer = new OutputStreamWriter(theResponse.getOutputStream(), StandardCharsets.UTF_8)) {
+            fhirContext.newJsonParser().encodeResourceToWriter(outcome, writer);
+        }
+        return false;
+    }
+
+    private Resource parse(RequestDetails theRequestDetails) {
+        Class<? extends Resource> type = "Encounter".equals(theRequestDetails.getResourceName())
+                ? Encounter.class
+                : Observation.class;
+        EncodingEnum encoding = RestfulServerUtils.determineRequestEncodingNoDefault(theRequestDetails);
+        if (encoding == null) {
+            encoding = EncodingEnum.JSON;
+        }
+        String body = new String(theRequestDetails.loadRequestContents(), StandardCharsets.UTF_8);
+        try {
+            return encoding.newParser(fhirContext).parseResource(type, body);
+        } catch (DataFormatException e) {
+            throw new InvalidRequestException("Invalid " + theRequestDetails.getResourceName() + ": " + e.getMessage());
+        }
+    }
+}
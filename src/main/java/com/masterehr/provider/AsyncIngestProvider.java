@@ -0,0 +1,85 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Status of a create accepted with "Prefer: respond-async" (see AsyncCreateInterceptor), registered as a plain provider.
+ *
+ * GET /fhir/$ingest-status?_id=Observation/123 -> 202 while queued; once processed, 200 with a batch-response
+ * Bundle whose single entry carries the outcome: 201 and the location, or 400 and why it was rejected.
+ */
+@Component
+public class AsyncIngestProvider {
+
+    private final AsyncIngestService ingestService;
+    private final FhirContext fhirContext;
+
+    @Autowired
+    public AsyncIngestProvider(AsyncIngestService ingestService, FhirContext fhirContext) {
+        this.ingestService = ingestService;
+        this.fhirContext = fhirContext;
+    }
+
+    @Operation(name = "$ingest-status", idempotent = true, manualResponse = true)
+    public void ingestStatus(
+            @OperationParam(name = "_id", min = 1) StringType theId,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        IdType id = new IdType(theId.getValue());
+        if (!id.hasResourceType() || !id.isIdPartValidLong()) {
+            throw new InvalidRequestException("_id must be [type]/[id], e.g. Observation/123");
+        }
+        String resourceType = id.getResourceType();
+        int idPart = id.getIdPartAsLong().intValue();
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+
+        Bundle.BundleEntryResponseComponent outcome = new Bundle.BundleEntryResponseComponent();
+        switch (ingestService.getStatus(resourceType, idPart)) {
+            case QUEUED -> {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setHeader("X-Progress", "Queued");
+                response.setHeader(Constants.HEADER_RETRY_AFTER, "1");
+                return;
+            }
+            case COMMITTED -> outcome.setStatus("201 Created")
+                    .setLocation(ResourceVersions.versionedId(resourceType, idPart, ResourceVersions.FIRST_VERSION).getValue());
+            case FAILED -> {
+                OperationOutcome failure = new OperationOutcome();
+                failure.addIssue()
+                        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                        .setCode(OperationOutcome.IssueType.PROCESSING)
+                        .setDiagnostics(ingestService.getFailure(resourceType, idPart));
+                outcome.setStatus("400 Bad Request").setOutcome(failure);
+            }
+            case UNKNOWN -> throw new ResourceNotFoundException("No accepted resource " + id.getValue());
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.BATCHRESPONSE);
+        bundle.addEntry().setResponse(outcome);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(Constants.CT_FHIR_JSON_NEW);
+        response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        try (Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8)) {
+            fhirContext.newJsonParser().encodeResourceToWriter(bundle, writer);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.repository.ResourceBatchWriter;
+import com.masterehr.repository.ResourceIdAllocator;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind ingestion of Encounter and Observation creates sent with "Prefer: respond-async"
+ * (see AsyncCreateInterceptor).
+ *
+ * submit() validates the resource by mapping it to its entity, assigns its id and version, appends it
+ * to the IngestJournal and queues it; the request is answered 202 without touching the database.
+ * A single writer thread drains the queue into JDBC batches of up to lhsc.ingest.batch-size rows
+ * (ResourceBatchWriter), so under load many creates share one round trip and one commit.
+ *
+ * If the database is unavailable the writer keeps retrying the same batch; nothing is dropped because
+ * every queued resource is still in the journal. A batch that violates a constraint (e.g. an unknown
+ * patient) is retried row by row and only the offending resources are marked failed.
+ * On startup the journal is replayed before any new resource is accepted; resources that already made
+ * it to the database before a crash are recognized by their id and skipped.
+ *
+ * Metrics: lhsc.ingest.queue.depth and lhsc.ingest.lag (age of the oldest uncommitted resource, gauges),
+ * lhsc.ingest.commit.lag (accept -> commit, timer) and lhsc.ingest.resources (counter, tag outcome).
+ */
+@Component
+public class AsyncIngestService {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncIngestService.class);
+
+    public enum Status { QUEUED, COMMITTED, FAILED, UNKNOWN }
+
+    static final Set<String> INGESTIBLE_TYPES = Set.of("Encounter", "Observation");
+
+    private static final int MAX_REMEMBERED_FAILURES = 10_000;
+
+    private static final class Pending {
+        final String resourceType;
+        final int id;
+        final long segment;
+        final long acceptedAt;
+        final Object entity;
+        final boolean replayed;
+        volatile boolean done;
+
+        Pending(String resourceType, int id, long segment, long acceptedAt, Object entity, boolean replayed) {
+            this.resourceType = resourceType;
+            this.id = id;
+            this.segment = segment;
+            this.acceptedAt = acceptedAt;
+            this.entity = entity;
+            this.replayed = replayed;
+        }
+
+        String key() {
+            return resourceType + "/" + id;
+        }
+    }
+
+    private final EncounterProvider encounterProvider;
+    private final ObservationProvider observationProvider;
+    private final ResourceBatchWriter batchWriter;
+    private final ResourceIdAllocator idAllocator;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transaction;
+    private final FhirContext fhirContext;
+    private final IngestJournal journal;
+    private final boolean enabled;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final long retryMillis;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<String, String> failures = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_REMEMBERED_FAILURES;
+        }
+    });
+    private final Timer commitLag;
+    private final Counter committedResources;
+    private final Counter failedResources;
+    // The first resource of the batch being written; it has left the queue but is not committed yet
+    private volatile Pending writing;
+    private volatile boolean accepting;
+    private volatile boolean stopped;
+    private Thread writer;
+
+    @Autowired
+    public AsyncIngestService(EncounterProvider encounterProvider, ObservationProvider observationProvider,
+            ResourceBatchWriter batchWriter, ResourceIdAllocator idAllocator, JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager, FhirContext fhirContext, MeterRegistry meterRegistry,
+            @Value("${lhsc.ingest.async.enabled:true}") boolean enabled,
+            @Value("${lhsc.ingest.journal-directory:${java.io.tmpdir}/lhsc-ingest}") String journalDirectory,
+            @Value("${lhsc.ingest.journal-segment-bytes:67108864}") long segmentBytes,
+            @Value("${lhsc.ingest.fsync:true}") boolean fsync,
+            @Value("${lhsc.ingest.queue-capacity:20000}") int queueCapacity,
+            @Value("${lhsc.ingest.batch-size:1000}") int batchSize,
+            @Value("${lhsc.ingest.retry-ms:2000}") long retryMillis) {
+        this.encounterProvider = encounterProvider;
+        this.observationProvider = observationProvider;
+        this.batchWriter = batchWriter;
+        this.idAllocator = idAllocator;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transaction = new TransactionTemplate(transactionManager);
+        this.fhirContext = fhirContext;
+        this.journal = new IngestJournal(Paths.get(journalDirectory), segmentBytes, fsync);
+        this.enabled = enabled;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+        this.retryMillis = retryMillis;
+
+        Gauge.builder("lhsc.ingest.queue.depth", queue, BlockingQueue::size)
+                .description("Accepted resources waiting for the ingest writer")
+                .register(meterRegistry);
+        Gauge.builder("lhsc.ingest.lag", this, AsyncIngestService::oldestUncommittedAgeMillis)
+                .description("Age of the oldest accepted resource not yet in the database")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        this.commitLag = Timer.builder("lhsc.ingest.commit.lag")
+                .description("Time from accepting a resource to committing it to the database")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.committedResources = Counter.builder("lhsc.ingest.resources").tag("outcome", "committed")
+                .register(meterRegistry);
+        this.failedResources = Counter.builder("lhsc.ingest.resources").tag("outcome", "failed")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Replays the journal and starts the writer. Until the replay is queued, async creates are
+     * answered synchronously.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        List<IngestJournal.Entry> entries;
+        try {
+            entries = journal.open();
+        } catch (IOException e) {
+            log.error("Could not open the ingest journal; async creates will be handled synchronously", e);
+            return;
+        }
+        for (IngestJournal.Entry entry : entries) {
+            replay(entry);
+        }
+        if (!entries.isEmpty()) {
+            log.info("Replaying {} resources from the ingest journal", entries.size());
+        }
+
+        writer = new Thread(this::writeLoop, "ingest-writer");
+        writer.setDaemon(true);
+        writer.start();
+        accepting = true;
+    }
+
+    /**
+     * Lets the writer finish its current batch; whatever is still queued stays in the journal for the next start.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        accepting = false;
+        stopped = true;
+        if (writer != null) {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Could not close the ingest journal", e);
+        }
+    }
+
+    /**
+     * Accepts a new Encounter or Observation for write-behind. On success the resource carries its
+     * assigned id and meta, exactly as it will be stored.
+     * @return The assigned "Type/id", or empty if the resource must be created synchronously instead
+     *         (async ingestion off or not started, queue full, or the journal cannot be written).
+     */
+    public Optional<String> submit(Resource resource) {
+        if (!accepting || queue.size() >= queueCapacity) {
+            return Optional.empty();
+        }
+        String resourceType = resource.fhirType();
+        // Map first: a resource the entity mapping rejects is rejected before it is journaled
+        Object entity = toEntity(resource);
+
+        int id = idAllocator.nextId();
+        resource.setId(String.valueOf(id));
+        LocalDateTime lastUpdated = ResourceVersions.stamp(resource, ResourceVersions.FIRST_VERSION);
+        String json = fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(resource);
+        complete(entity, id, lastUpdated, json);
+
+        long acceptedAt = System.currentTimeMillis();
+        long segment;
+        try {
+            segment = journal.append(resourceType, id, acceptedAt, json);
+        } catch (IOException e) {
+            log.warn("Could not append to the ingest journal; creating {}/{} synchronously", resourceType, id, e);
+            return Optional.empty();
+        }
+        enqueue(new Pending(resourceType, id, segment, acceptedAt, entity, false));
+        return Optional.of(resourceType + "/" + id);
+    }
+
+    /**
+     * Where an accepted resource is. COMMITTED is answered from the database, so it also holds after a restart.
+     */
+    public Status getStatus(String resourceType, int id) {
+        String key = resourceType + "/" + id;
+        if (pending.containsKey(key)) {
+            return Status.QUEUED;
+        }
+        if (failures.containsKey(key)) {
+            return Status.FAILED;
+        }
+        if (INGESTIBLE_TYPES.contains(resourceType) && !existingIds(resourceType, List.of(id)).isEmpty()) {
+            return Status.COMMITTED;
+        }
+        return Status.UNKNOWN;
+    }
+
+    /**
+     * @return Why a FAILED resource was rejected, or null.
+     */
+    public String getFailure(String resourceType, int id) {
+        return failures.get(resourceType + "/" + id);
+    }
+
+    private void replay(IngestJournal.Entry entry) {
+        try {
+            Resource resource = (Resource) fhirContext.newJsonParser().parseResource(entry.json());
+            Object entity = toEntity(resource);
+            LocalDateTime lastUpdated = LocalDateTime.ofInstant(
+                    resource.getMeta().getLastUpdated().toInstant(), ZoneId.systemDefault());
+            complete(entity, entry.id(), lastUpdated, entry.json());
+            enqueue(new Pending(entry.resourceType(), entry.id(), entry.segment(), entry.acceptedAt(), entity, true));
+        } catch (RuntimeException e) {
+            // It was accepted once, so this should not happen; keep the journal from replaying it forever
+            log.error("Dropping unreadable journaled resource {}/{}", entry.resourceType(), entry.id(), e);
+            failures.put(entry.resourceType() + "/" + entry.id(), "The journaled resource could not be read");
+            journal.committed(entry.segment());
+            failedResources.increment();
+        }
+    }
+
+    private void enqueue(Pending item) {
+        pending.put(item.key(), item);
+        queue.add(item);
+    }
+
+    private Object toEntity(Resource resource) {
+        if (resource instanceof Encounter encounter) {
+            return encounterProvider.transformToEncounterEntity(encounter, new EncounterEntity());
+        }
+        if (resource instanceof Observation observation) {
+            return observationProvider.transformToObservationEntity(observation, new ObservationEntity());
+        }
+        throw new IllegalArgumentException("Cannot ingest " + resource.fhirType() + " asynchronously");
+    }
+
+    private static void complete(Object entity, int id, LocalDateTime lastUpdated, String json) {
+        if (entity instanceof EncounterEntity encounter) {
+            encounter.setEncounterId(id);
+            encounter.setLastUpdated(lastUpdated);
+            encounter.setResourceJson(json);
+        } else if (entity instanceof ObservationEntity observation) {
+            observation.setObservationId(id);
+            observation.setLastUpdated(lastUpdated);
+            observation.setResourceJson(json);
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (!stopped) {
+            try {
+                Pending first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Everything that queued up while the previous batch was written goes out together
+                queue.drainTo(batch, batchSize - 1);
+                writing = first;
+                writeUntilDone(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Ingest writer failed", e);
+            } finally {
+                writing = null;
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeUntilDone(List<Pending> batch) throws InterruptedException {
+        while (!stopped) {
+            try {
+                write(batch);
+                return;
+            } catch (RuntimeException e) {
+                // Typically the database is unreachable: the batch is still journaled, so wait and try again
+                log.warn("Writing {} ingested resources failed; retrying in {} ms", batch.size(), retryMillis, e);
+                Thread.sleep(retryMillis);
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<Pending> open = new ArrayList<>(batch.size());
+        for (Pending item : batch) {
+            if (!item.done) {
+                open.add(item);
+            }
+        }
+        open = withoutStored(open);
+        if (open.isEmpty()) {
+            return;
+        }
+
+        try {
+            insert(open);
+            open.forEach(this::committed);
+        } catch (DataIntegrityViolationException e) {
+            // One bad row fails the whole batch; write them one by one to find it
+            for (Pending item : open) {
+                try {
+                    insert(List.of(item));
+                    committed(item);
+                } catch (DataIntegrityViolationException rowFailure) {
+                    failed(item, rowFailure);
+                }
+            }
+        }
+    }
+
+    private void insert(List<Pending> items) {
+        List<EncounterEntity> encounters = new ArrayList<>();
+        List<ObservationEntity> observations = new ArrayList<>();
+        for (Pending item : items) {
+            if (item.entity instanceof EncounterEntity encounter) {
+                encounters.add(encounter);
+            } else {
+                observations.add((ObservationEntity) item.entity);
+            }
+        }
+        // Encounters first: an Observation may point at an Encounter from the same batch
+        transaction.executeWithoutResult(status -> {
+            batchWriter.insertEncounters(encounters);
+            batchWriter.insertObservations(observations);
+            observationProvider.indexInsertedObservations(observations);
+        });
+    }
+
+    // Replayed resources may have been committed just before the crash that left them in the journal
+    private List<Pending> withoutStored(List<Pending> items) {
+        Map<String, List<Integer>> replayedIds = new LinkedHashMap<>();
+        for (Pending item : items) {
+            if (item.replayed) {
+                replayedIds.computeIfAbsent(item.resourceType, t -> new ArrayList<>()).add(item.id);
+            }
+        }
+        if (replayedIds.isEmpty()) {
+            return items;
+        }
+        Set<String> stored = new HashSet<>();
+        replayedIds.forEach((type, ids) -> existingIds(type, ids).forEach(id -> stored.add(type + "/" + id)));
+
+        List<Pending> remaining = new ArrayList<>(items.size());
+        for (Pending item : items) {
+            if (stored.contains(item.key())) {
+                committed(item);
+            } else {
+                remaining.add(item);
+            }
+        }
+        return remaining;
+    }
+
+    private List<Integer> existingIds(String resourceType, List<Integer> ids) {
+        String table = resourceType.equals("Encounter") ? "Encounters" : "Observations";
+        String idColumn = resourceType.equals("Encounter") ? "encounter_id" : "observation_id";
+        String placeholders = String.join(",", Collections.nCopies(ids.size(), "?"));
+        return jdbcTemplate.queryForList("SELECT " + idColumn + " FROM " + table + " WHERE " + idColumn
+                + " IN (" + placeholders + ")", Integer.class, ids.toArray());
+    }
+
+    private void committed(Pending item) {
+        item.done = true;
+        pending.remove(item.key());
+        journal.committed(item.segment);
+        commitLag.record(System.currentTimeMillis() - item.acceptedAt, TimeUnit.MILLISECONDS);
+        committedResources.increment();
+    }
+
+    private void failed(Pending item, DataIntegrityViolationException cause) {
+        log.warn("Rejected ingested resource {}: {}", item.key(), cause.getMostSpecificCause().getMessage());
+        item.done = true;
+        failures.put(item.key(), cause.getMostSpecificCause().getMessage());
+        pending.remove(item.key());
+        journal.committed(item.segment);
+        failedResources.increment();
+    }
+
+    private double oldestUncommittedAgeMillis() {
+        Pending oldest = writing;
+        if (oldest == null) {
+            oldest = queue.peek();
+        }
+        return (oldest == null) ? 0 : System.currentTimeMillis() - oldest.acceptedAt;
+    }
+}
@@ -0,0 +1,69 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * DELETE /fhir/$export-poll-status?_jobId=... cancels a running Bulk Data export, or deletes a finished one
+ * and its files: 202 Accepted, or 404 for an unknown job. HAPI only routes GET and POST to operations, so
+ * the request is answered here, before HAPI looks for a method to handle it.
+ */
+@Component
+@Interceptor
+public class BulkExportDeleteInterceptor {
+
+    private static final String STATUS_PATH = "/$export-poll-status";
+
+    private final BulkExportService exportService;
+    private final FhirContext fhirContext;
+
+    @Autowired
+    public BulkExportDeleteInterceptor(BulkExportService exportService, FhirContext fhirContext) {
+        this.exportService = exportService;
+        this.fhirContext = fhirContext;
+    }
+
+    /**
+     * @return false if this was a DELETE of an export and has been answered, true to let HAPI continue.
+     */
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED)
+    public boolean deleteExport(HttpServletRequest theRequest, HttpServletResponse theResponse) throws IOException {
+        if (!"DELETE".equals(theRequest.getMethod()) || !STATUS_PATH.equals(theRequest.getPathInfo())) {
+            return true;
+        }
+        String jobId = theRequest.getParameter("_jobId");
+        if (jobId == null || !exportService.delete(jobId)) {
+            writeOutcome(theResponse, HttpServletResponse.SC_NOT_FOUND, OperationOutcome.IssueSeverity.ERROR,
+                    OperationOutcome.IssueType.NOTFOUND, "Unknown export job: " + jobId);
+        } else {
+            writeOutcome(theResponse, HttpServletResponse.SC_ACCEPTED, OperationOutcome.IssueSeverity.INFORMATION,
+                    OperationOutcome.IssueType.INFORMATIONAL, "Export " + jobId + " deleted");
+        }
+        return false;
+    }
+
+    private void writeOutcome(HttpServletResponse theResponse, int status, OperationOutcome.IssueSeverity severity,
+            OperationOutcome.IssueType type, String message) throws IOException {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(severity).setCode(type).setDiagnostics(message);
+        theResponse.setStatus(status);
+        theResponse.setContentType(Constants.CT_FHIR_JSON_NEW);
+        theResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        try (Writer writer = new OutputStreamWriter(theResponse.getOutputStream(), StandardCharsets.UTF_8)) {
+            fhirContext.newJsonParser().encodeResourceToWriter(outcome, writer);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * FHIR Bulk Data export (https://hl7.org/fhir/uv/bulkdata/export.html), registered as a plain provider.
+ *
+ * Kick-off:  GET /fhir/$export or /fhir/Patient/$export with "Prefer: respond-async" -> 202 + Content-Location
+ * Status:    GET /fhir/$export-poll-status?_jobId=... -> 202 while running, 200 + manifest when done
+ * Download:  GET /fhir/$export-download?_jobId=...&_file=... -> the NDJSON file
+ * Delete:    DELETE /fhir/$export-poll-status?_jobId=... -> 202, cancels or removes the export (BulkExportDeleteInterceptor)
+ *
+ * All patient data lives in the Patient compartment, so a Patient-level export contains the same
+ * three resource types as a system-level one.
+ */
+@Component
+public class BulkExportProvider {
+
+    private static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+
+    private final BulkExportService exportService;
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public BulkExportProvider(BulkExportService exportService, ObjectMapper objectMapper) {
+        this.exportService = exportService;
+        this.objectMapper = objectMapper;
+    }
+
+    @Operation(name = "$export", idempotent = true, manualResponse = true)
+    public void exportSystem(
+            @OperationParam(name = "_type") StringType theType,
+            @OperationParam(name = "_outputFormat") StringType theOutputFormat,
+            ServletRequestDetails theRequestDetails) {
+        kickOff(theType, theOutputFormat, theRequestDetails);
+    }
+
+    @Operation(name = "$export", type = Patient.class, idempotent = true, manualResponse = true)
+    public void exportPatients(
+            @OperationParam(name = "_type") StringType theType,
+            @OperationParam(name = "_outputFormat") StringType theOutputFormat,
+            ServletRequestDetails theRequestDetails) {
+        kickOff(theType, theOutputFormat, theRequestDetails);
+    }
+
+    @Operation(name = "$export-poll-status", idempotent = true, manualResponse = true)
+    public void exportPollStatus(
+            @OperationParam(name = "_jobId", min = 1) StringType theJobId,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        BulkExportService.ExportJob job = findJob(theJobId);
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+
+        switch (job.getStatus()) {
+            case ACCEPTED, IN_PROGRESS -> {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                String current = job.getCurrentType();
+                response.setHeader("X-Progress", current == null ? "Queued" : "Exporting " + current);
+                response.setHeader(Constants.HEADER_RETRY_AFTER, "5");
+            }
+            case FAILED -> throw new InternalErrorException("Export " + job.getId() + " failed: " + job.getError());
+            case COMPLETED -> writeManifest(job, theRequestDetails.getFhirServerBase(), response);
+        }
+    }
+
+    @Operation(name = "$export-download", idempotent = true, manualResponse = true)
+    public void exportDownload(
+            @OperationParam(name = "_jobId", min = 1) StringType theJobId,
+            @OperationParam(name = "_file", min = 1) StringType theFile,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        Path file = exportService.getOutputFile(theJobId.getValue(), theFile.getValue())
+                .orElseThrow(() -> new ResourceNotFoundException("No export file " + theFile.getValue()));
+
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(NDJSON_CONTENT_TYPE);
+
+        String acceptEncoding = theRequestDetails.getHeader(Constants.HEADER_ACCEPT_ENCODING);
+        boolean clientAcceptsGzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        try (OutputStream out = response.getOutputStream()) {
+            if (clientAcceptsGzip) {
+                // The file is already gzipped, so send it untouched
+                response.setHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+                Files.copy(file, out);
+            } else {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(file), 64 * 1024)) {
+                    in.transferTo(out);
+                }
+            }
+        }
+    }
+
+    private void kickOff(StringType theType, StringType theOutputFormat, ServletRequestDetails theRequestDetails) {
+        String prefer = theRequestDetails.getHeader(Constants.HEADER_PREFER);
+        if (prefer == null || !prefer.contains(Constants.HEADER_PREFER_RESPOND_ASYNC)) {
+            throw new InvalidRequestException("$export requires the header 'Prefer: respond-async'");
+        }
+        if (theOutputFormat != null && !theOutputFormat.isEmpty() && !theOutputFormat.getValue().contains("ndjson")) {
+            throw new InvalidRequestException("Only NDJSON output is supported");
+        }
+
+        List<String> types;
+        try {
+            types = BulkExportService.parseTypes(theType != null ? theType.getValue() : null);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException(e.getMessage());
+        }
+
+        BulkExportService.ExportJob job = exportService.submit(theRequestDetails.getCompleteUrl(), types);
+
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                theRequestDetails.getFhirServerBase() + "/$export-poll-status?_jobId=" + job.getId());
+    }
+
+    private BulkExportService.ExportJob findJob(StringType theJobId) {
+        return exportService.getJob(theJobId.getValue())
+                .orElseThrow(() -> new ResourceNotFoundException("Unknown export job: " + theJobId.getValue()));
+    }
+
+    private void writeManifest(BulkExportService.ExportJob job, String serverBase, HttpServletResponse response)
+            throws IOException {
+        List<Map<String, Object>> output = new ArrayList<>();
+        for (BulkExportService.OutputFile file : job.getOutput()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("type", file.resourceType());
+            entry.put("url", serverBase + "/$export-download?_jobId=" + job.getId()
+                    + "&_file=" + URLEncoder.encode(file.fileName(), StandardCharsets.UTF_8));
+            entry.put("count", file.count());
+            output.add(entry);
+        }
+
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("transactionTime", job.getTransactionTime().toString());
+        manifest.put("request", job.getRequest());
+        manifest.put("requiresAccessToken", false);
+        manifest.put("output", output);
+        manifest.put("error", List.of());
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        try (OutputStream out = response.getOutputStream()) {
+            objectMapper.writeValue(out, manifest);
+        }
+    }
+}
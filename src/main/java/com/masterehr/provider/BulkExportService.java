@@ -0,0 +1,412 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.masterehr.config.DataSourceRouting;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.entity.PatientEntity;
+import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ObservationRepository;
+import com.masterehr.repository.PatientRepository;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs FHIR Bulk Data exports in the background and writes the results as gzipped NDJSON files.
+ *
+ * Rows are streamed from the repositories through a database cursor and written one line at a
+ * time, and each entity is detached as soon as it has been written, so memory use does not
+ * depend on the size of the tables. Exports run one at a time on a single low-priority thread
+ * and use a single database connection, so they cannot crowd out interactive requests.
+ *
+ * A finished export, its files included, is kept for lhsc.export.retention-minutes and then deleted.
+ * A client can delete it earlier, or cancel a running export, with DELETE on the status URL
+ * (see BulkExportDeleteInterceptor).
+ */
+@Component
+public class BulkExportService {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkExportService.class);
+
+    public static final List<String> EXPORTABLE_TYPES = List.of("Patient", "Encounter", "Observation");
+
+    private static final Pattern OUTPUT_FILE_NAME = Pattern.compile("[A-Za-z]+-\\d+\\.ndjson\\.gz");
+
+    public enum Status { ACCEPTED, IN_PROGRESS, COMPLETED, FAILED }
+
+    /** One output file of a finished export. */
+    public record OutputFile(String resourceType, String fileName, long count) {}
+
+    /** The state of one export, as reported by the status endpoint. */
+    public static class ExportJob {
+        private final String id = UUID.randomUUID().toString();
+        private final String request;
+        private final List<String> types;
+        private final Instant transactionTime = Instant.now();
+        private final List<OutputFile> output = Collections.synchronizedList(new ArrayList<>());
+        private volatile Status status = Status.ACCEPTED;
+        private volatile String currentType;
+        private volatile String error;
+        private volatile boolean cancelled;
+
+        ExportJob(String request, List<String> types) {
+            this.request = request;
+            this.types = types;
+        }
+
+        public String getId() { return id; }
+        public String getRequest() { return request; }
+        public List<String> getTypes() { return types; }
+        public Instant getTransactionTime() { return transactionTime; }
+        public List<OutputFile> getOutput() { return List.copyOf(output); }
+        public Status getStatus() { return status; }
+        public String getCurrentType() { return currentType; }
+        public String getError() { return error; }
+
+        boolean isFinished() {
+            return status == Status.COMPLETED || status == Status.FAILED;
+        }
+    }
+
+    private final PatientRepository patientRepository;
+    private final EncounterRepository encounterRepository;
+    private final ObservationRepository observationRepository;
+    private final PatientProvider patientProvider;
+    private final EncounterProvider encounterProvider;
+    private final ObservationProvider observationProvider;
+    private final FhirContext fhirContext;
+    private final TransactionTemplate readOnlyTransaction;
+    private final Path exportDirectory;
+    private final long maxFileBytes;
+
+    private final Cache<String, ExportJob> jobs;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bulk-export");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Autowired
+    public BulkExportService(PatientRepository patientRepository, EncounterRepository encounterRepository,
+            ObservationRepository observationRepository, PatientProvider patientProvider,
+            EncounterProvider encounterProvider, ObservationProvider observationProvider, FhirContext fhirContext,
+            PlatformTransactionManager transactionManager,
+            @Value("${lhsc.export.directory:${java.io.tmpdir}/lhsc-export}") String exportDirectory,
+            @Value("${lhsc.export.max-file-bytes:268435456}") long maxFileBytes,
+            @Value("${lhsc.export.retention-minutes:1440}") long retentionMinutes) {
+        this.patientRepository = patientRepository;
+        this.encounterRepository = encounterRepository;
+        this.observationRepository = observationRepository;
+        this.patientProvider = patientProvider;
+        this.encounterProvider = encounterProvider;
+        this.observationProvider = observationProvider;
+        this.fhirContext = fhirContext;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.exportDirectory = Paths.get(exportDirectory);
+        this.maxFileBytes = maxFileBytes;
+
+        long retentionNanos = Duration.ofMinutes(retentionMinutes).toNanos();
+        this.jobs = Caffeine.newBuilder()
+                // Running exports never expire; the retention period starts when run() puts the finished job back
+                .expireAfter(new Expiry<String, ExportJob>() {
+                    @Override
+                    public long expireAfterCreate(String jobId, ExportJob job, long currentTime) {
+                        return job.isFinished() ? retentionNanos : Long.MAX_VALUE;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String jobId, ExportJob job, long currentTime, long currentDuration) {
+                        return job.isFinished() ? retentionNanos : Long.MAX_VALUE;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String jobId, ExportJob job, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                // Expire on time even if nobody polls, so the files do not wait for the next cache access
+                .scheduler(Scheduler.systemScheduler())
+                .removalListener((String jobId, ExportJob job, RemovalCause cause) -> {
+                    // A running export cleans up after itself when it sees that it was cancelled; REPLACED is
+                    // run() writing the finished job back
+                    if (job != null && job.isFinished() && cause != RemovalCause.REPLACED) {
+                        deleteFiles(jobId);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Queues a new export of the given resource types.
+     * @param request The kick-off request URL, echoed back in the manifest.
+     * @param types The resource types to export, in export order.
+     */
+    public ExportJob submit(String request, List<String> types) {
+        ExportJob job = new ExportJob(request, List.copyOf(types));
+        jobs.put(job.getId(), job);
+        // Exports are the heaviest reads there are: run them on a read replica when one is configured and current
+        executor.submit(() -> DataSourceRouting.run(DataSourceRouting.Target.REPLICA, () -> run(job)));
+        return job;
+    }
+
+    public Optional<ExportJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.getIfPresent(jobId));
+    }
+
+    /**
+     * Cancels the export if it is still running and deletes it with its files.
+     * @return false if there is no such export.
+     */
+    public boolean delete(String jobId) {
+        ExportJob job = jobs.asMap().remove(jobId);
+        if (job == null) {
+            return false;
+        }
+        job.cancelled = true;
+        log.info("Bulk export {} deleted", jobId);
+        return true;
+    }
+
+    /**
+     * Returns the path of an output file of a completed export, or empty if it does not exist.
+     */
+    public Optional<Path> getOutputFile(String jobId, String fileName) {
+        ExportJob job = jobs.getIfPresent(jobId);
+        if (job == null || job.getStatus() != Status.COMPLETED || !OUTPUT_FILE_NAME.matcher(fileName).matches()) {
+            return Optional.empty();
+        }
+        Path file = exportDirectory.resolve(jobId).resolve(fileName);
+        return Files.isRegularFile(file) ? Optional.of(file) : Optional.empty();
+    }
+
+    /**
+     * Turns the _type parameter of a kick-off request into the list of types to export.
+     * @throws IllegalArgumentException if it names a type we cannot export.
+     */
+    static List<String> parseTypes(String typeParameter) {
+        if (typeParameter == null || typeParameter.isBlank()) {
+            return EXPORTABLE_TYPES;
+        }
+        Set<String> requested = new HashSet<>(Arrays.asList(typeParameter.trim().split("\\s*,\\s*")));
+        List<String> types = new ArrayList<>();
+        for (String type : EXPORTABLE_TYPES) {
+            if (requested.contains(type)) {
+                types.add(type);
+            }
+        }
+        if (types.size() != requested.size()) {
+            throw new IllegalArgumentException("_type may only contain " + String.join(", ", EXPORTABLE_TYPES));
+        }
+        return types;
+    }
+
+    private void run(ExportJob job) {
+        job.status = Status.IN_PROGRESS;
+        try {
+            Path jobDirectory = Files.createDirectories(exportDirectory.resolve(job.getId()));
+            for (String type : job.getTypes()) {
+                job.currentType = type;
+                exportType(job, type, jobDirectory);
+            }
+            job.currentType = null;
+            job.status = Status.COMPLETED;
+            log.info("Bulk export {} completed with {} files", job.getId(), job.output.size());
+        } catch (CancellationException e) {
+            log.info("Bulk export {} cancelled", job.getId());
+            job.status = Status.FAILED;
+        } catch (Exception e) {
+            log.error("Bulk export {} failed", job.getId(), e);
+            job.error = e.getMessage();
+            job.status = Status.FAILED;
+        }
+        // Writing the finished job again starts its retention period; one deleted meanwhile is no longer there
+        if (jobs.asMap().replace(job.getId(), job) == null) {
+            deleteFiles(job.getId());
+        }
+    }
+
+    private void deleteFiles(String jobId) {
+        Path jobDirectory = exportDirectory.resolve(jobId);
+        if (!Files.exists(jobDirectory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(jobDirectory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            log.warn("Could not delete the files of bulk export {}: {}", jobId, e.getMessage());
+        }
+    }
+
+    private void exportType(ExportJob job, String type, Path jobDirectory) {
+        IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+        readOnlyTransaction.executeWithoutResult(status -> {
+            try (NdjsonFileWriter writer = new NdjsonFileWriter(jobDirectory, type, maxFileBytes);
+                 Stream<?> rows = streamRows(type)) {
+                rows.forEach(row -> {
+                    if (job.cancelled) {
+                        throw new CancellationException();
+                    }
+                    writer.writeLine(toJson(row, parser));
+                    // Drop the entity from the persistence context so memory stays flat
+                    entityManager.detach(row);
+                });
+                writer.close();
+                job.output.addAll(writer.getFiles());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private Stream<?> streamRows(String type) {
+        switch (type) {
+            case "Patient":
+                return patientRepository.streamAll();
+            case "Encounter":
+                return encounterRepository.streamAll();
+            case "Observation":
+                return observationRepository.streamAll();
+            default:
+                throw new IllegalArgumentException("Unsupported export type: " + type);
+        }
+    }
+
+    /**
+     * Uses the stored JSON directly when there is one (it is always encoded on a single line),
+     * otherwise maps the columns the same way the providers do.
+     */
+    private String toJson(Object row, IParser parser) {
+        String storedJson;
+        Resource resource;
+        if (row instanceof PatientEntity patient) {
+            storedJson = patient.getResourceJson();
+            resource = (storedJson == null || storedJson.isEmpty()) ? patientProvider.transformToFhirPatient(patient) : null;
+        } else if (row instanceof EncounterEntity encounter) {
+            storedJson = encounter.getResourceJson();
+            resource = (storedJson == null || storedJson.isEmpty()) ? encounterProvider.transformToFhirEncounter(encounter) : null;
+        } else {
+            ObservationEntity observation = (ObservationEntity) row;
+            storedJson = observation.getResourceJson();
+            resource = (storedJson == null || storedJson.isEmpty()) ? observationProvider.transformToFhirObservation(observation) : null;
+        }
+        return (resource != null) ? parser.encodeResourceToString(resource) : storedJson;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Writes NDJSON lines to gzipped files named [type]-[n].ndjson.gz, starting a new file
+     * whenever the current one reaches the configured (uncompressed) size.
+     */
+    private static class NdjsonFileWriter implements AutoCloseable {
+        private final Path directory;
+        private final String resourceType;
+        private final long maxFileBytes;
+        private final List<OutputFile> files = new ArrayList<>();
+
+        private Writer current;
+        private String currentName;
+        private long currentBytes;
+        private long currentCount;
+
+        NdjsonFileWriter(Path directory, String resourceType, long maxFileBytes) {
+            this.directory = directory;
+            this.resourceType = resourceType;
+            this.maxFileBytes = maxFileBytes;
+        }
+
+        void writeLine(String json) {
+            try {
+                if (current == null || currentBytes >= maxFileBytes) {
+                    roll();
+                }
+                current.write(json);
+                current.write('\n');
+                // Close enough for size-based splitting; exact UTF-8 length is not worth computing per line
+                currentBytes += json.length() + 1;
+                currentCount++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        List<OutputFile> getFiles() {
+            return files;
+        }
+
+        private void roll() throws IOException {
+            finishCurrent();
+            currentName = resourceType + "-" + (files.size() + 1) + ".ndjson.gz";
+            current = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(directory.resolve(currentName)), 64 * 1024),
+                    StandardCharsets.UTF_8));
+            currentBytes = 0;
+            currentCount = 0;
+        }
+
+        private void finishCurrent() throws IOException {
+            if (current != null) {
+                current.close();
+                files.add(new OutputFile(resourceType, currentName, currentCount));
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finishCurrent();
+        }
+    }
+}
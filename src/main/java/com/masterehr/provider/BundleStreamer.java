@@ -0,0 +1,292 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.UrlUtil;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.masterehr.interceptor.RequestMetricsInterceptor;
+import com.masterehr.interceptor.ResponseFormats;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes search result pages (KeysetBundleProvider) straight to the response instead of building
+ * a Bundle and letting HAPI encode it.
+ *
+ * The Bundle envelope is written first, then each entry as its rows are read, lhsc.search.streaming.chunk-size
+ * rows at a time, with the stored resource JSON spliced in unparsed. The response has no Content-Length,
+ * so it goes out chunked, and is gzip-compressed on the fly when the client accepts gzip.
+ * Memory per request is therefore one chunk of rows whatever _count is.
+ *
+ * Only compact JSON responses are streamed (the same rule as RawJsonReadInterceptor); _summary,
+ * _elements, _pretty, XML and HTML fall back to the normal path. The first page is streamed by
+ * the @Search method itself (streamIfPossible); next/previous pages are served by the hook below
+ * from the result kept in the paging provider. Links are written after the entries, since whether
+ * there is a next page is only known once the page has been read when there is no total.
+ */
+@Component
+@Interceptor
+public class BundleStreamer {
+
+    private static final String STREAMED = BundleStreamer.class.getName() + ".streamed";
+
+    private final FhirContext fhirContext;
+    private final RequestMetricsInterceptor requestMetrics;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final boolean enabled;
+    private final int chunkSize;
+
+    @Autowired
+    public BundleStreamer(FhirContext fhirContext, RequestMetricsInterceptor requestMetrics,
+            @Value("${lhsc.search.streaming.enabled:true}") boolean enabled,
+            @Value("${lhsc.search.streaming.chunk-size:100}") int chunkSize) {
+        this.fhirContext = fhirContext;
+        this.requestMetrics = requestMetrics;
+        this.enabled = enabled;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Streams the first page of a search result if the request allows it.
+     * @return An empty result if the page has been written (the response hook below then stops
+     *         HAPI from writing anything), otherwise theResults unchanged.
+     */
+    IBundleProvider streamIfPossible(KeysetBundleProvider<?, ?> theResults, RequestDetails theRequestDetails) {
+        if (!(theRequestDetails instanceof ServletRequestDetails servletDetails)
+                || !canStream(theResults, servletDetails)
+                || theRequestDetails.getParameters().containsKey(Constants.PARAM_OFFSET)) {
+            return theResults;
+        }
+        IPagingProvider pagingProvider = theRequestDetails.getServer().getPagingProvider();
+        Integer pageSize = pageSize(theRequestDetails, pagingProvider);
+        if (pageSize == null) {
+            return theResults;
+        }
+
+        try {
+            writePage(theResults, servletDetails, pagingProvider, null, 0, pageSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        theRequestDetails.getUserData().put(STREAMED, Boolean.TRUE);
+        return new SimpleBundleProvider();
+    }
+
+    /**
+     * Serves ?_getpages=[id]&_getpagesoffset=[n] for results that were streamed.
+     * @return false if the page has been written, true to let HAPI continue.
+     */
+    @Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+    public boolean streamNextPage(ServletRequestDetails theRequestDetails) throws IOException {
+        if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.GET_PAGE) {
+            return true;
+        }
+        String searchId = parameter(theRequestDetails, Constants.PARAM_PAGINGACTION);
+        IPagingProvider pagingProvider = theRequestDetails.getServer().getPagingProvider();
+        if (searchId == null || pagingProvider == null
+                || !(pagingProvider.retrieveResultList(theRequestDetails, searchId) instanceof KeysetBundleProvider<?, ?> results)
+                || !canStream(results, theRequestDetails)) {
+            return true;
+        }
+        Integer pageSize = pageSize(theRequestDetails, pagingProvider);
+        String offset = parameter(theRequestDetails, Constants.PARAM_PAGINGOFFSET);
+        if (pageSize == null || (offset != null && !offset.matches("\\d{1,9}"))) {
+            return true;
+        }
+
+        writePage(results, theRequestDetails, pagingProvider, searchId, (offset != null) ? Integer.parseInt(offset) : 0, pageSize);
+        return false;
+    }
+
+    /**
+     * @return false if the response was already streamed by the search method.
+     */
+    @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+    public boolean skipStreamedResponse(RequestDetails theRequestDetails) {
+        return !theRequestDetails.getUserData().containsKey(STREAMED);
+    }
+
+    private boolean canStream(KeysetBundleProvider<?, ?> theResults, ServletRequestDetails theRequestDetails) {
+        return enabled && theResults.isStreamable()
+                && ResponseFormats.wantsPlainJson(theRequestDetails, theRequestDetails.getServletRequest());
+    }
+
+    private void writePage(KeysetBundleProvider<?, ?> theResults, ServletRequestDetails theRequestDetails,
+            IPagingProvider thePagingProvider, String theSearchId, int theOffset, int thePageSize) throws IOException {
+        // Counting first keeps Bundle.total ahead of the entries, where clients expect it
+        Integer total = theResults.size();
+
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        boolean gzip = ResponseFormats.acceptsGzip(theRequestDetails.getServletRequest());
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(Constants.CT_FHIR_JSON_NEW);
+        response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        response.addHeader("Vary", Constants.HEADER_ACCEPT_ENCODING);
+        OutputStream out = response.getOutputStream();
+        if (gzip) {
+            response.setHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+            // syncFlush so every chunk reaches the client as soon as it is written
+            out = new GZIPOutputStream(out, 8192, true);
+        }
+
+        try (JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeStringField("resourceType", "Bundle");
+            json.writeStringField("id", UUID.randomUUID().toString());
+            json.writeObjectFieldStart("meta");
+            json.writeStringField("lastUpdated", InstantType.now().getValueAsString());
+            json.writeEndObject();
+            json.writeStringField("type", "searchset");
+            if (total != null) {
+                json.writeNumberField("total", total);
+            }
+
+            json.writeArrayFieldStart("entry");
+            EntryWriter entries = new EntryWriter(json, theRequestDetails.getFhirServerBase());
+            int matches = theResults.streamPage(theOffset, theOffset + thePageSize, chunkSize, entries);
+            json.writeEndArray();
+
+            // A short page is the last one; with a total we also know when a full page is
+            boolean hasNext = (total != null) ? theOffset + matches < total : matches == thePageSize;
+            String searchId = theSearchId;
+            if (searchId == null && hasNext) {
+                searchId = thePagingProvider.storeResultList(theRequestDetails, theResults);
+            }
+            json.writeArrayFieldStart("link");
+            writeLink(json, "self", theRequestDetails.getCompleteUrl());
+            if (hasNext) {
+                writeLink(json, "next", pageUrl(theRequestDetails, searchId, theOffset + thePageSize, thePageSize));
+            }
+            if (theOffset > 0 && searchId != null) {
+                writeLink(json, "previous", pageUrl(theRequestDetails, searchId, Math.max(0, theOffset - thePageSize), thePageSize));
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+
+            requestMetrics.recordBundle(theRequestDetails, entries.count, total);
+        }
+    }
+
+    private static void writeLink(JsonGenerator json, String relation, String url) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("relation", relation);
+        json.writeStringField("url", url);
+        json.writeEndObject();
+    }
+
+    // Same form as HAPI's own paging links, so either path can serve them
+    private static String pageUrl(RequestDetails theRequestDetails, String searchId, int offset, int pageSize) {
+        StringBuilder url = new StringBuilder(theRequestDetails.getFhirServerBase())
+                .append('?').append(Constants.PARAM_PAGINGACTION).append('=').append(UrlUtil.escapeUrlParam(searchId))
+                .append('&').append(Constants.PARAM_PAGINGOFFSET).append('=').append(offset)
+                .append('&').append(Constants.PARAM_COUNT).append('=').append(pageSize);
+        String format = parameter(theRequestDetails, Constants.PARAM_FORMAT);
+        if (format != null) {
+            url.append('&').append(Constants.PARAM_FORMAT).append('=').append(UrlUtil.escapeUrlParam(format));
+        }
+        return url.append('&').append(Constants.PARAM_BUNDLETYPE).append("=searchset").toString();
+    }
+
+    // _count capped to the paging provider's maximum; null for _count=0 or a value HAPI should reject
+    private static Integer pageSize(RequestDetails theRequestDetails, IPagingProvider thePagingProvider) {
+        if (thePagingProvider == null) {
+            return null;
+        }
+        String count = parameter(theRequestDetails, Constants.PARAM_COUNT);
+        if (count == null) {
+            return thePagingProvider.getDefaultPageSize();
+        }
+        if (!count.matches("\\d{1,9}") || Integer.parseInt(count) == 0) {
+            return null;
+        }
+        return Math.min(Integer.parseInt(count), thePagingProvider.getMaximumPageSize());
+    }
+
+    private static String parameter(RequestDetails theRequestDetails, String name) {
+        String[] values = theRequestDetails.getParameters().get(name);
+        return (values != null && values.length > 0) ? values[0] : null;
+    }
+
+    private class EntryWriter implements KeysetBundleProvider.EntrySink {
+
+        private final JsonGenerator json;
+        private final String serverBase;
+        private final IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+        // Includes are loaded per chunk, so a resource referenced from two chunks is only written once
+        private final Set<String> included = new HashSet<>();
+        private int count;
+
+        EntryWriter(JsonGenerator json, String serverBase) {
+            this.json = json;
+            this.serverBase = serverBase;
+        }
+
+        @Override
+        public void match(String resourceType, Integer id, String storedJson,
+                Supplier<? extends IBaseResource> theResource) throws IOException {
+            String resourceJson = (storedJson != null) ? storedJson : parser.encodeResourceToString(theResource.get());
+            write(resourceType + "/" + id, resourceJson, "match");
+        }
+
+        @Override
+        public void include(IBaseResource theResource) throws IOException {
+            // IncludeLoader's warning that a page's includes were cut off; it has no id of its own
+            if (theResource instanceof Resource resource
+                    && ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get(resource) == BundleEntrySearchModeEnum.OUTCOME) {
+                write(null, parser.encodeResourceToString(theResource), "outcome");
+                return;
+            }
+            String reference = theResource.fhirType() + "/" + theResource.getIdElement().getIdPart();
+            if (included.add(reference)) {
+                write(reference, parser.encodeResourceToString(theResource), "include");
+            }
+        }
+
+        @Override
+        public void endOfChunk() throws IOException {
+            json.flush();
+        }
+
+        private void write(String reference, String resourceJson, String mode) throws IOException {
+            json.writeStartObject();
+            if (reference != null) {
+                json.writeStringField("fullUrl", serverBase + "/" + reference);
+            }
+            json.writeFieldName("resource");
+            json.writeRawValue(resourceJson);
+            json.writeObjectFieldStart("search");
+            json.writeStringField("mode", mode);
+            json.writeEndObject();
+            json.writeEndObject();
+            count++;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.rest.annotation.History;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.annotation.Since;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.UrlUtil;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.masterehr.entity.ResourceJsonCodec;
+import com.masterehr.interceptor.RequestMetricsInterceptor;
+import com.masterehr.interceptor.ResponseFormats;
+import com.masterehr.repository.ResourceChangeRepository;
+import com.masterehr.repository.ResourceChangeRepository.ResourceChange;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.StringType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * System-level history and the change feed for incremental sync, registered as a plain provider.
+ *
+ * GET /fhir/_history is the FHIR system history, newest first (see ResourceHistory).
+ *
+ * GET /fhir/$changes?cursor=[n]&_type=Patient,Observation&_count=[n] returns the changes after the cursor,
+ * oldest first, as a history Bundle: each entry is one created (request.method POST) or updated (PUT)
+ * version with its stored JSON. The "next" link always carries the cursor to continue from; a page with
+ * fewer than _count entries means the consumer has caught up and should poll the next link later.
+ * Without a cursor the feed starts at _since, or at the beginning. Every page is a range scan on the
+ * change log's clustered key, however far the consumer is behind. The stored JSON is written unparsed,
+ * so the response is always compact JSON.
+ */
+@Component
+public class ChangeFeedProvider {
+
+    private static final int DEFAULT_COUNT = 100;
+    private static final int MAX_COUNT = 1000;
+    private static final Set<String> TYPES = Set.of("Patient", "Encounter", "Observation");
+
+    private final ResourceHistory resourceHistory;
+    private final ResourceChangeRepository changeRepository;
+    private final RequestMetricsInterceptor requestMetrics;
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Autowired
+    public ChangeFeedProvider(ResourceHistory resourceHistory, ResourceChangeRepository changeRepository,
+            RequestMetricsInterceptor requestMetrics) {
+        this.resourceHistory = resourceHistory;
+        this.changeRepository = changeRepository;
+        this.requestMetrics = requestMetrics;
+    }
+
+    @History
+    public IBundleProvider getSystemHistory(@Since InstantType theSince, RequestDetails theRequestDetails) {
+        return resourceHistory.history(null, theSince, theRequestDetails);
+    }
+
+    @Operation(name = "$changes", idempotent = true, manualResponse = true)
+    public void changes(
+            @OperationParam(name = "cursor") StringType theCursor,
+            @OperationParam(name = Constants.PARAM_SINCE) InstantType theSince,
+            @OperationParam(name = Constants.PARAM_TYPE) StringType theTypes,
+            @OperationParam(name = Constants.PARAM_COUNT) IntegerType theCount,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        long cursor;
+        if (theCursor != null && theCursor.hasValue()) {
+            if (!theCursor.getValue().matches("\\d{1,18}")) {
+                throw new InvalidRequestException("cursor must be the value from a previous $changes next link");
+            }
+            cursor = Long.parseLong(theCursor.getValue());
+        } else if (theSince != null && theSince.getValue() != null) {
+            cursor = changeRepository.cursorAt(ResourceHistory.toLocalDateTime(theSince));
+        } else {
+            cursor = 0;
+        }
+
+        List<String> types = new ArrayList<>();
+        if (theTypes != null && theTypes.hasValue()) {
+            for (String type : theTypes.getValue().split(",")) {
+                String trimmed = type.trim();
+                if (!TYPES.contains(trimmed)) {
+                    throw new InvalidRequestException("Unsupported _type: " + trimmed);
+                }
+                types.add(trimmed);
+            }
+        }
+
+        int count = (theCount != null && theCount.getValue() != null) ? theCount.getValue() : DEFAULT_COUNT;
+        if (count < 1) {
+            throw new InvalidRequestException("_count must be at least 1");
+        }
+        count = Math.min(count, MAX_COUNT);
+
+        List<ResourceChange> changes = changeRepository.findAfter(cursor, types, count);
+        long nextCursor = changes.isEmpty() ? cursor : changes.get(changes.size() - 1).seq();
+        writeBundle(theRequestDetails, changes, nextLink(theRequestDetails, nextCursor, theTypes, count));
+    }
+
+    private void writeBundle(ServletRequestDetails theRequestDetails, List<ResourceChange> changes, String nextLink)
+            throws IOException {
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(Constants.CT_FHIR_JSON_NEW);
+        response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        response.addHeader("Vary", Constants.HEADER_ACCEPT_ENCODING);
+        OutputStream out = response.getOutputStream();
+        if (ResponseFormats.acceptsGzip(theRequestDetails.getServletRequest())) {
+            response.setHeader(Constants.HEADER_CONTENT_ENCODING, Constants.ENCODING_GZIP);
+            out = new GZIPOutputStream(out, 8192);
+        }
+
+        String serverBase = theRequestDetails.getFhirServerBase();
+        try (JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeStringField("resourceType", "Bundle");
+            json.writeStringField("id", UUID.randomUUID().toString());
+            json.writeObjectFieldStart("meta");
+            json.writeStringField("lastUpdated", InstantType.now().getValueAsString());
+            json.writeEndObject();
+            json.writeStringField("type", "history");
+
+            json.writeArrayFieldStart("link");
+            writeLink(json, "self", theRequestDetails.getCompleteUrl());
+            writeLink(json, "next", nextLink);
+            json.writeEndArray();
+
+            json.writeArrayFieldStart("entry");
+            for (ResourceChange change : changes) {
+                String reference = change.resourceType() + "/" + change.resourceId();
+                json.writeStartObject();
+                json.writeStringField("fullUrl", serverBase + "/" + reference);
+                json.writeFieldName("resource");
+                json.writeRawValue(ResourceJsonCodec.decode(change.resourceBlob()));
+                json.writeObjectFieldStart("request");
+                json.writeStringField("method", change.created() ? "POST" : "PUT");
+                json.writeStringField("url", change.created() ? change.resourceType() : reference);
+                json.writeEndObject();
+                json.writeObjectFieldStart("response");
+                json.writeStringField("status", change.created() ? "201 Created" : "200 OK");
+                json.writeStringField("etag", "W/\"" + change.versionId() + "\"");
+                json.writeStringField("lastModified", new InstantType(
+                        Date.from(change.changedAt().atZone(ZoneId.systemDefault()).toInstant())).getValueAsString());
+                json.writeEndObject();
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        requestMetrics.recordBundle(theRequestDetails, changes.size(), null);
+    }
+
+    private static String nextLink(RequestDetails theRequestDetails, long cursor, StringType theTypes, int count) {
+        StringBuilder url = new StringBuilder(theRequestDetails.getFhirServerBase())
+                .append("/$changes?cursor=").append(cursor);
+        if (theTypes != null && theTypes.hasValue()) {
+            url.append('&').append(Constants.PARAM_TYPE).append('=').append(UrlUtil.escapeUrlParam(theTypes.getValue()));
+        }
+        return url.append('&').append(Constants.PARAM_COUNT).append('=').append(count).toString();
+    }
+
+    private static void writeLink(JsonGenerator json, String relation, String url) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("relation", relation);
+        json.writeStringField("url", url);
+        json.writeEndObject();
+    }
+}
@@ -0,0 +1,68 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.InstantType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Several results served as one, each after the other, e.g. Patient/$everything's patient followed by
+ * their encounters and observations. A page that spans two parts is read from both, and only the rows of
+ * the requested page are loaded from any of them. Every part must know its size.
+ */
+class CompositeBundleProvider implements IBundleProvider {
+
+    private final List<IBundleProvider> parts;
+    private final InstantType published = InstantType.now();
+
+    CompositeBundleProvider(List<IBundleProvider> parts) {
+        this.parts = parts;
+    }
+
+    @Override
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+        List<IBaseResource> resources = new ArrayList<>(Math.max(0, theToIndex - theFromIndex));
+        int offset = 0;
+        for (IBundleProvider part : parts) {
+            if (offset >= theToIndex) {
+                break;
+            }
+            int partSize = part.size();
+            if (theFromIndex < offset + partSize) {
+                resources.addAll(part.getResources(Math.max(theFromIndex - offset, 0),
+                        Math.min(theToIndex - offset, partSize)));
+            }
+            offset += partSize;
+        }
+        return resources;
+    }
+
+    @Override
+    public Integer size() {
+        int size = 0;
+        for (IBundleProvider part : parts) {
+            size += part.size();
+        }
+        return size;
+    }
+
+    @Override
+    public IPrimitiveType<Date> getPublished() {
+        return published;
+    }
+
+    @Override
+    public String getUuid() {
+        // Let the paging provider assign the id it stores us under
+        return null;
+    }
+
+    @Override
+    public Integer preferredPageSize() {
+        return null;
+    }
+}
@@ -1,33 +1,52 @@
 package com.masterehr.provider;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.annotation.*;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.masterehr.cache.ParsedResourceCache;
 import com.masterehr.entity.EncounterEntity;
 import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ResourceIdAllocator;
 import org.hl7.fhir.r4.model.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.ZoneId;
 import java.util.Date;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.function.Supplier;
 
 @Component
 public class EncounterProvider implements IResourceProvider {
 
     private final EncounterRepository encounterRepository;
+    private final IncludeLoader includeLoader;
+    private final ResourceIdAllocator idAllocator;
+    private final ParsedResourceCache resourceCache;
+    private final BundleStreamer bundleStreamer;
+    private final ResourceHistory resourceHistory;
     private final FhirContext fhirContext;
 
     @Autowired
-    public EncounterProvider(EncounterRepository encounterRepository, FhirContext fhirContext) {
+    public EncounterProvider(EncounterRepository encounterRepository, IncludeLoader includeLoader,
+            ResourceIdAllocator idAllocator, ParsedResourceCache resourceCache, BundleStreamer bundleStreamer,
+            ResourceHistory resourceHistory, FhirContext fhirContext) {
         this.encounterRepository = encounterRepository;
+        this.includeLoader = includeLoader;
+        this.idAllocator = idAllocator;
+        this.resourceCache = resourceCache;
+        this.bundleStreamer = bundleStreamer;
+        this.resourceHistory = resourceHistory;
         this.fhirContext = fhirContext;
     }
 
@@ -43,34 +62,59 @@ public class EncounterProvider implements IResourceProvider {
                 .orElseThrow(() -> new ResourceNotFoundException("Encounter not found with ID: " + theId.getIdPart()));
     }
 
+    /**
+     * Handles GET /Encounter?patient=[id]. Results are paged lazily with keyset pagination,
+     * so only the requested page is loaded and parsed. _total=none skips the COUNT query.
+     * _include=Encounter:patient and _revinclude=Observation:encounter are loaded per page
+     * with batched IN queries, at most 1000 included resources per page; a page that would have more
+     * ends with an OperationOutcome warning (search.mode = outcome) instead. Plain JSON responses are streamed row by row (see BundleStreamer).
+     */
     @Search
-    public List<Encounter> searchEncountersByPatient(
-        @RequiredParam(name = Encounter.SP_PATIENT) ReferenceParam thePatient) {
-        String patientId = thePatient.getIdPart();
-        List<EncounterEntity> dbEncounters = encounterRepository.findByPatientId(Integer.parseInt(patientId));
-        return dbEncounters.stream()
-                .map(this::transformToFhirEncounter)
-                .collect(Collectors.toList());
+    public IBundleProvider searchEncountersByPatient(
+        @RequiredParam(name = Encounter.SP_PATIENT) ReferenceParam thePatient,
+        @IncludeParam(allow = {"Encounter:patient", "Encounter:subject", "*"}) Set<Include> theIncludes,
+        @IncludeParam(reverse = true, allow = {"Observation:encounter", "*"}) Set<Include> theRevIncludes,
+        RequestDetails theRequestDetails) {
+        Integer patientId = Integer.parseInt(thePatient.getIdPart());
+        Supplier<Long> countQuery = KeysetBundleProvider.isTotalRequested(theRequestDetails)
+                ? () -> encounterRepository.countByPatientId(patientId)
+                : null;
+
+        KeysetBundleProvider<EncounterEntity, Integer> results = new KeysetBundleProvider<>(0,
+                (afterId, limit) -> encounterRepository.findPageByPatientId(patientId, afterId, PageRequest.of(0, limit)),
+                (afterId, limit) -> encounterRepository.findIdPageByPatientId(patientId, afterId, PageRequest.of(0, limit)),
+                EncounterEntity::getEncounterId,
+                this::transformToFhirEncounter,
+                countQuery)
+                .withStoredJson("Encounter", EncounterEntity::getEncounterId, EncounterProvider::storedJson);
+        if ((theIncludes != null && !theIncludes.isEmpty()) || (theRevIncludes != null && !theRevIncludes.isEmpty())) {
+            results.withIncludes(page -> includeLoader.forEncounters(page, theIncludes, theRevIncludes));
+        }
+        return bundleStreamer.streamIfPossible(results, theRequestDetails);
     }
 
     /**
      * Handles POST /Encounter to create a new encounter.
+     * With "Prefer: respond-async" AsyncCreateInterceptor usually answers first and the encounter is written behind.
      */
     @Create
     @Transactional
     public MethodOutcome createEncounter(@ResourceParam Encounter theEncounter) {
         EncounterEntity encounterEntity = transformToEncounterEntity(theEncounter, new EncounterEntity());
-        
-        EncounterEntity savedEncounter = encounterRepository.save(encounterEntity);
-        
-        theEncounter.setId(savedEncounter.getEncounterId().toString());
+
+        // Reserve the id first so the row and its JSON are written in a single INSERT
+        encounterEntity.setEncounterId(idAllocator.nextId());
+        theEncounter.setId(encounterEntity.getEncounterId().toString());
+        encounterEntity.setLastUpdated(ResourceVersions.stamp(theEncounter, ResourceVersions.FIRST_VERSION));
         String jsonResource = fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(theEncounter);
-        savedEncounter.setResourceJson(jsonResource);
-        
-        encounterRepository.save(savedEncounter);
+        encounterEntity.setResourceJson(jsonResource);
+
+        EncounterEntity savedEncounter = encounterRepository.save(encounterEntity);
+        resourceHistory.created("Encounter", savedEncounter.getEncounterId(), savedEncounter.getVersionId(),
+                savedEncounter.getLastUpdated(), savedEncounter.getResourceBlob());
 
         MethodOutcome outcome = new MethodOutcome();
-        outcome.setId(new IdType("Encounter", savedEncounter.getEncounterId().toString()));
+        outcome.setId(ResourceVersions.versionedId("Encounter", savedEncounter.getEncounterId(), savedEncounter.getVersionId()));
         outcome.setCreated(true);
         outcome.setResource(theEncounter);
         return outcome;
@@ -78,31 +122,66 @@ public class EncounterProvider implements IResourceProvider {
 
     /**
      * Handles PUT /Encounter/[id] to update an existing encounter.
+     * With If-Match the update only succeeds if the encounter is still at that version (412 otherwise).
      */
     @Update
     @Transactional
     public MethodOutcome updateEncounter(@IdParam IdType theId, @ResourceParam Encounter theEncounter) {
         return encounterRepository.findById(Integer.parseInt(theId.getIdPart()))
             .map(existingEncounter -> {
+                ResourceVersions.checkIfMatch(theId, existingEncounter.getVersionId());
                 EncounterEntity updatedEntity = transformToEncounterEntity(theEncounter, existingEncounter);
                 
                 theEncounter.setId(theId.getIdPart());
+                updatedEntity.setLastUpdated(ResourceVersions.stamp(theEncounter, existingEncounter.getVersionId() + 1));
                 String jsonResource = fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(theEncounter);
                 updatedEntity.setResourceJson(jsonResource);
 
-                EncounterEntity savedEncounter = encounterRepository.save(updatedEntity);
+                EncounterEntity savedEncounter;
+                try {
+                    savedEncounter = encounterRepository.saveAndFlush(updatedEntity);
+                } catch (ObjectOptimisticLockingFailureException e) {
+                    throw ResourceVersions.concurrentUpdate(theId, e);
+                }
+                resourceCache.invalidate("Encounter", savedEncounter.getEncounterId());
+                resourceHistory.updated("Encounter", savedEncounter.getEncounterId(), savedEncounter.getVersionId(),
+                        savedEncounter.getLastUpdated(), savedEncounter.getResourceBlob());
 
                 MethodOutcome outcome = new MethodOutcome();
-                outcome.setId(new IdType("Encounter", savedEncounter.getEncounterId().toString()));
+                outcome.setId(ResourceVersions.versionedId("Encounter", savedEncounter.getEncounterId(), savedEncounter.getVersionId()));
                 outcome.setResource(theEncounter);
                 return outcome;
             })
             .orElseThrow(() -> new ResourceNotFoundException("Encounter not found with ID: " + theId.getIdPart()));
     }
 
-    private Encounter transformToFhirEncounter(EncounterEntity entity) {
-        if (entity.getResourceJson() != null && !entity.getResourceJson().isEmpty()) {
-            return fhirContext.newJsonParser().parseResource(Encounter.class, entity.getResourceJson());
+    /**
+     * Handles GET /Encounter/[id]/_history, newest version first (see ResourceHistory).
+     */
+    @History
+    public IBundleProvider getEncounterHistory(@IdParam IdType theId, @Since InstantType theSince,
+            RequestDetails theRequestDetails) {
+        return resourceHistory.instanceHistory("Encounter", theId, theSince, () -> getEncounterById(theId), theRequestDetails);
+    }
+
+    /**
+     * Handles GET /Encounter/_history, newest change first.
+     */
+    @History
+    public IBundleProvider getEncounterTypeHistory(@Since InstantType theSince, RequestDetails theRequestDetails) {
+        return resourceHistory.history("Encounter", theSince, theRequestDetails);
+    }
+
+    // The JSON a streamed search can send as-is, or null if the row has to go through the transform
+    private static String storedJson(EncounterEntity entity) {
+        return entity.hasResourceJson() ? entity.getResourceJson() : null;
+    }
+
+    Encounter transformToFhirEncounter(EncounterEntity entity) {
+        if (entity.hasResourceJson()) {
+            Encounter parsed = resourceCache.getOrParse(Encounter.class, entity.getEncounterId(),
+                    String.valueOf(entity.getVersionId()), entity::getResourceJson);
+            return ResourceVersions.apply(parsed, entity.getVersionId(), entity.getLastUpdated());
         }
 
         Encounter encounter = new Encounter();
@@ -132,13 +211,13 @@ public class EncounterProvider implements IResourceProvider {
             encounter.setPeriod(period);
         }
 
-        return encounter;
+        return ResourceVersions.apply(encounter, entity.getVersionId(), entity.getLastUpdated());
     }
     
     /**
      * Transforms an incoming FHIR Encounter into our internal database entity.
      */
-    private EncounterEntity transformToEncounterEntity(Encounter fhirEncounter, EncounterEntity existingEntity) {
+    EncounterEntity transformToEncounterEntity(Encounter fhirEncounter, EncounterEntity existingEntity) {
         EncounterEntity entity = (existingEntity != null) ? existingEntity : new EncounterEntity();
 
         if (fhirEncounter.hasSubject() && fhirEncounter.getSubject().hasReference()) {
@@ -0,0 +1,257 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.entity.PatientEntity;
+import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ObservationRepository;
+import com.masterehr.repository.PatientRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Loads the resources asked for with _include and _revinclude for one page of search results.
+ *
+ * The referenced ids of the whole page are collected first and then fetched with IN (...) queries
+ * of at most IN_CHUNK_SIZE ids, instead of one lookup per reference. So a page costs at most
+ * ceil(page size / IN_CHUNK_SIZE) queries per include, and a resource referenced by several
+ * matches appears in the Bundle only once. At most MAX_INCLUDED resources are added per page; when more
+ * would match, the page also gets an OperationOutcome warning (search.mode = outcome) so clients can tell
+ * the includes are incomplete, and lhsc.search.includes.truncated is incremented.
+ */
+@Component
+class IncludeLoader {
+
+    // Well under SQL Server's limit of 2100 parameters per statement
+    static final int IN_CHUNK_SIZE = 500;
+    static final int MAX_INCLUDED = 1000;
+
+    private final PatientRepository patientRepository;
+    private final EncounterRepository encounterRepository;
+    private final ObservationRepository observationRepository;
+    // The providers use this class themselves, so they are looked up when first needed
+    private final ObjectProvider<PatientProvider> patientProvider;
+    private final ObjectProvider<EncounterProvider> encounterProvider;
+    private final ObjectProvider<ObservationProvider> observationProvider;
+    private final Counter truncatedPages;
+
+    @Autowired
+    IncludeLoader(PatientRepository patientRepository, EncounterRepository encounterRepository,
+            ObservationRepository observationRepository, ObjectProvider<PatientProvider> patientProvider,
+            ObjectProvider<EncounterProvider> encounterProvider, ObjectProvider<ObservationProvider> observationProvider,
+            MeterRegistry meterRegistry) {
+        this.patientRepository = patientRepository;
+        this.encounterRepository = encounterRepository;
+        this.observationRepository = observationRepository;
+        this.patientProvider = patientProvider;
+        this.encounterProvider = encounterProvider;
+        this.observationProvider = observationProvider;
+        this.truncatedPages = Counter.builder("lhsc.search.includes.truncated")
+                .description("Search pages whose _include/_revinclude resources were cut off at " + MAX_INCLUDED)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Observation:patient / Observation:subject and Observation:encounter for a page of observations.
+     */
+    List<IBaseResource> forObservations(List<ObservationEntity> page, Set<Include> theIncludes) {
+        Included included = new Included();
+        if (isRequested(theIncludes, "Observation", "patient", "subject")) {
+            addPatients(included, collect(page, ObservationEntity::getPatientId));
+        }
+        if (isRequested(theIncludes, "Observation", "encounter")) {
+            addEncounters(included, collect(page, ObservationEntity::getEncounterId));
+        }
+        return markAsIncluded(included);
+    }
+
+    /**
+     * Encounter:patient / Encounter:subject, and the reverse Observation:encounter, for a page of encounters.
+     */
+    List<IBaseResource> forEncounters(List<EncounterEntity> page, Set<Include> theIncludes, Set<Include> theRevIncludes) {
+        Included included = new Included();
+        if (isRequested(theIncludes, "Encounter", "patient", "subject")) {
+            addPatients(included, collect(page, EncounterEntity::getPatientId));
+        }
+        if (isRequested(theRevIncludes, "Observation", "encounter")) {
+            Set<Integer> encounterIds = collect(page, EncounterEntity::getEncounterId);
+            // One row past the cap, so a page that would overflow it can be told apart from one that just fills it
+            for (List<Integer> chunk : chunks(encounterIds)) {
+                if (included.truncated) {
+                    break;
+                }
+                addAll(included, "Observation", observationRepository.findByEncounterIdInOrderByObservationId(chunk,
+                        PageRequest.of(0, included.remaining() + 1)), this::toFhirObservation, ObservationEntity::getObservationId);
+            }
+        }
+        return markAsIncluded(included);
+    }
+
+    /**
+     * The reverse Encounter:patient / Encounter:subject and Observation:patient / Observation:subject
+     * for a page of patients.
+     */
+    List<IBaseResource> forPatients(List<PatientEntity> page, Set<Include> theRevIncludes) {
+        Included included = new Included();
+        Set<Integer> patientIds = collect(page, PatientEntity::getPatientId);
+        if (isRequested(theRevIncludes, "Encounter", "patient", "subject")) {
+            for (List<Integer> chunk : chunks(patientIds)) {
+                if (included.truncated) {
+                    break;
+                }
+                addAll(included, "Encounter", encounterRepository.findByPatientIdInOrderByEncounterId(chunk,
+                        PageRequest.of(0, included.remaining() + 1)), this::toFhirEncounter, EncounterEntity::getEncounterId);
+            }
+        }
+        if (isRequested(theRevIncludes, "Observation", "patient", "subject")) {
+            for (List<Integer> chunk : chunks(patientIds)) {
+                if (included.truncated) {
+                    break;
+                }
+                addAll(included, "Observation", observationRepository.findByPatientIdInOrderByObservationId(chunk,
+                        PageRequest.of(0, included.remaining() + 1)), this::toFhirObservation, ObservationEntity::getObservationId);
+            }
+        }
+        return markAsIncluded(included);
+    }
+
+    private void addPatients(Included included, Set<Integer> ids) {
+        for (List<Integer> chunk : chunks(ids)) {
+            if (included.truncated) {
+                break;
+            }
+            addAll(included, "Patient", patientRepository.findAllById(chunk), this::toFhirPatient, PatientEntity::getPatientId);
+        }
+    }
+
+    private void addEncounters(Included included, Set<Integer> ids) {
+        for (List<Integer> chunk : chunks(ids)) {
+            if (included.truncated) {
+                break;
+            }
+            addAll(included, "Encounter", encounterRepository.findAllById(chunk), this::toFhirEncounter, EncounterEntity::getEncounterId);
+        }
+    }
+
+    private static <E> void addAll(Included included, String resourceType, List<E> rows,
+            Function<E, ? extends IBaseResource> transform, Function<E, Integer> idOf) {
+        for (E row : rows) {
+            String key = resourceType + "/" + idOf.apply(row);
+            if (included.resources.containsKey(key)) {
+                continue;
+            }
+            if (included.remaining() <= 0) {
+                included.truncated = true;
+                return;
+            }
+            included.resources.put(key, transform.apply(row));
+        }
+    }
+
+    private Resource toFhirPatient(PatientEntity entity) {
+        return patientProvider.getObject().transformToFhirPatient(entity);
+    }
+
+    private Resource toFhirEncounter(EncounterEntity entity) {
+        return encounterProvider.getObject().transformToFhirEncounter(entity);
+    }
+
+    private Resource toFhirObservation(ObservationEntity entity) {
+        return observationProvider.getObject().transformToFhirObservation(entity);
+    }
+
+    /**
+     * @return true if the set asks for one of the given search parameters of sourceType, or for everything (*).
+     */
+    private static boolean isRequested(Set<Include> theIncludes, String sourceType, String... paramNames) {
+        if (theIncludes == null) {
+            return false;
+        }
+        for (Include include : theIncludes) {
+            if ("*".equals(include.getValue())) {
+                return true;
+            }
+            if (sourceType.equals(include.getParamType())) {
+                for (String paramName : paramNames) {
+                    if (paramName.equals(include.getParamName())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static <E> Set<Integer> collect(List<E> page, Function<E, Integer> idOf) {
+        Set<Integer> ids = new LinkedHashSet<>();
+        for (E row : page) {
+            Integer id = idOf.apply(row);
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static List<List<Integer>> chunks(Collection<Integer> ids) {
+        List<Integer> all = new ArrayList<>(ids);
+        List<List<Integer>> chunks = new ArrayList<>();
+        for (int from = 0; from < all.size(); from += IN_CHUNK_SIZE) {
+            chunks.add(all.subList(from, Math.min(from + IN_CHUNK_SIZE, all.size())));
+        }
+        return chunks;
+    }
+
+    // Tells the Bundle builder these are search.mode = include, not matches
+    private List<IBaseResource> markAsIncluded(Included included) {
+        List<IBaseResource> resources = new ArrayList<>(included.resources.values());
+        for (IBaseResource resource : resources) {
+            ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put((Resource) resource, BundleEntrySearchModeEnum.INCLUDE);
+        }
+        if (included.truncated) {
+            truncatedPages.increment();
+            resources.add(truncationWarning());
+        }
+        return resources;
+    }
+
+    private static OperationOutcome truncationWarning() {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.WARNING)
+                .setCode(OperationOutcome.IssueType.INCOMPLETE)
+                .setDiagnostics("Only the first " + MAX_INCLUDED + " _include/_revinclude resources of this page"
+                        + " are returned; use a smaller _count to get the rest");
+        ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.put(outcome, BundleEntrySearchModeEnum.OUTCOME);
+        return outcome;
+    }
+
+    /** The resources included for one page so far, and whether any had to be left out. */
+    private static final class Included {
+        final Map<String, IBaseResource> resources = new LinkedHashMap<>();
+        boolean truncated;
+
+        int remaining() {
+            return MAX_INCLUDED - resources.size();
+        }
+    }
+}
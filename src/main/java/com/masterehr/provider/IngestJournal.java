@@ -0,0 +1,250 @@
+package com.masterehr.provider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the resources AsyncIngestService has accepted but not yet written to the database.
+ *
+ * One line per resource: type, id, accept time (epoch ms), CRC32 of the JSON and the compact JSON itself,
+ * tab-separated (compact JSON has no raw tabs or newlines). Lines go to numbered segment files; a new
+ * segment is started once the current one reaches segmentBytes, and a finished segment is deleted as soon
+ * as every resource in it has been committed. Whatever is still in the directory at startup is replayed.
+ *
+ * With fsync on, append() only returns once the line is on disk. Concurrent appends share one
+ * FileChannel.force: whoever forces first covers every line written before it started.
+ */
+final class IngestJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(IngestJournal.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d+)\\.log");
+
+    record Entry(long segment, String resourceType, int id, long acceptedAt, String json) {}
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean fsync;
+
+    // Segment -> resources in it that are not committed yet
+    private final ConcurrentHashMap<Long, AtomicInteger> uncommitted = new ConcurrentHashMap<>();
+    // Locks rather than synchronized: both are held across file I/O on request (virtual) threads
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private volatile FileChannel channel;
+    private volatile long currentSegment;
+    private long segmentSize;
+    // Bytes appended since open, and how many of them are known to be on disk
+    private volatile long written;
+    private long forced;
+
+    IngestJournal(Path directory, long segmentBytes, boolean fsync) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Reads what earlier runs left behind and opens a new segment for appending. Call once, before append().
+     * @return The uncommitted entries, oldest first. Each must eventually be passed to committed().
+     */
+    List<Entry> open() throws IOException {
+        Files.createDirectories(directory);
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    segments.add(Long.parseLong(matcher.group(1)));
+                }
+            });
+        }
+        segments.sort(null);
+
+        List<Entry> entries = new ArrayList<>();
+        for (long segment : segments) {
+            int count = read(segment, entries);
+            if (count == 0) {
+                Files.deleteIfExists(segmentPath(segment));
+            } else {
+                uncommitted.put(segment, new AtomicInteger(count));
+            }
+        }
+
+        long next = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        openSegment(next);
+        return entries;
+    }
+
+    /**
+     * Appends one resource and, with fsync on, waits until it is on disk.
+     * @return The segment it was written to, for committed().
+     */
+    long append(String resourceType, int id, long acceptedAt, String json) throws IOException {
+        byte[] jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(jsonBytes);
+        byte[] header = (resourceType + '\t' + id + '\t' + acceptedAt + '\t' + Long.toHexString(crc.getValue()) + '\t')
+                .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer line = ByteBuffer.allocate(header.length + jsonBytes.length + 1)
+                .put(header).put(jsonBytes).put((byte) '\n').flip();
+
+        long segment;
+        long end;
+        appendLock.lock();
+        try {
+            if (segmentSize > 0 && segmentSize + line.remaining() > segmentBytes) {
+                rotate();
+            }
+            int length = line.remaining();
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            segmentSize += length;
+            written += length;
+            end = written;
+            segment = currentSegment;
+            uncommitted.computeIfAbsent(segment, s -> new AtomicInteger()).incrementAndGet();
+        } finally {
+            appendLock.unlock();
+        }
+
+        if (fsync) {
+            force(end);
+        }
+        return segment;
+    }
+
+    /**
+     * Records that a resource from the given segment is in the database (or was rejected for good).
+     */
+    void committed(long segment) {
+        AtomicInteger count = uncommitted.get(segment);
+        if (count != null && count.decrementAndGet() == 0 && segment != currentSegment) {
+            deleteSegment(segment, count);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void force(long end) throws IOException {
+        forceLock.lock();
+        try {
+            if (forced >= end) {
+                // Another append's force already covered this line
+                return;
+            }
+            long target = written;
+            channel.force(false);
+            forced = target;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    // Called with appendLock held
+    private void rotate() throws IOException {
+        long previous = currentSegment;
+        forceLock.lock();
+        try {
+            channel.force(false);
+            forced = written;
+            channel.close();
+            openSegment(previous + 1);
+        } finally {
+            forceLock.unlock();
+        }
+        AtomicInteger count = uncommitted.get(previous);
+        if (count == null || count.get() == 0) {
+            deleteSegment(previous, count);
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = channel.size();
+        currentSegment = segment;
+    }
+
+    private void deleteSegment(long segment, AtomicInteger count) {
+        if (count != null) {
+            uncommitted.remove(segment, count);
+        }
+        try {
+            Files.deleteIfExists(segmentPath(segment));
+        } catch (IOException e) {
+            // Harmless: the entries are skipped as already stored when the segment is replayed
+            log.warn("Could not delete ingest journal segment {}", segmentPath(segment), e);
+        }
+    }
+
+    private int read(long segment, List<Entry> entries) throws IOException {
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(segmentPath(segment), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = parse(segment, line);
+                if (entry == null) {
+                    // A line cut short by a crash; its request never got its 202
+                    log.warn("Skipping a damaged line in ingest journal segment {}", segmentPath(segment));
+                    continue;
+                }
+                entries.add(entry);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Entry parse(long segment, String line) {
+        String[] fields = line.split("\t", 5);
+        if (fields.length != 5) {
+            return null;
+        }
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(fields[4].getBytes(StandardCharsets.UTF_8));
+            if (crc.getValue() != Long.parseLong(fields[3], 16)) {
+                return null;
+            }
+            return new Entry(segment, fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]), fields[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("journal-%012d.log", segment));
+    }
+}
@@ -0,0 +1,233 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.InstantType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A search result that is read from the database one page at a time.
+ *
+ * Rows are read in a fixed order and every page is fetched with "key > key of the last row of the
+ * previous page" (keyset pagination), which is an index range scan no matter how deep the page is.
+ * The key is usually the row id, or e.g. (effective_datetime, id) for searches sorted by date.
+ * HAPI keeps this object in its paging provider between requests, so we remember the key at each
+ * page boundary we have served; following next/previous links therefore never re-reads earlier rows.
+ * Only the requested page is loaded and transformed into FHIR resources.
+ *
+ * A result built withStoredJson can also be written row by row (streamPage, see BundleStreamer):
+ * the page is then read in small chunks and each row's stored JSON is handed over without parsing.
+ *
+ * @param <E> The entity type, e.g. ObservationEntity.
+ * @param <K> The keyset key, e.g. Integer for the row id.
+ */
+class KeysetBundleProvider<E, K> implements IBundleProvider {
+
+    /** Loads up to theLimit rows that come after theAfterKey in the result order. */
+    interface PageQuery<E, K> {
+        List<E> fetchAfter(K theAfterKey, int theLimit);
+    }
+
+    /** Same as PageQuery but only the keys, used to skip ahead cheaply when a client jumps to a later page. */
+    interface KeyQuery<K> {
+        List<K> fetchKeysAfter(K theAfterKey, int theLimit);
+    }
+
+    /** Receives the entries of a streamed page, in Bundle order. */
+    interface EntrySink {
+        /**
+         * @param json The stored JSON of the row, or null if it has to be encoded from theResource.
+         */
+        void match(String resourceType, Integer id, String json, Supplier<? extends IBaseResource> theResource)
+                throws IOException;
+
+        void include(IBaseResource theResource) throws IOException;
+
+        /** Called after each chunk of rows, e.g. to flush what has been written so far. */
+        void endOfChunk() throws IOException;
+    }
+
+    private record StoredJson<E>(String resourceType, Function<E, Integer> idOf, Function<E, String> json) {}
+
+    private final PageQuery<E, K> pageQuery;
+    private final KeyQuery<K> keyQuery;
+    private final Function<E, K> keyOf;
+    private final Function<E, ? extends IBaseResource> transform;
+    private final Supplier<Long> countQuery;
+    private final InstantType published = InstantType.now();
+    private Function<List<E>, List<IBaseResource>> includes;
+    private StoredJson<E> storedJson;
+
+    // Offset of a row in the result -> key of the row just before it
+    private final ConcurrentNavigableMap<Integer, K> boundaries = new ConcurrentSkipListMap<>();
+    private volatile Integer size;
+
+    /**
+     * @param startKey A key that sorts before every row, e.g. 0 for ids, which start at 1.
+     * @param countQuery Counts all matching rows, or null if the client asked for _total=none.
+     */
+    KeysetBundleProvider(K startKey, PageQuery<E, K> pageQuery, KeyQuery<K> keyQuery, Function<E, K> keyOf,
+            Function<E, ? extends IBaseResource> transform, Supplier<Long> countQuery) {
+        this.pageQuery = pageQuery;
+        this.keyQuery = keyQuery;
+        this.keyOf = keyOf;
+        this.transform = transform;
+        this.countQuery = countQuery;
+        this.boundaries.put(0, startKey);
+    }
+
+    /**
+     * Adds the _include/_revinclude resources for each page, after the page's matches.
+     * @param includes Loads the included resources for the rows of one page (see IncludeLoader).
+     */
+    KeysetBundleProvider<E, K> withIncludes(Function<List<E>, List<IBaseResource>> includes) {
+        this.includes = includes;
+        return this;
+    }
+
+    /**
+     * Makes the result streamable: rows are written with the given JSON instead of being transformed.
+     * @param json The stored resource JSON of a row, or null if the row has none and must be transformed.
+     */
+    KeysetBundleProvider<E, K> withStoredJson(String resourceType, Function<E, Integer> idOf, Function<E, String> json) {
+        this.storedJson = new StoredJson<>(resourceType, idOf, json);
+        return this;
+    }
+
+    boolean isStreamable() {
+        return storedJson != null;
+    }
+
+    /**
+     * @return false if the request has _total=none, i.e. the COUNT query can be skipped.
+     */
+    static boolean isTotalRequested(RequestDetails theRequestDetails) {
+        String[] total = theRequestDetails.getParameters().get("_total");
+        return total == null || total.length == 0 || !"none".equals(total[0]);
+    }
+
+    @Override
+    public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+        if (theToIndex <= theFromIndex) {
+            return List.of();
+        }
+        Optional<K> afterKey = keyBefore(theFromIndex);
+        if (afterKey.isEmpty()) {
+            return List.of();
+        }
+
+        List<E> rows = fetchPage(theFromIndex, afterKey.get(), theToIndex - theFromIndex);
+        List<IBaseResource> resources = new ArrayList<>(rows.size());
+        for (E row : rows) {
+            resources.add(transform.apply(row));
+        }
+        if (includes != null && !rows.isEmpty()) {
+            resources.addAll(includes.apply(rows));
+        }
+        return resources;
+    }
+
+    /**
+     * Writes rows theFromIndex to theToIndex (exclusive) to the sink, reading at most theChunkSize rows
+     * at a time, so only one chunk of entities is held in memory however large the page is.
+     * The includes of each chunk follow its matches.
+     * @return The number of matching rows written.
+     */
+    int streamPage(int theFromIndex, int theToIndex, int theChunkSize, EntrySink theSink) throws IOException {
+        Optional<K> start = (theToIndex > theFromIndex) ? keyBefore(theFromIndex) : Optional.empty();
+        if (start.isEmpty()) {
+            return 0;
+        }
+
+        K afterKey = start.get();
+        int position = theFromIndex;
+        while (position < theToIndex) {
+            int requested = Math.min(theChunkSize, theToIndex - position);
+            List<E> rows = fetchPage(position, afterKey, requested);
+            for (E row : rows) {
+                theSink.match(storedJson.resourceType(), storedJson.idOf().apply(row), storedJson.json().apply(row),
+                        () -> transform.apply(row));
+            }
+            if (includes != null && !rows.isEmpty()) {
+                for (IBaseResource included : includes.apply(rows)) {
+                    theSink.include(included);
+                }
+            }
+            theSink.endOfChunk();
+
+            position += rows.size();
+            if (rows.size() < requested) {
+                break;
+            }
+            afterKey = keyOf.apply(rows.get(rows.size() - 1));
+        }
+        return position - theFromIndex;
+    }
+
+    // Key of the row just before theFromIndex, or empty if the result has fewer rows than that
+    private Optional<K> keyBefore(int theFromIndex) {
+        Map.Entry<Integer, K> start = boundaries.floorEntry(theFromIndex);
+        K afterKey = start.getValue();
+        int toSkip = theFromIndex - start.getKey();
+        if (toSkip > 0) {
+            List<K> skipped = keyQuery.fetchKeysAfter(afterKey, toSkip);
+            if (skipped.size() < toSkip) {
+                return Optional.empty();
+            }
+            afterKey = skipped.get(skipped.size() - 1);
+            boundaries.put(theFromIndex, afterKey);
+        }
+        return Optional.of(afterKey);
+    }
+
+    private List<E> fetchPage(int theFromIndex, K theAfterKey, int theRequested) {
+        List<E> rows = pageQuery.fetchAfter(theAfterKey, theRequested);
+        if (!rows.isEmpty()) {
+            boundaries.put(theFromIndex + rows.size(), keyOf.apply(rows.get(rows.size() - 1)));
+        }
+        if (rows.size() < theRequested && countQuery != null) {
+            // We just read past the last row, so we know the total without counting
+            size = theFromIndex + rows.size();
+        }
+        return rows;
+    }
+
+    @Override
+    public Integer size() {
+        if (countQuery == null) {
+            return null;
+        }
+        if (size == null) {
+            size = Math.toIntExact(countQuery.get());
+        }
+        return size;
+    }
+
+    @Override
+    public IPrimitiveType<Date> getPublished() {
+        return published;
+    }
+
+    @Override
+    public String getUuid() {
+        // Let the paging provider assign the id it stores us under
+        return null;
+    }
+
+    @Override
+    public Integer preferredPageSize() {
+        return null;
+    }
+}
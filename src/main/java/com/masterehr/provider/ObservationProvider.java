@@ -2,33 +2,82 @@ package com.masterehr.provider;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.valueset.BundleTypeEnum;
+import ca.uhn.fhir.rest.annotation.Create;
+import ca.uhn.fhir.rest.annotation.History;
 import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.IncludeParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.annotation.OptionalParam;
 import ca.uhn.fhir.rest.annotation.Read;
-import ca.uhn.fhir.rest.annotation.RequiredParam;
+import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.annotation.Since;
+import ca.uhn.fhir.rest.annotation.Sort;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.masterehr.cache.ObservationSeriesStore;
+import com.masterehr.cache.ParsedResourceCache;
 import com.masterehr.entity.ObservationEntity;
+import com.masterehr.repository.ObservationCursor;
 import com.masterehr.repository.ObservationRepository;
+import com.masterehr.repository.ObservationSearch;
+import com.masterehr.repository.ObservationStatsRepository;
+import com.masterehr.repository.ResourceIdAllocator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.function.Supplier;
 
 @Component
 public class ObservationProvider implements IResourceProvider {
 
     private final ObservationRepository observationRepository;
+    private final ObservationStatsRepository statsRepository;
+    private final IncludeLoader includeLoader;
+    private final ResourceIdAllocator idAllocator;
+    private final ParsedResourceCache resourceCache;
+    private final ObservationSeriesStore seriesStore;
+    private final BundleStreamer bundleStreamer;
+    private final ResourceHistory resourceHistory;
     private final FhirContext fhirContext;
 
     @Autowired
-    public ObservationProvider(ObservationRepository observationRepository, FhirContext fhirContext) {
+    public ObservationProvider(ObservationRepository observationRepository, ObservationStatsRepository statsRepository,
+            IncludeLoader includeLoader, ResourceIdAllocator idAllocator, ParsedResourceCache resourceCache,
+            ObservationSeriesStore seriesStore, BundleStreamer bundleStreamer, ResourceHistory resourceHistory,
+            FhirContext fhirContext) {
         this.observationRepository = observationRepository;
+        this.statsRepository = statsRepository;
+        this.includeLoader = includeLoader;
+        this.idAllocator = idAllocator;
+        this.resourceCache = resourceCache;
+        this.seriesStore = seriesStore;
+        this.bundleStreamer = bundleStreamer;
+        this.resourceHistory = resourceHistory;
         this.fhirContext = fhirContext;
     }
 
@@ -44,21 +93,292 @@ public class ObservationProvider implements IResourceProvider {
                 .orElseThrow(() -> new ResourceNotFoundException("Observation not found with ID: " + theId.getIdPart()));
     }
 
+    /**
+     * Handles POST /Observation. With "Prefer: respond-async" AsyncCreateInterceptor usually answers first
+     * and the resource is written behind; this is the synchronous path.
+     */
+    @Create
+    @Transactional
+    public MethodOutcome createObservation(@ResourceParam Observation theObservation) {
+        ObservationEntity observationEntity = transformToObservationEntity(theObservation, new ObservationEntity());
+
+        // Reserve the id first so the row and its JSON are written in a single INSERT
+        observationEntity.setObservationId(idAllocator.nextId());
+        theObservation.setId(observationEntity.getObservationId().toString());
+        observationEntity.setLastUpdated(ResourceVersions.stamp(theObservation, ResourceVersions.FIRST_VERSION));
+        String jsonResource = fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(theObservation);
+        observationEntity.setResourceJson(jsonResource);
+
+        ObservationEntity savedObservation = observationRepository.save(observationEntity);
+        resourceHistory.created("Observation", savedObservation.getObservationId(), savedObservation.getVersionId(),
+                savedObservation.getLastUpdated(), savedObservation.getResourceBlob());
+        indexInsertedObservations(List.of(savedObservation));
+
+        MethodOutcome outcome = new MethodOutcome();
+        outcome.setId(ResourceVersions.versionedId("Observation", savedObservation.getObservationId(), savedObservation.getVersionId()));
+        outcome.setCreated(true);
+        outcome.setResource(theObservation);
+        return outcome;
+    }
+
+    /**
+     * Handles GET /Observation/[id]/_history, newest version first (see ResourceHistory).
+     */
+    @History
+    public IBundleProvider getObservationHistory(@IdParam IdType theId, @Since InstantType theSince,
+            RequestDetails theRequestDetails) {
+        return resourceHistory.instanceHistory("Observation", theId, theSince, () -> getObservationById(theId), theRequestDetails);
+    }
+
+    /**
+     * Handles GET /Observation/_history, newest change first.
+     */
+    @History
+    public IBundleProvider getObservationTypeHistory(@Since InstantType theSince, RequestDetails theRequestDetails) {
+        return resourceHistory.history("Observation", theSince, theRequestDetails);
+    }
+
+    /**
+     * Handles GET /Observation?patient=[id] and GET /Observation?encounter=[id], optionally narrowed by
+     * code, date (with ge/gt/le/lt prefixes) and status, and sorted with _sort=date or _sort=-date.
+     * All filters go into one parameterized query and results are paged lazily with keyset
+     * pagination on (effective_datetime, id). _total=none skips the COUNT query.
+     * _include=Observation:patient and Observation:encounter are loaded per page with batched IN queries,
+     * at most 1000 included resources per page; a page that would have more ends with an OperationOutcome
+     * warning (search.mode = outcome) instead.
+     * Plain JSON responses are streamed row by row (see BundleStreamer).
+     */
     @Search
-    public List<Observation> searchObservationsByPatient(
-        @RequiredParam(name = Observation.SP_PATIENT) ReferenceParam thePatient) {
+    public IBundleProvider searchObservations(
+        @OptionalParam(name = Observation.SP_PATIENT) ReferenceParam thePatient,
+        @OptionalParam(name = Observation.SP_ENCOUNTER) ReferenceParam theEncounter,
+        @OptionalParam(name = Observation.SP_CODE) TokenOrListParam theCode,
+        @OptionalParam(name = Observation.SP_DATE) DateRangeParam theDate,
+        @OptionalParam(name = Observation.SP_STATUS) TokenOrListParam theStatus,
+        @Sort SortSpec theSort,
+        @IncludeParam(allow = {"Observation:patient", "Observation:subject", "Observation:encounter", "*"})
+        Set<Include> theIncludes,
+        RequestDetails theRequestDetails) {
 
-        String patientId = thePatient.getIdPart();
-        List<ObservationEntity> dbObservations = observationRepository.findByPatientId(Integer.parseInt(patientId));
+        if (thePatient == null && theEncounter == null) {
+            // Without one of these the query would scan the whole table
+            throw new InvalidRequestException("Observation searches require a patient or encounter parameter");
+        }
 
-        return dbObservations.stream()
-                .map(this::transformToFhirObservation)
-                .collect(Collectors.toList());
+        ObservationSearch search = new ObservationSearch(
+                thePatient != null ? Integer.parseInt(thePatient.getIdPart()) : null,
+                theEncounter != null ? Integer.parseInt(theEncounter.getIdPart()) : null,
+                toCodes(theCode),
+                toStatuses(theStatus),
+                theDate != null ? toLocalDateTime(theDate.getLowerBoundAsInstant()) : null,
+                theDate != null ? toLocalDateTime(theDate.getUpperBoundAsInstant()) : null,
+                isNewestFirst(theSort));
+
+        Supplier<Long> countQuery = KeysetBundleProvider.isTotalRequested(theRequestDetails)
+                ? () -> observationRepository.searchCount(search)
+                : null;
+
+        KeysetBundleProvider<ObservationEntity, ObservationCursor> results = new KeysetBundleProvider<>(ObservationCursor.START,
+                (after, limit) -> observationRepository.searchPage(search, after, limit),
+                (after, limit) -> observationRepository.searchCursors(search, after, limit),
+                entity -> new ObservationCursor(entity.getEffectiveDatetime(), entity.getObservationId()),
+                this::transformToFhirObservation,
+                countQuery)
+                .withStoredJson("Observation", ObservationEntity::getObservationId, ObservationProvider::storedJson);
+        if (theIncludes != null && !theIncludes.isEmpty()) {
+            results.withIncludes(page -> includeLoader.forObservations(page, theIncludes));
+        }
+        return bundleStreamer.streamIfPossible(results, theRequestDetails);
+    }
+
+    /**
+     * Handles GET /Observation/$lastn?patient=[id]&max=[n]&code=[codes]: the newest n observations
+     * (default 1) of every code the patient has, or only of the given codes. The ranking is done
+     * by the database with ROW_NUMBER(), so only the returned rows are read.
+     * Not answered from ObservationSeriesStore: a series only holds observations with a valueQuantity
+     * and cannot list the codes a patient has, while $lastn returns every observation of every code.
+     * Codes are matched on loinc_code alone; a system in the code parameter is not checked.
+     */
+    @Operation(name = "$lastn", idempotent = true, bundleType = BundleTypeEnum.SEARCHSET)
+    public IBundleProvider lastN(
+        @OperationParam(name = "patient", min = 1) ReferenceParam thePatient,
+        @OperationParam(name = "code") TokenOrListParam theCode,
+        @OperationParam(name = "max") IntegerType theMax) {
+
+        Integer patientId = Integer.parseInt(thePatient.getIdPart());
+        int max = (theMax != null && theMax.getValue() != null) ? theMax.getValue() : 1;
+        if (max < 1) {
+            throw new InvalidRequestException("max must be at least 1");
+        }
+
+        List<ObservationEntity> rows;
+        List<ObservationSearch.Code> codes = toCodes(theCode);
+        if (codes.isEmpty()) {
+            rows = observationRepository.findLastN(patientId, max);
+        } else {
+            Set<String> codeValues = new LinkedHashSet<>();
+            for (ObservationSearch.Code code : codes) {
+                codeValues.add(code.code());
+            }
+            rows = observationRepository.findLastNForCodes(patientId, codeValues, max);
+        }
+
+        List<IBaseResource> resources = new ArrayList<>(rows.size());
+        for (ObservationEntity row : rows) {
+            resources.add(transformToFhirObservation(row));
+        }
+        return new SimpleBundleProvider(resources);
+    }
+
+    /**
+     * Handles GET /Observation/$trend?patient=[id]&code=[code]&date=[range]&max=[n]: the dated values of one
+     * code for one patient, oldest first, as Parameters with one "point" (time, value, observation) each.
+     * With max only the newest n points in the range are returned. Answered from ObservationSeriesStore,
+     * so no Observation row or JSON is read; observations without effective[x] or valueQuantity have no point.
+     * As for $lastn the code is matched on loinc_code alone.
+     */
+    @Operation(name = "$trend", idempotent = true)
+    public Parameters trend(
+        @OperationParam(name = "patient", min = 1) ReferenceParam thePatient,
+        @OperationParam(name = "code", min = 1) TokenParam theCode,
+        @OperationParam(name = "date") DateRangeParam theDate,
+        @OperationParam(name = "max") IntegerType theMax) {
+
+        Integer patientId = Integer.parseInt(thePatient.getIdPart());
+        if (theMax != null && theMax.getValue() != null && theMax.getValue() < 1) {
+            throw new InvalidRequestException("max must be at least 1");
+        }
+        ObservationSeriesStore.Series series = seriesStore.get(patientId, theCode.getValue());
+
+        int from = 0;
+        int to = series.size();
+        if (theDate != null && theDate.getLowerBoundAsInstant() != null) {
+            from = series.firstAtOrAfter(theDate.getLowerBoundAsInstant().getTime());
+        }
+        if (theDate != null && theDate.getUpperBoundAsInstant() != null) {
+            to = series.endAtOrBefore(theDate.getUpperBoundAsInstant().getTime());
+        }
+        if (theMax != null && theMax.getValue() != null) {
+            from = Math.max(from, to - theMax.getValue());
+        }
+
+        Parameters result = new Parameters();
+        result.addParameter().setName("patient").setValue(new Reference("Patient/" + patientId));
+        result.addParameter().setName("code").setValue(new StringType(theCode.getValue()));
+        for (int i = from; i < to; i++) {
+            Parameters.ParametersParameterComponent point = result.addParameter().setName("point");
+            point.addPart().setName("time").setValue(new DateTimeType(new Date(series.timeAt(i))));
+            point.addPart().setName("value").setValue(new DecimalType(series.valueAt(i)));
+            point.addPart().setName("observation").setValue(new Reference("Observation/" + series.observationIdAt(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Handles GET /Observation/$stats?patient=[id]&code=[codes]&date=[range]&bucket=[hour|day|week|month|year]:
+     * count, min, max, mean and last value per code and time bucket (default day), as Parameters with one
+     * "stats" part per bucket. The grouping runs in SQL (ObservationStatsRepository); no row or JSON is loaded.
+     * Without code every code the patient has is aggregated; codes are matched on loinc_code alone.
+     */
+    @Operation(name = "$stats", idempotent = true)
+    public Parameters stats(
+        @OperationParam(name = "patient", min = 1) ReferenceParam thePatient,
+        @OperationParam(name = "code") TokenOrListParam theCode,
+        @OperationParam(name = "date") DateRangeParam theDate,
+        @OperationParam(name = "bucket") CodeType theBucket) {
+
+        Integer patientId = Integer.parseInt(thePatient.getIdPart());
+        ObservationStatsRepository.Bucket bucket = toBucket(theBucket);
+        Set<String> codes = new LinkedHashSet<>();
+        for (ObservationSearch.Code code : toCodes(theCode)) {
+            codes.add(code.code());
+        }
+
+        Parameters result = new Parameters();
+        result.addParameter().setName("patient").setValue(new Reference("Patient/" + patientId));
+        result.addParameter().setName("bucket").setValue(new CodeType(bucket.name().toLowerCase()));
+        statsRepository.aggregate(patientId, codes,
+                theDate != null ? toLocalDateTime(theDate.getLowerBoundAsInstant()) : null,
+                theDate != null ? toLocalDateTime(theDate.getUpperBoundAsInstant()) : null,
+                bucket, stats -> {
+                    Parameters.ParametersParameterComponent part = result.addParameter().setName("stats");
+                    part.addPart().setName("code").setValue(new StringType(stats.code()));
+                    part.addPart().setName("start").setValue(new DateTimeType(
+                            Date.from(stats.bucketStart().atZone(ZoneId.systemDefault()).toInstant())));
+                    part.addPart().setName("count").setValue(new IntegerType(Math.toIntExact(stats.count())));
+                    part.addPart().setName("min").setValue(new DecimalType(stats.min()));
+                    part.addPart().setName("max").setValue(new DecimalType(stats.max()));
+                    part.addPart().setName("mean").setValue(new DecimalType(stats.mean()));
+                    part.addPart().setName("last").setValue(new DecimalType(stats.last()));
+                    if (stats.unit() != null) {
+                        part.addPart().setName("unit").setValue(new StringType(stats.unit()));
+                    }
+                });
+        return result;
+    }
+
+    private static ObservationStatsRepository.Bucket toBucket(CodeType theBucket) {
+        if (theBucket == null || theBucket.isEmpty()) {
+            return ObservationStatsRepository.Bucket.DAY;
+        }
+        try {
+            return ObservationStatsRepository.Bucket.valueOf(theBucket.getValue().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("bucket must be one of hour, day, week, month, year");
+        }
+    }
+
+    // Keeps loaded trend series in step with new observations, including those inserted in batches
+    void indexInsertedObservations(List<ObservationEntity> insertedObservations) {
+        seriesStore.addAfterCommit(insertedObservations);
+    }
+
+    private static List<ObservationSearch.Code> toCodes(TokenOrListParam theCode) {
+        List<ObservationSearch.Code> codes = new ArrayList<>();
+        if (theCode != null) {
+            for (TokenParam token : theCode.getValuesAsQueryTokens()) {
+                String system = (token.getSystem() == null || token.getSystem().isEmpty()) ? null : token.getSystem();
+                codes.add(new ObservationSearch.Code(system, token.getValue()));
+            }
+        }
+        return codes;
+    }
+
+    private static List<String> toStatuses(TokenOrListParam theStatus) {
+        List<String> statuses = new ArrayList<>();
+        if (theStatus != null) {
+            for (TokenParam token : theStatus.getValuesAsQueryTokens()) {
+                // Stored the way transformToObservationEntity writes it, i.e. the lowercase FHIR code
+                statuses.add(token.getValue().toLowerCase());
+            }
+        }
+        return statuses;
+    }
+
+    private static boolean isNewestFirst(SortSpec theSort) {
+        if (theSort == null) {
+            return false;
+        }
+        if (!Observation.SP_DATE.equals(theSort.getParamName()) || theSort.getChain() != null) {
+            throw new InvalidRequestException("Observation searches can only be sorted by date");
+        }
+        return theSort.getOrder() == SortOrderEnum.DESC;
+    }
+
+    private static LocalDateTime toLocalDateTime(Date date) {
+        return (date == null) ? null : date.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
+    }
+
+    // The JSON a streamed search can send as-is, or null if the row has to go through the transform
+    private static String storedJson(ObservationEntity entity) {
+        return entity.hasResourceJson() ? entity.getResourceJson() : null;
     }
 
-    private Observation transformToFhirObservation(ObservationEntity entity) {
-        if (entity.getResourceJson() != null && !entity.getResourceJson().isEmpty()) {
-            return fhirContext.newJsonParser().parseResource(Observation.class, entity.getResourceJson());
+    Observation transformToFhirObservation(ObservationEntity entity) {
+        if (entity.hasResourceJson()) {
+            Observation parsed = resourceCache.getOrParse(Observation.class, entity.getObservationId(),
+                    String.valueOf(entity.getVersionId()), entity::getResourceJson);
+            return ResourceVersions.apply(parsed, entity.getVersionId(), entity.getLastUpdated());
         }
 
         Observation observation = new Observation();
@@ -95,6 +415,50 @@ public class ObservationProvider implements IResourceProvider {
             observation.setValue(value);
         }
 
-        return observation;
+        return ResourceVersions.apply(observation, entity.getVersionId(), entity.getLastUpdated());
+    }
+
+    /**
+     * Transforms an incoming FHIR Observation into our internal database entity.
+     */
+    ObservationEntity transformToObservationEntity(Observation fhirObservation, ObservationEntity existingEntity) {
+        ObservationEntity entity = (existingEntity != null) ? existingEntity : new ObservationEntity();
+
+        if (fhirObservation.hasSubject() && fhirObservation.getSubject().hasReference()) {
+            IdType subjectId = new IdType(fhirObservation.getSubject().getReference());
+            entity.setPatientId(Integer.parseInt(subjectId.getIdPart()));
+        }
+
+        if (fhirObservation.hasEncounter() && fhirObservation.getEncounter().hasReference()) {
+            IdType encounterId = new IdType(fhirObservation.getEncounter().getReference());
+            entity.setEncounterId(Integer.parseInt(encounterId.getIdPart()));
+        }
+
+        if (fhirObservation.hasCode() && fhirObservation.getCode().hasCoding()) {
+            Coding coding = fhirObservation.getCode().getCodingFirstRep();
+            entity.setLoincSystem(coding.getSystem());
+            entity.setLoincCode(coding.getCode());
+        }
+
+        if (fhirObservation.hasStatus()) {
+            entity.setStatus(fhirObservation.getStatus().toCode());
+        }
+
+        // effective[x] may arrive as a dateTime or a Period; we only store the start point
+        if (fhirObservation.hasEffectiveDateTimeType()) {
+            Date effective = fhirObservation.getEffectiveDateTimeType().getValue();
+            entity.setEffectiveDatetime(effective.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime());
+        } else if (fhirObservation.hasEffectivePeriod() && fhirObservation.getEffectivePeriod().hasStart()) {
+            Date effective = fhirObservation.getEffectivePeriod().getStart();
+            entity.setEffectiveDatetime(effective.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime());
+        }
+
+        if (fhirObservation.hasValueQuantity()) {
+            Quantity value = fhirObservation.getValueQuantity();
+            entity.setValueQuantity(value.getValue());
+            entity.setValueUnit(value.hasUnit() ? value.getUnit() : value.getCode());
+        }
+
+        return entity;
     }
 }
\ No newline at end of file
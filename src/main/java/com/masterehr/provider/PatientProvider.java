@@ -1,34 +1,103 @@
 package com.masterehr.provider;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.valueset.BundleTypeEnum;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.UrlUtil;
+import com.masterehr.cache.OhipIdentifierIndex;
+import com.masterehr.cache.ParsedResourceCache;
+import com.masterehr.cache.PatientNameIndex;
+import com.masterehr.config.DataSourceRouting;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.NameNormalizer;
+import com.masterehr.entity.ObservationEntity;
 import com.masterehr.entity.PatientEntity;
+import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ObservationRepository;
 import com.masterehr.repository.PatientRepository;
+import com.masterehr.repository.PatientSearch;
+import com.masterehr.repository.ResourceIdAllocator;
 import org.hl7.fhir.r4.model.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.sql.Date;
+import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 @Component
 public class PatientProvider implements IResourceProvider {
 
     private final PatientRepository patientRepository;
+    private final EncounterRepository encounterRepository;
+    private final ObservationRepository observationRepository;
+    private final EncounterProvider encounterProvider;
+    private final ObservationProvider observationProvider;
+    private final IncludeLoader includeLoader;
+    private final ResourceIdAllocator idAllocator;
+    private final ParsedResourceCache resourceCache;
+    private final OhipIdentifierIndex ohipIndex;
+    private final PatientNameIndex nameIndex;
+    private final BundleStreamer bundleStreamer;
+    private final ResourceHistory resourceHistory;
     private final FhirContext fhirContext;
+    private final ExecutorService queryExecutor;
+    private final TransactionTemplate transactionTemplate;
 
     @Autowired
-    public PatientProvider(PatientRepository patientRepository, FhirContext fhirContext) {
+    public PatientProvider(PatientRepository patientRepository, EncounterRepository encounterRepository,
+            ObservationRepository observationRepository, EncounterProvider encounterProvider,
+            ObservationProvider observationProvider, IncludeLoader includeLoader, ResourceIdAllocator idAllocator,
+            ParsedResourceCache resourceCache, OhipIdentifierIndex ohipIndex, PatientNameIndex nameIndex,
+            BundleStreamer bundleStreamer, ResourceHistory resourceHistory, FhirContext fhirContext,
+            @Qualifier("queryExecutor") ExecutorService queryExecutor, PlatformTransactionManager transactionManager) {
         this.patientRepository = patientRepository;
+        this.encounterRepository = encounterRepository;
+        this.observationRepository = observationRepository;
+        this.encounterProvider = encounterProvider;
+        this.observationProvider = observationProvider;
+        this.includeLoader = includeLoader;
+        this.idAllocator = idAllocator;
+        this.resourceCache = resourceCache;
+        this.ohipIndex = ohipIndex;
+        this.nameIndex = nameIndex;
+        this.bundleStreamer = bundleStreamer;
+        this.resourceHistory = resourceHistory;
         this.fhirContext = fhirContext;
+        this.queryExecutor = queryExecutor;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
     private static final String OHIP_SYSTEM_URL = "http://hl7.org/fhir/sid/ca-on-ohip";
@@ -40,69 +109,485 @@ public class PatientProvider implements IResourceProvider {
                 .orElseThrow(() -> new ResourceNotFoundException("Patient not found with ID: " + theId.getIdPart()));
     }
 
+    /**
+     * Handles GET /Patient with any of family, given and name (starts with by default, or :exact / :contains),
+     * phonetic, birthdate (with ge/gt/le/lt prefixes) and identifier=[ohip system]|[number], paged lazily
+     * with keyset pagination on patient_id. Names are compared case- and accent-insensitively (see NameNormalizer).
+     * Searches on names and the OHIP number alone (typeahead) are answered from PatientNameIndex and
+     * only the page's rows are read; the rest runs as one query on the normalized name columns.
+     * _revinclude=Encounter:patient and _revinclude=Observation:patient add each page's
+     * encounters and observations, loaded with batched IN queries, at most 1000 per page; a page that
+     * would have more ends with an OperationOutcome warning (search.mode = outcome) instead.
+     * Plain JSON responses are streamed row by row (see BundleStreamer).
+     */
     @Search
-    public List<Patient> searchPatientsByFamilyName(@RequiredParam(name = Patient.SP_FAMILY) String familyName) {
-        return patientRepository.findByLastName(familyName).stream()
-                .map(this::transformToFhirPatient)
-                .collect(Collectors.toList());
+    public IBundleProvider searchPatients(
+            @OptionalParam(name = Patient.SP_FAMILY) StringParam theFamily,
+            @OptionalParam(name = Patient.SP_GIVEN) StringParam theGiven,
+            @OptionalParam(name = Patient.SP_NAME) StringParam theName,
+            @OptionalParam(name = Patient.SP_PHONETIC) StringParam thePhonetic,
+            @OptionalParam(name = Patient.SP_BIRTHDATE) DateRangeParam theBirthDate,
+            @OptionalParam(name = Patient.SP_IDENTIFIER) TokenParam theIdentifier,
+            @IncludeParam(reverse = true, allow = {"Encounter:patient", "Encounter:subject",
+                    "Observation:patient", "Observation:subject", "*"}) Set<Include> theRevIncludes,
+            RequestDetails theRequestDetails) {
+        if (theFamily == null && theGiven == null && theName == null && thePhonetic == null
+                && theBirthDate == null && theIdentifier == null) {
+            // Without one of these the query would read the whole table
+            throw new InvalidRequestException("Patient searches require a family, given, name, phonetic, birthdate or identifier parameter");
+        }
+        if (theIdentifier != null && theIdentifier.getSystem() != null && !OHIP_SYSTEM_URL.equals(theIdentifier.getSystem())) {
+            // The OHIP number is the only identifier we store
+            return new SimpleBundleProvider();
+        }
+
+        PatientSearch search = new PatientSearch(
+                toNameFilter(theFamily), toNameFilter(theGiven), toNameFilter(theName),
+                thePhonetic != null ? NameNormalizer.phonetic(thePhonetic.getValue()) : null,
+                theBirthDate != null && theBirthDate.getLowerBoundAsInstant() != null
+                        ? theBirthDate.getLowerBoundAsInstant().toInstant().atZone(ZoneId.systemDefault()).toLocalDate() : null,
+                theBirthDate != null && theBirthDate.getUpperBoundAsInstant() != null
+                        ? theBirthDate.getUpperBoundAsInstant().toInstant().atZone(ZoneId.systemDefault()).toLocalDate() : null,
+                theIdentifier != null ? theIdentifier.getValue() : null);
+        if (hasUnmatchableName(search) || (thePhonetic != null && search.phoneticCode() == null)) {
+            // Nothing searchable is left of the text after normalizing, e.g. family=-
+            return new SimpleBundleProvider();
+        }
+
+        boolean totalRequested = KeysetBundleProvider.isTotalRequested(theRequestDetails);
+        KeysetBundleProvider<PatientEntity, Integer> results;
+        if (nameIndex.isReady() && isIndexable(search)) {
+            int[] ids = findInNameIndex(search);
+            Supplier<Long> countQuery = totalRequested ? () -> (long) ids.length : null;
+            results = new KeysetBundleProvider<>(0,
+                    (afterId, limit) -> loadInIdOrder(idsAfter(ids, afterId, limit)),
+                    (afterId, limit) -> idsAfter(ids, afterId, limit),
+                    PatientEntity::getPatientId,
+                    this::transformToFhirPatient,
+                    countQuery);
+        } else {
+            Supplier<Long> countQuery = totalRequested ? () -> patientRepository.searchCount(search) : null;
+            results = new KeysetBundleProvider<>(0,
+                    (afterId, limit) -> patientRepository.searchPage(search, afterId, limit),
+                    (afterId, limit) -> patientRepository.searchIds(search, afterId, limit),
+                    PatientEntity::getPatientId,
+                    this::transformToFhirPatient,
+                    countQuery);
+        }
+        results.withStoredJson("Patient", PatientEntity::getPatientId, PatientProvider::storedJson);
+        if (theRevIncludes != null && !theRevIncludes.isEmpty()) {
+            results.withIncludes(page -> includeLoader.forPatients(page, theRevIncludes));
+        }
+        return bundleStreamer.streamIfPossible(results, theRequestDetails);
     }
 
-    @Create
-    @Transactional
-    public MethodOutcome createPatient(@ResourceParam Patient thePatient) {
-        // Create a new entity and map the fields
-        PatientEntity patientEntity = transformToPatientEntity(thePatient, new PatientEntity());
-        patientEntity.setPatientUid(UUID.randomUUID());
+    private static PatientSearch.NameFilter toNameFilter(StringParam theParam) {
+        if (theParam == null || theParam.getValue() == null) {
+            return null;
+        }
+        if (theParam.isExact()) {
+            return new PatientSearch.NameFilter(PatientSearch.Match.EXACT, theParam.getValue());
+        }
+        return new PatientSearch.NameFilter(theParam.isContains() ? PatientSearch.Match.CONTAINS : PatientSearch.Match.STARTS_WITH,
+                NameNormalizer.normalize(theParam.getValue()));
+    }
 
-        // Save once to get the database-assigned ID
-        PatientEntity savedPatient = patientRepository.save(patientEntity);
+    private static boolean hasUnmatchableName(PatientSearch search) {
+        for (PatientSearch.NameFilter filter : new PatientSearch.NameFilter[]{search.family(), search.given(), search.name()}) {
+            if (filter != null && filter.value() == null) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        // Now, update the FHIR resource with the new ID before storing its JSON representation
-        thePatient.setId(savedPatient.getPatientId().toString());
-        String jsonResource = fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(thePatient);
-        savedPatient.setResourceJson(jsonResource);
-        
-        // Save again to store the JSON representation
-        patientRepository.save(savedPatient);
+    // The name index covers every filter except :exact and birthdate, which need the columns
+    private static boolean isIndexable(PatientSearch search) {
+        for (PatientSearch.NameFilter filter : new PatientSearch.NameFilter[]{search.family(), search.given(), search.name()}) {
+            if (filter != null && filter.match() == PatientSearch.Match.EXACT) {
+                return false;
+            }
+        }
+        return search.bornFrom() == null && search.bornTo() == null
+                && (search.family() != null || search.given() != null || search.name() != null || search.phoneticCode() != null);
+    }
 
-        MethodOutcome outcome = new MethodOutcome();
-        outcome.setId(new IdType("Patient", savedPatient.getPatientId().toString()));
-        outcome.setCreated(true);
-        outcome.setResource(thePatient);
-        return outcome;
+    // Ids matching every filter of an indexable search, ascending
+    private int[] findInNameIndex(PatientSearch search) {
+        List<int[]> matches = new ArrayList<>();
+        if (search.family() != null) {
+            matches.add(nameIndex.find(PatientNameIndex.Field.FAMILY, indexMatch(search.family()), search.family().value()));
+        }
+        if (search.given() != null) {
+            matches.add(nameIndex.find(PatientNameIndex.Field.GIVEN, indexMatch(search.given()), search.given().value()));
+        }
+        if (search.name() != null) {
+            matches.add(union(
+                    nameIndex.find(PatientNameIndex.Field.FAMILY, indexMatch(search.name()), search.name().value()),
+                    nameIndex.find(PatientNameIndex.Field.GIVEN, indexMatch(search.name()), search.name().value())));
+        }
+        if (search.phoneticCode() != null) {
+            matches.add(union(
+                    nameIndex.find(PatientNameIndex.Field.FAMILY, PatientNameIndex.Match.PHONETIC, search.phoneticCode()),
+                    nameIndex.find(PatientNameIndex.Field.GIVEN, PatientNameIndex.Match.PHONETIC, search.phoneticCode())));
+        }
+        if (search.ohipNumber() != null) {
+            Integer id = findPatientIdByOhipNumber(search.ohipNumber());
+            matches.add(id != null ? new int[]{id} : new int[0]);
+        }
+
+        int[] ids = matches.get(0);
+        for (int i = 1; i < matches.size(); i++) {
+            ids = intersect(ids, matches.get(i));
+        }
+        return ids;
+    }
+
+    private static PatientNameIndex.Match indexMatch(PatientSearch.NameFilter filter) {
+        return (filter.match() == PatientSearch.Match.CONTAINS) ? PatientNameIndex.Match.CONTAINS : PatientNameIndex.Match.STARTS_WITH;
+    }
+
+    private List<PatientEntity> loadInIdOrder(List<Integer> ids) {
+        List<PatientEntity> rows = new ArrayList<>(patientRepository.findAllById(ids));
+        rows.sort(Comparator.comparing(PatientEntity::getPatientId));
+        return rows;
+    }
+
+    // Up to limit ids greater than afterId from a sorted array
+    private static List<Integer> idsAfter(int[] ids, Integer afterId, int limit) {
+        int start = Arrays.binarySearch(ids, afterId);
+        start = (start >= 0) ? start + 1 : -start - 1;
+        List<Integer> page = new ArrayList<>(Math.min(limit, ids.length - start));
+        for (int i = start; i < ids.length && page.size() < limit; i++) {
+            page.add(ids[i]);
+        }
+        return page;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            result[count++] = next;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Handles GET /Patient/[id]/_history, newest version first (see ResourceHistory).
+     */
+    @History
+    public IBundleProvider getPatientHistory(@IdParam IdType theId, @Since InstantType theSince,
+            RequestDetails theRequestDetails) {
+        return resourceHistory.instanceHistory("Patient", theId, theSince, () -> getPatientById(theId), theRequestDetails);
+    }
+
+    /**
+     * Handles GET /Patient/_history, newest change first.
+     */
+    @History
+    public IBundleProvider getPatientTypeHistory(@Since InstantType theSince, RequestDetails theRequestDetails) {
+        return resourceHistory.history("Patient", theSince, theRequestDetails);
+    }
+
+    /**
+     * Handles POST /Patient. With "If-None-Exist: identifier=http://hl7.org/fhir/sid/ca-on-ohip|[number]"
+     * an existing patient with that OHIP number is returned (200) instead of creating a duplicate,
+     * so a sender can safely resend. The check is answered by the in-memory OHIP index; if the
+     * index missed a patient created elsewhere, the unique constraint on ohip_number rejects the
+     * INSERT and the existing patient is looked up instead.
+     */
+    @Create
+    public MethodOutcome createPatient(@ResourceParam Patient thePatient, @ConditionalUrlParam String theConditional) {
+        if (theConditional == null) {
+            return insertPatient(thePatient);
+        }
+        String ohipNumber = ohipNumberFromCondition(theConditional);
+        Integer existingId = findPatientIdByOhipNumber(ohipNumber);
+        if (existingId != null) {
+            return existingPatientOutcome(existingId);
+        }
+        try {
+            return insertPatient(thePatient);
+        } catch (DataIntegrityViolationException e) {
+            // Created meanwhile by a concurrent request or another server instance
+            Integer createdId = patientRepository.findPatientIdByOhipNumber(ohipNumber).orElseThrow(() -> e);
+            ohipIndex.put(ohipNumber, createdId);
+            return existingPatientOutcome(createdId);
+        }
     }
 
+    /**
+     * Handles PUT /Patient/[id], and the conditional PUT /Patient?identifier=http://hl7.org/fhir/sid/ca-on-ohip|[number],
+     * which updates the patient with that OHIP number or creates it if there is none. As for createPatient,
+     * a patient the OHIP index does not know (created elsewhere) is found through the unique constraint
+     * and updated instead.
+     */
     @Update
-    @Transactional
-    public MethodOutcome updatePatient(@IdParam IdType theId, @ResourceParam Patient thePatient) {
-        return patientRepository.findById(Integer.parseInt(theId.getIdPart()))
+    public MethodOutcome updatePatient(@IdParam IdType theId, @ResourceParam Patient thePatient,
+            @ConditionalUrlParam String theConditional) {
+        String idPart;
+        if ((theId == null || !theId.hasIdPart()) && theConditional != null) {
+            String ohipNumber = ohipNumberFromCondition(theConditional);
+            Integer patientId = findPatientIdByOhipNumber(ohipNumber);
+            if (patientId == null) {
+                try {
+                    // Its own transaction, so a duplicate rolls back only the INSERT; inside a transaction
+                    // Bundle it joins the Bundle's, which then fails as a whole
+                    return insertPatient(thePatient);
+                } catch (DataIntegrityViolationException e) {
+                    if (TransactionSynchronizationManager.isActualTransactionActive()) {
+                        throw e;
+                    }
+                    patientId = patientRepository.findPatientIdByOhipNumber(ohipNumber).orElseThrow(() -> e);
+                    ohipIndex.put(ohipNumber, patientId);
+                }
+            }
+            idPart = patientId.toString();
+        } else if (theId != null && theId.hasIdPart()) {
+            idPart = theId.getIdPart();
+        } else {
+            throw new InvalidRequestException("Update requires a patient id or a conditional URL");
+        }
+        return transactionTemplate.execute(status -> updateExistingPatient(theId, idPart, thePatient));
+    }
+
+    private MethodOutcome updateExistingPatient(IdType theId, String idPart, Patient thePatient) {
+        return patientRepository.findById(Integer.parseInt(idPart))
                 .map(existingPatient -> {
+                    ResourceVersions.checkIfMatch(theId, existingPatient.getVersionId());
+                    String previousOhipNumber = existingPatient.getOhipNumber();
+                    String previousFirstName = existingPatient.getFirstName();
+                    String previousLastName = existingPatient.getLastName();
                     PatientEntity updatedEntity = transformToPatientEntity(thePatient, existingPatient);
                     
-                    // Update the FHIR resource with the correct ID before storing the JSON
-                    thePatient.setId(theId.getIdPart());
+                    // Update the FHIR resource with the correct ID and the version this update creates before storing the JSON
+                    thePatient.setId(idPart);
+                    updatedEntity.setLastUpdated(ResourceVersions.stamp(thePatient, existingPatient.getVersionId() + 1));
                     String jsonResource = fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(thePatient);
                     updatedEntity.setResourceJson(jsonResource);
 
-                    PatientEntity savedPatient = patientRepository.save(updatedEntity);
+                    PatientEntity savedPatient;
+                    try {
+                        savedPatient = patientRepository.saveAndFlush(updatedEntity);
+                    } catch (ObjectOptimisticLockingFailureException e) {
+                        throw ResourceVersions.concurrentUpdate(theId != null ? theId : new IdType("Patient", idPart), e);
+                    }
+                    resourceCache.invalidate("Patient", savedPatient.getPatientId());
+                    resourceHistory.updated("Patient", savedPatient.getPatientId(), savedPatient.getVersionId(),
+                            savedPatient.getLastUpdated(), savedPatient.getResourceBlob());
+                    ohipIndex.putAfterCommit(previousOhipNumber, savedPatient.getOhipNumber(), savedPatient.getPatientId());
+                    nameIndex.putAfterCommit(previousFirstName, previousLastName,
+                            savedPatient.getFirstName(), savedPatient.getLastName(), savedPatient.getPatientId());
 
                     MethodOutcome outcome = new MethodOutcome();
-                    outcome.setId(new IdType("Patient", savedPatient.getPatientId().toString()));
+                    outcome.setId(ResourceVersions.versionedId("Patient", savedPatient.getPatientId(), savedPatient.getVersionId()));
                     outcome.setResource(thePatient);
                     return outcome;
                 })
+                .orElseThrow(() -> new ResourceNotFoundException("Patient not found with ID: " + idPart));
+    }
+
+    private MethodOutcome insertPatient(Patient thePatient) {
+        // Create a new entity and map the fields
+        PatientEntity patientEntity = transformToPatientEntity(thePatient, new PatientEntity());
+        patientEntity.setPatientUid(UUID.randomUUID());
+
+        // The id is reserved up front, so the row and its JSON representation go out in one INSERT
+        patientEntity.setPatientId(idAllocator.nextId());
+        thePatient.setId(patientEntity.getPatientId().toString());
+        patientEntity.setLastUpdated(ResourceVersions.stamp(thePatient, ResourceVersions.FIRST_VERSION));
+        String jsonResource = fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(thePatient);
+        patientEntity.setResourceJson(jsonResource);
+
+        // The row and its change log entry commit together; inside a transaction Bundle this joins its transaction.
+        // Flushed right away so a duplicate OHIP number fails here, where createPatient expects it.
+        PatientEntity savedPatient = transactionTemplate.execute(status -> {
+            PatientEntity saved = patientRepository.saveAndFlush(patientEntity);
+            resourceHistory.created("Patient", saved.getPatientId(), saved.getVersionId(), saved.getLastUpdated(),
+                    saved.getResourceBlob());
+            indexInsertedPatients(List.of(saved));
+            return saved;
+        });
+
+        MethodOutcome outcome = new MethodOutcome();
+        outcome.setId(ResourceVersions.versionedId("Patient", savedPatient.getPatientId(), savedPatient.getVersionId()));
+        outcome.setCreated(true);
+        outcome.setResource(thePatient);
+        return outcome;
+    }
+
+    // A conditional create that matched: 200 with the existing id, the patient itself is not loaded
+    private static MethodOutcome existingPatientOutcome(Integer patientId) {
+        MethodOutcome outcome = new MethodOutcome();
+        outcome.setId(new IdType("Patient", patientId.toString()));
+        outcome.setCreated(false);
+        return outcome;
+    }
+
+    /**
+     * @return The id of the patient with this OHIP number, or null if there is none.
+     * Answered from the in-memory index once it is loaded, from the database before that.
+     */
+    Integer findPatientIdByOhipNumber(String ohipNumber) {
+        if (ohipIndex.isReady()) {
+            return ohipIndex.find(ohipNumber);
+        }
+        return patientRepository.findPatientIdByOhipNumber(ohipNumber).orElse(null);
+    }
+
+    // Keeps the OHIP and name indexes in step with new patients, including those inserted by transaction Bundles
+    void indexInsertedPatients(List<PatientEntity> insertedPatients) {
+        for (PatientEntity patient : insertedPatients) {
+            ohipIndex.putAfterCommit(null, patient.getOhipNumber(), patient.getPatientId());
+            nameIndex.putAfterCommit(null, null, patient.getFirstName(), patient.getLastName(), patient.getPatientId());
+        }
+    }
+
+    /**
+     * Reads the OHIP number out of a conditional URL or If-None-Exist value, e.g.
+     * "Patient?identifier=http://hl7.org/fhir/sid/ca-on-ohip|1234567890". That is the only
+     * search supported for conditional operations.
+     */
+    static String ohipNumberFromCondition(String theConditional) {
+        Map<String, String[]> params = UrlUtil.parseQueryString(theConditional.substring(theConditional.indexOf('?') + 1));
+        String[] identifiers = params.get(Patient.SP_IDENTIFIER);
+        if (params.size() == 1 && identifiers != null && identifiers.length == 1) {
+            String token = identifiers[0];
+            int bar = token.indexOf('|');
+            if (bar > 0 && OHIP_SYSTEM_URL.equals(token.substring(0, bar)) && bar < token.length() - 1) {
+                return token.substring(bar + 1);
+            }
+        }
+        throw new InvalidRequestException("Conditional operations on Patient only support identifier="
+                + OHIP_SYSTEM_URL + "|[number], got: " + theConditional);
+    }
+
+    /**
+     * Handles GET /Patient/[id]/$everything: the patient with all of their encounters and
+     * observations, so a chart can be pulled without a search per type. The patient and the
+     * counts of the other two types are read concurrently on the query executor; the encounters
+     * and observations are then read page by page with keyset pagination as the client follows
+     * the next links, so a large chart is never loaded at once.
+     * _type limits the resource types returned; _since drops resources last updated earlier,
+     * filtered on the last_updated column so unchanged rows are never loaded.
+     */
+    @Operation(name = "$everything", idempotent = true, bundleType = BundleTypeEnum.SEARCHSET)
+    public IBundleProvider patientEverything(
+            @IdParam IdType theId,
+            @OperationParam(name = "_since") InstantType theSince,
+            @OperationParam(name = "_type") StringType theType) {
+        Integer patientId = Integer.parseInt(theId.getIdPart());
+        List<String> types;
+        try {
+            types = BulkExportService.parseTypes(theType != null ? theType.getValue() : null);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException(e.getMessage());
+        }
+
+        LocalDateTime since = (theSince != null && theSince.getValue() != null)
+                ? LocalDateTime.ofInstant(theSince.getValue().toInstant(), ZoneId.systemDefault())
+                : null;
+
+        // Start every query before waiting on any of them
+        CompletableFuture<Optional<Patient>> patient = supplyAsync(
+                () -> patientRepository.findById(patientId).map(this::transformToFhirPatient));
+        CompletableFuture<Long> encounterCount = types.contains("Encounter")
+                ? supplyAsync(() -> encounterRepository.countByPatientIdSince(patientId, since))
+                : CompletableFuture.completedFuture(0L);
+        CompletableFuture<Long> observationCount = types.contains("Observation")
+                ? supplyAsync(() -> observationRepository.countByPatientIdSince(patientId, since))
+                : CompletableFuture.completedFuture(0L);
+
+        Patient fhirPatient = join(patient)
                 .orElseThrow(() -> new ResourceNotFoundException("Patient not found with ID: " + theId.getIdPart()));
+
+        List<IBundleProvider> parts = new ArrayList<>(3);
+        if (types.contains("Patient") && (since == null || !fhirPatient.getMeta().getLastUpdated().before(theSince.getValue()))) {
+            parts.add(new SimpleBundleProvider(fhirPatient));
+        }
+        long encounters = join(encounterCount);
+        if (encounters > 0) {
+            parts.add(new KeysetBundleProvider<EncounterEntity, Integer>(0,
+                    (afterId, limit) -> encounterRepository.findPageByPatientIdSince(patientId, since, afterId, PageRequest.of(0, limit)),
+                    (afterId, limit) -> encounterRepository.findIdPageByPatientIdSince(patientId, since, afterId, PageRequest.of(0, limit)),
+                    EncounterEntity::getEncounterId,
+                    encounterProvider::transformToFhirEncounter,
+                    () -> encounters));
+        }
+        long observations = join(observationCount);
+        if (observations > 0) {
+            parts.add(new KeysetBundleProvider<ObservationEntity, Integer>(0,
+                    (afterId, limit) -> observationRepository.findPageByPatientIdSince(patientId, since, afterId, PageRequest.of(0, limit)),
+                    (afterId, limit) -> observationRepository.findIdPageByPatientIdSince(patientId, since, afterId, PageRequest.of(0, limit)),
+                    ObservationEntity::getObservationId,
+                    observationProvider::transformToFhirObservation,
+                    () -> observations));
+        }
+        return new CompositeBundleProvider(parts);
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> query) {
+        // The query threads read from the same database (primary or replica) as the request
+        DataSourceRouting.Target target = DataSourceRouting.current();
+        return CompletableFuture.supplyAsync(() -> DataSourceRouting.call(target, query), queryExecutor);
+    }
+
+    // Waits for a query and rethrows its failure as the exception HAPI should answer with
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof BaseServerResponseException serverException) {
+                throw serverException;
+            }
+            throw new InternalErrorException("Failed to load patient compartment: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // The JSON a streamed search can send as-is, or null if the row has to go through the transform
+    private static String storedJson(PatientEntity entity) {
+        return entity.hasResourceJson() ? entity.getResourceJson() : null;
     }
 
     /**
      * Transforms our internal database entity into the standard FHIR Patient resource.
      * This method is now robust and handles both old and new data.
      */
-    private Patient transformToFhirPatient(PatientEntity entity) {
-        // If we have a stored JSON representation, use it for efficiency.
-        if (entity.getResourceJson() != null && !entity.getResourceJson().isEmpty()) {
-            IParser parser = fhirContext.newJsonParser();
-            return parser.parseResource(Patient.class, entity.getResourceJson());
+    Patient transformToFhirPatient(PatientEntity entity) {
+        // If we have a stored JSON representation, use it for efficiency (parsed at most once while cached).
+        if (entity.hasResourceJson()) {
+            Patient parsed = resourceCache.getOrParse(Patient.class, entity.getPatientId(),
+                    String.valueOf(entity.getVersionId()), entity::getResourceJson);
+            return ResourceVersions.apply(parsed, entity.getVersionId(), entity.getLastUpdated());
         }
 
         // Fallback for old data: Manually transform the fields if resource_json is null.
@@ -129,13 +614,13 @@ public class PatientProvider implements IResourceProvider {
             fhirPatient.setGender(Enumerations.AdministrativeGender.fromCode(entity.getGender().toLowerCase()));
         }
         
-        return fhirPatient;
+        return ResourceVersions.apply(fhirPatient, entity.getVersionId(), entity.getLastUpdated());
     }
 
     /**
      * Transforms an incoming FHIR Patient resource into our internal database entity for saving.
      */
-    private PatientEntity transformToPatientEntity(Patient fhirPatient, PatientEntity existingEntity) {
+    PatientEntity transformToPatientEntity(Patient fhirPatient, PatientEntity existingEntity) {
         // Use the existing entity if provided (for updates), otherwise create a new one.
         PatientEntity entity = (existingEntity != null) ? existingEntity : new PatientEntity();
 
@@ -0,0 +1,110 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntryTransactionMethodEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import com.masterehr.entity.ResourceJsonCodec;
+import com.masterehr.repository.ResourceChangeRepository;
+import com.masterehr.repository.ResourceChangeRepository.ResourceChange;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Writes the change log for the providers' creates and updates and reads it back for _history
+ * (see ResourceChangeRepository). Batch inserts are logged by ResourceBatchWriter itself.
+ *
+ * History is newest first and paged like a search (KeysetBundleProvider on change_seq), so every page is
+ * an index range scan. Resources written before the change log existed have no entries; their instance
+ * history is just the current version.
+ */
+@Component
+public class ResourceHistory {
+
+    private final ResourceChangeRepository changeRepository;
+    private final FhirContext fhirContext;
+
+    @Autowired
+    public ResourceHistory(ResourceChangeRepository changeRepository, FhirContext fhirContext) {
+        this.changeRepository = changeRepository;
+        this.fhirContext = fhirContext;
+    }
+
+    /**
+     * Logs a new resource. Must be called in the transaction that inserts it.
+     */
+    void created(String resourceType, Integer id, Integer version, LocalDateTime lastUpdated, byte[] resourceBlob) {
+        changeRepository.append(List.of(ResourceChange.created(resourceType, id, version, lastUpdated, resourceBlob)));
+    }
+
+    /**
+     * Logs a new version of a resource. Must be called in the transaction that updates it, after the flush.
+     */
+    void updated(String resourceType, Integer id, Integer version, LocalDateTime lastUpdated, byte[] resourceBlob) {
+        changeRepository.append(List.of(ResourceChange.updated(resourceType, id, version, lastUpdated, resourceBlob)));
+    }
+
+    /**
+     * GET /[type]/[id]/_history.
+     * @param current Reads the current version; throws ResourceNotFoundException if there is none.
+     */
+    IBundleProvider instanceHistory(String resourceType, IdType theId, InstantType theSince,
+            Supplier<? extends Resource> current, RequestDetails theRequestDetails) {
+        Integer id = Integer.parseInt(theId.getIdPart());
+        LocalDateTime since = toLocalDateTime(theSince);
+        if (changeRepository.findHistorySeqs(resourceType, id, null, Long.MAX_VALUE, 1).isEmpty()) {
+            Resource resource = current.get();
+            if (since != null && resource.getMeta().hasLastUpdated()
+                    && resource.getMeta().getLastUpdated().toInstant().isBefore(theSince.getValue().toInstant())) {
+                return new SimpleBundleProvider();
+            }
+            return new SimpleBundleProvider(List.of(resource));
+        }
+        return history(resourceType, id, since, theRequestDetails);
+    }
+
+    /**
+     * GET /[type]/_history, or GET /_history with a null resourceType.
+     */
+    IBundleProvider history(String resourceType, InstantType theSince, RequestDetails theRequestDetails) {
+        return history(resourceType, null, toLocalDateTime(theSince), theRequestDetails);
+    }
+
+    private IBundleProvider history(String resourceType, Integer id, LocalDateTime since, RequestDetails theRequestDetails) {
+        Supplier<Long> countQuery = KeysetBundleProvider.isTotalRequested(theRequestDetails)
+                ? () -> changeRepository.countHistory(resourceType, id, since)
+                : null;
+        return new KeysetBundleProvider<ResourceChange, Long>(Long.MAX_VALUE,
+                (beforeSeq, limit) -> changeRepository.findHistory(resourceType, id, since, beforeSeq, limit),
+                (beforeSeq, limit) -> changeRepository.findHistorySeqs(resourceType, id, since, beforeSeq, limit),
+                ResourceChange::seq,
+                this::toResource,
+                countQuery);
+    }
+
+    private Resource toResource(ResourceChange change) {
+        Resource resource = (Resource) fhirContext.newJsonParser().parseResource(ResourceJsonCodec.decode(change.resourceBlob()));
+        resource.setId(change.resourceType() + "/" + change.resourceId());
+        ResourceVersions.apply(resource, change.versionId(), change.changedAt());
+        // Becomes entry.request.method of the history Bundle
+        ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD.put(resource,
+                change.created() ? BundleEntryTransactionMethodEnum.POST : BundleEntryTransactionMethodEnum.PUT);
+        return resource;
+    }
+
+    static LocalDateTime toLocalDateTime(InstantType theInstant) {
+        return (theInstant == null || theInstant.getValue() == null)
+                ? null
+                : LocalDateTime.ofInstant(theInstant.getValue().toInstant(), ZoneId.systemDefault());
+    }
+}
@@ -0,0 +1,82 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+
+/**
+ * meta.versionId / meta.lastUpdated handling shared by the providers.
+ *
+ * The version_id and last_updated columns are the source of truth. The same values are also
+ * written into resource_json when a resource is stored, so the raw read path can return the
+ * JSON untouched. On an update the stored JSON gets the version the row will have after
+ * Hibernate's @Version increment, i.e. the loaded version + 1.
+ */
+final class ResourceVersions {
+
+    static final int FIRST_VERSION = 1;
+
+    private ResourceVersions() {
+    }
+
+    /**
+     * Sets meta.versionId and meta.lastUpdated (now) on a resource that is about to be stored.
+     * @return The timestamp for the entity's last_updated column.
+     */
+    static LocalDateTime stamp(Resource resource, int version) {
+        Date now = new Date();
+        resource.getMeta().setVersionId(String.valueOf(version)).setLastUpdated(now);
+        resource.setIdElement(resource.getIdElement().withVersion(String.valueOf(version)));
+        return LocalDateTime.ofInstant(now.toInstant(), ZoneId.systemDefault());
+    }
+
+    /**
+     * Copies the row's version and last_updated onto a resource read from the database,
+     * so HAPI sends the matching ETag and the meta is right for rows stored before versioning.
+     */
+    static <T extends Resource> T apply(T resource, Integer version, LocalDateTime lastUpdated) {
+        if (version != null) {
+            resource.getMeta().setVersionId(version.toString());
+            resource.setIdElement(resource.getIdElement().withVersion(version.toString()));
+        }
+        if (lastUpdated != null) {
+            resource.getMeta().setLastUpdated(Date.from(lastUpdated.atZone(ZoneId.systemDefault()).toInstant()));
+        }
+        return resource;
+    }
+
+    /**
+     * Enforces If-Match on an update. HAPI puts the If-Match version into the id passed to @Update.
+     * @throws PreconditionFailedException (412) if the client's version is not the current one.
+     */
+    static void checkIfMatch(IdType theId, Integer currentVersion) {
+        if (theId != null && theId.hasVersionIdPart()
+                && !theId.getVersionIdPart().equals(String.valueOf(currentVersion))) {
+            throw new PreconditionFailedException("Version conflict: " + theId.toUnqualifiedVersionless().getValue()
+                    + " is at version " + currentVersion + ", not " + theId.getVersionIdPart());
+        }
+    }
+
+    /**
+     * The error for an update that lost the race against another one between read and flush:
+     * 412 if the client sent If-Match, 409 otherwise.
+     */
+    static BaseServerResponseException concurrentUpdate(IdType theId, Exception cause) {
+        String message = "Resource was updated concurrently, read it again and retry: " + theId.toUnqualifiedVersionless().getValue();
+        BaseServerResponseException exception = theId.hasVersionIdPart()
+                ? new PreconditionFailedException(message)
+                : new ResourceVersionConflictException(message);
+        exception.initCause(cause);
+        return exception;
+    }
+
+    static IdType versionedId(String resourceType, Integer id, Integer version) {
+        return new IdType(resourceType, id.toString(), String.valueOf(version));
+    }
+}
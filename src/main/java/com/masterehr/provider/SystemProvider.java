@@ -0,0 +1,368 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.Transaction;
+import ca.uhn.fhir.rest.annotation.TransactionParam;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.ParameterUtil;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.entity.PatientEntity;
+import com.masterehr.repository.ResourceBatchWriter;
+import com.masterehr.repository.ResourceIdAllocator;
+import org.hl7.fhir.r4.model.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * System-level (not resource-specific) operations, registered as a plain provider.
+ * Handles POST /fhir with a transaction or batch Bundle so a sender can push a whole
+ * chart in one request instead of one POST per resource.
+ */
+@Component
+public class SystemProvider {
+
+    private static final String URN_UUID_PREFIX = "urn:uuid:";
+
+    private final PatientProvider patientProvider;
+    private final EncounterProvider encounterProvider;
+    private final ObservationProvider observationProvider;
+    private final ResourceBatchWriter batchWriter;
+    private final ResourceIdAllocator idAllocator;
+    private final FhirContext fhirContext;
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public SystemProvider(PatientProvider patientProvider, EncounterProvider encounterProvider,
+            ObservationProvider observationProvider, ResourceBatchWriter batchWriter, ResourceIdAllocator idAllocator,
+            FhirContext fhirContext, PlatformTransactionManager transactionManager) {
+        this.patientProvider = patientProvider;
+        this.encounterProvider = encounterProvider;
+        this.observationProvider = observationProvider;
+        this.batchWriter = batchWriter;
+        this.idAllocator = idAllocator;
+        this.fhirContext = fhirContext;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Handles POST /fhir with a Bundle of type "transaction" or "batch".
+     * Ids for all POST entries are reserved first, so urn:uuid references between entries can be
+     * replaced with the real ids before anything is written. The rows are then inserted with one
+     * JDBC batch per resource type. A Patient POST with request.ifNoneExist (identifier=...ca-on-ohip|[number])
+     * that matches an existing patient is not written again; references to its fullUrl resolve to
+     * that patient and its response is "200 OK". PUT entries are passed on to the matching provider's update method.
+     * A "transaction" Bundle runs in one database transaction, and any failure rolls back the whole Bundle.
+     * In a "batch" Bundle the entries are independent (urn:uuid references are rejected): the inserts of each
+     * resource type and every PUT commit in their own transaction, and entries that cannot be processed are
+     * reported individually in the response while the rest are still written.
+     */
+    @Transaction
+    public Bundle transaction(@TransactionParam Bundle theBundle) {
+        if (theBundle.getType() == Bundle.BundleType.TRANSACTION) {
+            return transactionTemplate.execute(status -> process(theBundle, true));
+        } else if (theBundle.getType() == Bundle.BundleType.BATCH) {
+            return process(theBundle, false);
+        } else {
+            throw new InvalidRequestException("Bundle type must be 'transaction' or 'batch'");
+        }
+    }
+
+    private Bundle process(Bundle theBundle, boolean isTransaction) {
+        List<Bundle.BundleEntryComponent> entries = theBundle.getEntry();
+        Bundle.BundleEntryResponseComponent[] responses = new Bundle.BundleEntryResponseComponent[entries.size()];
+
+        List<Integer> patientEntries = new ArrayList<>();
+        List<Integer> encounterEntries = new ArrayList<>();
+        List<Integer> observationEntries = new ArrayList<>();
+        List<Integer> updateEntries = new ArrayList<>();
+
+        for (int i = 0; i < entries.size(); i++) {
+            Bundle.BundleEntryComponent entry = entries.get(i);
+            Resource resource = entry.getResource();
+            Bundle.HTTPVerb method = entry.getRequest().getMethod();
+
+            if (resource == null || (method != Bundle.HTTPVerb.POST && method != Bundle.HTTPVerb.PUT)) {
+                responses[i] = failEntry(isTransaction, i, "Only POST and PUT entries with a resource are supported");
+            } else if (method == Bundle.HTTPVerb.PUT) {
+                updateEntries.add(i);
+            } else if (resource instanceof Patient) {
+                patientEntries.add(i);
+            } else if (resource instanceof Encounter) {
+                encounterEntries.add(i);
+            } else if (resource instanceof Observation) {
+                observationEntries.add(i);
+            } else {
+                responses[i] = failEntry(isTransaction, i, "Unsupported resource type: " + resource.fhirType());
+            }
+        }
+
+        // fullUrl (e.g. urn:uuid:...) -> local reference (e.g. Patient/42) of every created or matched entry
+        Map<String, String> createdReferences = new HashMap<>();
+        for (Iterator<Integer> it = patientEntries.iterator(); it.hasNext(); ) {
+            int i = it.next();
+            Bundle.BundleEntryComponent entry = entries.get(i);
+            if (!entry.getRequest().hasIfNoneExist()) {
+                continue;
+            }
+            try {
+                Integer existingId = patientProvider.findPatientIdByOhipNumber(
+                        PatientProvider.ohipNumberFromCondition(entry.getRequest().getIfNoneExist()));
+                if (existingId != null) {
+                    it.remove();
+                    if (entry.hasFullUrl()) {
+                        createdReferences.put(entry.getFullUrl(), "Patient/" + existingId);
+                    }
+                    responses[i] = new Bundle.BundleEntryResponseComponent()
+                            .setStatus("200 OK")
+                            .setLocation("Patient/" + existingId);
+                }
+            } catch (InvalidRequestException e) {
+                it.remove();
+                responses[i] = failEntry(isTransaction, i, e.getMessage());
+            }
+        }
+
+        // Reserve ids for every created resource up front (one round trip for the whole Bundle),
+        // so references between entries resolve regardless of order and each row is a single INSERT.
+        List<Integer> createEntries = new ArrayList<>(patientEntries);
+        createEntries.addAll(encounterEntries);
+        createEntries.addAll(observationEntries);
+        int[] newIds = idAllocator.nextIds(createEntries.size());
+
+        int[] assignedIds = new int[entries.size()];
+        for (int k = 0; k < createEntries.size(); k++) {
+            Bundle.BundleEntryComponent entry = entries.get(createEntries.get(k));
+            assignedIds[createEntries.get(k)] = newIds[k];
+            entry.getResource().setId(String.valueOf(newIds[k]));
+            if (entry.hasFullUrl()) {
+                createdReferences.put(entry.getFullUrl(), entry.getResource().fhirType() + "/" + newIds[k]);
+            }
+        }
+        IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+
+        List<PatientEntity> patients = new ArrayList<>();
+        // Index of the Bundle entry of each row that is inserted
+        List<Integer> insertedPatientEntries = new ArrayList<>();
+        for (int i : patientEntries) {
+            try {
+                Patient patient = (Patient) entries.get(i).getResource();
+                resolveReferences(patient, createdReferences, isTransaction);
+                PatientEntity entity = patientProvider.transformToPatientEntity(patient, new PatientEntity());
+                entity.setPatientId(assignedIds[i]);
+                entity.setPatientUid(UUID.randomUUID());
+                entity.setLastUpdated(ResourceVersions.stamp(patient, ResourceVersions.FIRST_VERSION));
+                entity.setResourceJson(parser.encodeResourceToString(patient));
+                patients.add(entity);
+                insertedPatientEntries.add(i);
+                responses[i] = createdResponse(patient);
+            } catch (RuntimeException e) {
+                responses[i] = failEntry(isTransaction, i, e.getMessage());
+            }
+        }
+
+        List<EncounterEntity> encounters = new ArrayList<>();
+        List<Integer> insertedEncounterEntries = new ArrayList<>();
+        for (int i : encounterEntries) {
+            try {
+                Encounter encounter = (Encounter) entries.get(i).getResource();
+                resolveReferences(encounter, createdReferences, isTransaction);
+                EncounterEntity entity = encounterProvider.transformToEncounterEntity(encounter, new EncounterEntity());
+                entity.setEncounterId(assignedIds[i]);
+                entity.setLastUpdated(ResourceVersions.stamp(encounter, ResourceVersions.FIRST_VERSION));
+                entity.setResourceJson(parser.encodeResourceToString(encounter));
+                encounters.add(entity);
+                insertedEncounterEntries.add(i);
+                responses[i] = createdResponse(encounter);
+            } catch (RuntimeException e) {
+                responses[i] = failEntry(isTransaction, i, e.getMessage());
+            }
+        }
+
+        List<ObservationEntity> observations = new ArrayList<>();
+        List<Integer> insertedObservationEntries = new ArrayList<>();
+        for (int i : observationEntries) {
+            try {
+                Observation observation = (Observation) entries.get(i).getResource();
+                resolveReferences(observation, createdReferences, isTransaction);
+                ObservationEntity entity = observationProvider.transformToObservationEntity(observation, new ObservationEntity());
+                entity.setObservationId(assignedIds[i]);
+                entity.setLastUpdated(ResourceVersions.stamp(observation, ResourceVersions.FIRST_VERSION));
+                entity.setResourceJson(parser.encodeResourceToString(observation));
+                observations.add(entity);
+                insertedObservationEntries.add(i);
+                responses[i] = createdResponse(observation);
+            } catch (RuntimeException e) {
+                responses[i] = failEntry(isTransaction, i, e.getMessage());
+            }
+        }
+
+        // Parents first so the foreign keys are satisfied; one JDBC batch per table
+        insertRows(patients, insertedPatientEntries, rows -> {
+            batchWriter.insertPatients(rows);
+            patientProvider.indexInsertedPatients(rows);
+        }, responses, isTransaction);
+        insertRows(encounters, insertedEncounterEntries, batchWriter::insertEncounters, responses, isTransaction);
+        insertRows(observations, insertedObservationEntries, rows -> {
+            batchWriter.insertObservations(rows);
+            observationProvider.indexInsertedObservations(rows);
+        }, responses, isTransaction);
+
+        // --- Updates (PUT) are rare in practice, so they simply go through the normal providers ---
+        // In a batch each update is its own transaction (the providers open their own), so a failed one
+        // rolls back alone
+        for (int i : updateEntries) {
+            try {
+                responses[i] = applyUpdate(entries.get(i), createdReferences, isTransaction);
+            } catch (BaseServerResponseException e) {
+                if (isTransaction) {
+                    throw e;
+                }
+                responses[i] = errorResponse(String.valueOf(e.getStatusCode()), e.getMessage());
+            } catch (DataIntegrityViolationException e) {
+                if (isTransaction) {
+                    throw e;
+                }
+                responses[i] = integrityErrorResponse(e);
+            }
+        }
+
+        Bundle response = new Bundle();
+        response.setType(isTransaction ? Bundle.BundleType.TRANSACTIONRESPONSE : Bundle.BundleType.BATCHRESPONSE);
+        for (Bundle.BundleEntryResponseComponent entryResponse : responses) {
+            response.addEntry().setResponse(entryResponse);
+        }
+        return response;
+    }
+
+    /**
+     * Inserts the rows of one resource type with one JDBC batch. In a batch Bundle that batch is its own
+     * transaction, and if it hits a constraint (a duplicate OHIP number, a reference to a resource that does
+     * not exist) the rows are inserted again one by one, each in its own transaction, so only the offending
+     * entries fail, with a 409 or 400 entry response.
+     * @param rowEntries The index of each row's Bundle entry.
+     */
+    private <T> void insertRows(List<T> rows, List<Integer> rowEntries, Consumer<List<T>> insert,
+            Bundle.BundleEntryResponseComponent[] responses, boolean isTransaction) {
+        if (isTransaction) {
+            insert.accept(rows);
+            return;
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> insert.accept(rows));
+        } catch (DataIntegrityViolationException e) {
+            // One bad row fails the whole batch; write them one by one to find it
+            for (int k = 0; k < rows.size(); k++) {
+                List<T> row = List.of(rows.get(k));
+                try {
+                    transactionTemplate.executeWithoutResult(status -> insert.accept(row));
+                } catch (DataIntegrityViolationException rowFailure) {
+                    responses[rowEntries.get(k)] = integrityErrorResponse(rowFailure);
+                }
+            }
+        }
+    }
+
+    private Bundle.BundleEntryResponseComponent integrityErrorResponse(DataIntegrityViolationException e) {
+        return errorResponse(e instanceof DuplicateKeyException ? "409 Conflict" : "400 Bad Request",
+                e.getMostSpecificCause().getMessage());
+    }
+
+    private Bundle.BundleEntryResponseComponent createdResponse(Resource resource) {
+        return new Bundle.BundleEntryResponseComponent()
+                .setStatus("201 Created")
+                .setLocation(resource.fhirType() + "/" + resource.getIdElement().getIdPart())
+                .setEtag(etag(resource.getMeta().getVersionId()))
+                .setLastModified(resource.getMeta().getLastUpdated());
+    }
+
+    private Bundle.BundleEntryResponseComponent applyUpdate(Bundle.BundleEntryComponent entry,
+            Map<String, String> createdReferences, boolean isTransaction) {
+        Resource resource = entry.getResource();
+        IdType id = new IdType(entry.getRequest().getUrl());
+        if (!id.hasIdPart()) {
+            throw new InvalidRequestException("PUT entry must have a url of the form [type]/[id]");
+        }
+        // request.ifMatch works like the If-Match header of a single PUT
+        if (entry.getRequest().hasIfMatch()) {
+            id = id.withVersion(ParameterUtil.parseETagValue(entry.getRequest().getIfMatch()));
+        }
+        resolveReferences(resource, createdReferences, isTransaction);
+
+        MethodOutcome outcome;
+        if (resource instanceof Patient patient) {
+            outcome = patientProvider.updatePatient(id, patient, null);
+        } else if (resource instanceof Encounter encounter) {
+            outcome = encounterProvider.updateEncounter(id, encounter);
+        } else {
+            throw new InvalidRequestException("PUT is not supported for resource type: " + resource.fhirType());
+        }
+        return new Bundle.BundleEntryResponseComponent()
+                .setStatus("200 OK")
+                .setLocation(resource.fhirType() + "/" + id.getIdPart())
+                .setEtag(etag(outcome.getId().getVersionIdPart()))
+                .setLastModified(resource.getMeta().getLastUpdated());
+    }
+
+    private static String etag(String versionId) {
+        return "W/\"" + versionId + "\"";
+    }
+
+    /**
+     * Replaces urn:uuid references that point to other entries of this Bundle with the
+     * local reference of the resource that was created for that entry.
+     */
+    private void resolveReferences(Resource resource, Map<String, String> createdReferences, boolean isTransaction) {
+        for (Reference reference : fhirContext.newTerser().getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+            String target = reference.getReference();
+            if (target == null || !target.startsWith(URN_UUID_PREFIX)) {
+                continue;
+            }
+            // Batch entries must not depend on each other, so only a transaction may resolve them
+            if (!isTransaction) {
+                throw new InvalidRequestException("urn:uuid references are only allowed in transaction Bundles");
+            }
+            String resolved = createdReferences.get(target);
+            if (resolved == null) {
+                throw new InvalidRequestException("Reference " + target + " does not match the fullUrl of any created entry");
+            }
+            reference.setReference(resolved);
+        }
+    }
+
+    private Bundle.BundleEntryResponseComponent failEntry(boolean isTransaction, int index, String message) {
+        if (isTransaction) {
+            throw new InvalidRequestException("Bundle entry " + index + ": " + message);
+        }
+        return errorResponse("400 Bad Request", message);
+    }
+
+    private Bundle.BundleEntryResponseComponent errorResponse(String status, String message) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.PROCESSING)
+                .setDiagnostics(message);
+        return new Bundle.BundleEntryResponseComponent()
+                .setStatus(status)
+                .setOutcome(outcome);
+    }
+}
@@ -0,0 +1,125 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Transfer of patient charts to the receiver FHIR server (see TransferService), registered as a plain provider.
+ *
+ * Kick-off:  POST /fhir/Patient/[id]/$transfer, or POST /fhir/Patient/$transfer with a Parameters body
+ *            holding one "patient" reference per chart -> 202 + Content-Location
+ * Status:    GET /fhir/$transfer-status?_jobId=... -> 202 with X-Progress while running, then 200 with a
+ *            Parameters resource: status, patients, patientsTransferred, patientsFailed, bundles, resources,
+ *            retries, start, end and one "error" per failed chart.
+ */
+@Component
+public class TransferProvider {
+
+    private final TransferService transferService;
+    private final FhirContext fhirContext;
+
+    @Autowired
+    public TransferProvider(TransferService transferService, FhirContext fhirContext) {
+        this.transferService = transferService;
+        this.fhirContext = fhirContext;
+    }
+
+    @Operation(name = "$transfer", type = Patient.class, manualResponse = true)
+    public void transferPatient(@IdParam IdType theId, ServletRequestDetails theRequestDetails) {
+        if (!theId.isIdPartValidLong()) {
+            throw new InvalidRequestException("Unknown patient id: " + theId.getIdPart());
+        }
+        kickOff(List.of(theId.getIdPartAsLong().intValue()), theRequestDetails);
+    }
+
+    @Operation(name = "$transfer", type = Patient.class, manualResponse = true)
+    public void transferPatients(
+            @OperationParam(name = "patient", min = 1, max = OperationParam.MAX_UNLIMITED) List<Reference> thePatients,
+            ServletRequestDetails theRequestDetails) {
+        List<Integer> patientIds = new ArrayList<>(thePatients.size());
+        for (Reference patient : thePatients) {
+            IdType id = new IdType(patient.getReference());
+            if ((id.hasResourceType() && !"Patient".equals(id.getResourceType())) || !id.isIdPartValidLong()) {
+                throw new InvalidRequestException("patient must be a reference like Patient/123: " + patient.getReference());
+            }
+            patientIds.add(id.getIdPartAsLong().intValue());
+        }
+        kickOff(patientIds, theRequestDetails);
+    }
+
+    @Operation(name = "$transfer-status", idempotent = true, manualResponse = true)
+    public void transferStatus(
+            @OperationParam(name = "_jobId", min = 1) StringType theJobId,
+            ServletRequestDetails theRequestDetails) throws IOException {
+        TransferService.TransferJob job = transferService.getJob(theJobId.getValue())
+                .orElseThrow(() -> new ResourceNotFoundException("Unknown transfer job: " + theJobId.getValue()));
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+
+        if (!job.isFinished()) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setHeader("X-Progress", (job.getPatientsTransferred() + job.getPatientsFailed()) + " of "
+                    + job.getPatientIds().size() + " patients, " + job.getBundlesSent() + " bundles sent");
+            response.setHeader(Constants.HEADER_RETRY_AFTER, "5");
+            return;
+        }
+
+        Parameters result = new Parameters();
+        result.addParameter().setName("status").setValue(new CodeType(job.getStatus().name().toLowerCase()));
+        result.addParameter().setName("patients").setValue(new IntegerType(job.getPatientIds().size()));
+        result.addParameter().setName("patientsTransferred").setValue(new IntegerType(job.getPatientsTransferred()));
+        result.addParameter().setName("patientsFailed").setValue(new IntegerType(job.getPatientsFailed()));
+        result.addParameter().setName("bundles").setValue(new IntegerType(job.getBundlesSent()));
+        result.addParameter().setName("resources").setValue(new IntegerType(Math.toIntExact(job.getResourcesSent())));
+        result.addParameter().setName("retries").setValue(new IntegerType(job.getRetries()));
+        result.addParameter().setName("start").setValue(new InstantType(Date.from(job.getStartTime())));
+        result.addParameter().setName("end").setValue(new InstantType(Date.from(job.getEndTime())));
+        for (String error : job.getErrors()) {
+            result.addParameter().setName("error").setValue(new StringType(error));
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(Constants.CT_FHIR_JSON_NEW);
+        response.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+        try (Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8)) {
+            fhirContext.newJsonParser().encodeResourceToWriter(result, writer);
+        }
+    }
+
+    private void kickOff(List<Integer> patientIds, ServletRequestDetails theRequestDetails) {
+        if (!transferService.isEnabled()) {
+            throw new NotImplementedOperationException("$transfer is not configured: lhsc.transfer.receiver-url is not set");
+        }
+        TransferService.TransferJob job = transferService.submit(patientIds);
+
+        HttpServletResponse response = theRequestDetails.getServletResponse();
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                theRequestDetails.getFhirServerBase() + "/$transfer-status?_jobId=" + job.getId());
+    }
+}
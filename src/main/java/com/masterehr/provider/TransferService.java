@@ -0,0 +1,482 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.masterehr.config.DataSourceRouting;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.entity.PatientEntity;
+import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ObservationRepository;
+import com.masterehr.repository.PatientRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes patient charts to the receiver FHIR server (lhsc.transfer.receiver-url), see TransferProvider.
+ *
+ * Each chart is read from the repositories and packed into transaction Bundles of up to
+ * lhsc.transfer.bundle-size entries: first the Patient and its Encounters, then, once those are in, the
+ * Observations that reference them. Every entry is a PUT to [type]/[id-prefix][id], so references between
+ * the resources stay valid on the receiver and a Bundle can be sent again without creating duplicates.
+ *
+ * Bundles go out over one pooled HTTP/2 client. At most lhsc.transfer.max-in-flight Bundles are on the
+ * wire at once across all transfers, and a transfer reads no more charts ahead than that; when the receiver
+ * slows down, reading from the database slows down with it. Connection errors, 408, 429 and 5xx are
+ * retried up to lhsc.transfer.max-attempts times with exponential backoff and full jitter (or the
+ * receiver's Retry-After). Any other answer fails the chart, and the transfer continues with the next one.
+ *
+ * A finished transfer can be looked up for lhsc.transfer.retention-minutes after its end time.
+ *
+ * Metrics: lhsc.transfer.in-flight (gauge), lhsc.transfer.bundle.latency (timer) and
+ * lhsc.transfer.bundles (counter, tag outcome=sent|retried|failed).
+ */
+@Component
+public class TransferService {
+
+    private static final Logger log = LoggerFactory.getLogger(TransferService.class);
+
+    public enum Status { QUEUED, IN_PROGRESS, COMPLETED, FAILED }
+
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    /** The progress of one transfer, as reported by $transfer-status. */
+    public static class TransferJob {
+        private final String id = UUID.randomUUID().toString();
+        private final List<Integer> patientIds;
+        private final Instant startTime = Instant.now();
+        private final AtomicInteger patientsTransferred = new AtomicInteger();
+        private final AtomicInteger patientsFailed = new AtomicInteger();
+        private final AtomicInteger bundlesSent = new AtomicInteger();
+        private final AtomicLong resourcesSent = new AtomicLong();
+        private final AtomicInteger retries = new AtomicInteger();
+        private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+        private volatile Status status = Status.QUEUED;
+        private volatile Instant endTime;
+
+        TransferJob(List<Integer> patientIds) {
+            this.patientIds = patientIds;
+        }
+
+        public String getId() { return id; }
+        public List<Integer> getPatientIds() { return patientIds; }
+        public Instant getStartTime() { return startTime; }
+        public Instant getEndTime() { return endTime; }
+        public Status getStatus() { return status; }
+        public int getPatientsTransferred() { return patientsTransferred.get(); }
+        public int getPatientsFailed() { return patientsFailed.get(); }
+        public int getBundlesSent() { return bundlesSent.get(); }
+        public long getResourcesSent() { return resourcesSent.get(); }
+        public int getRetries() { return retries.get(); }
+        public List<String> getErrors() { return List.copyOf(errors); }
+
+        boolean isFinished() {
+            return status == Status.COMPLETED || status == Status.FAILED;
+        }
+
+        private void fail(String error) {
+            patientsFailed.incrementAndGet();
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(error);
+            }
+        }
+    }
+
+    private final PatientRepository patientRepository;
+    private final EncounterRepository encounterRepository;
+    private final ObservationRepository observationRepository;
+    private final PatientProvider patientProvider;
+    private final EncounterProvider encounterProvider;
+    private final ObservationProvider observationProvider;
+    private final FhirContext fhirContext;
+    private final URI receiverUrl;
+    private final String authorization;
+    private final String idPrefix;
+    private final int bundleSize;
+    private final int maxInFlight;
+    private final int maxAttempts;
+    private final long retryBaseMillis;
+    private final long retryMaxMillis;
+    private final Duration requestTimeout;
+
+    private final Cache<String, TransferJob> jobs;
+    // Charts are read and Bundles sent on virtual threads; the semaphores are what limit concurrency
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore inFlight;
+    private final HttpClient httpClient;
+    private final Timer bundleLatency;
+    private final Counter sentBundles;
+    private final Counter retriedBundles;
+    private final Counter failedBundles;
+
+    @Autowired
+    public TransferService(PatientRepository patientRepository, EncounterRepository encounterRepository,
+            ObservationRepository observationRepository, PatientProvider patientProvider,
+            EncounterProvider encounterProvider, ObservationProvider observationProvider, FhirContext fhirContext,
+            MeterRegistry meterRegistry,
+            @Value("${lhsc.transfer.receiver-url:}") String receiverUrl,
+            @Value("${lhsc.transfer.authorization:}") String authorization,
+            @Value("${lhsc.transfer.id-prefix:lhsc-}") String idPrefix,
+            @Value("${lhsc.transfer.bundle-size:200}") int bundleSize,
+            @Value("${lhsc.transfer.max-in-flight:4}") int maxInFlight,
+            @Value("${lhsc.transfer.max-attempts:5}") int maxAttempts,
+            @Value("${lhsc.transfer.retry-base-ms:500}") long retryBaseMillis,
+            @Value("${lhsc.transfer.retry-max-ms:30000}") long retryMaxMillis,
+            @Value("${lhsc.transfer.connect-timeout-ms:10000}") long connectTimeoutMillis,
+            @Value("${lhsc.transfer.request-timeout-ms:120000}") long requestTimeoutMillis,
+            @Value("${lhsc.transfer.retention-minutes:1440}") long retentionMinutes) {
+        this.patientRepository = patientRepository;
+        this.encounterRepository = encounterRepository;
+        this.observationRepository = observationRepository;
+        this.patientProvider = patientProvider;
+        this.encounterProvider = encounterProvider;
+        this.observationProvider = observationProvider;
+        this.fhirContext = fhirContext;
+        this.receiverUrl = receiverUrl.isBlank() ? null : URI.create(receiverUrl.trim().replaceAll("/+$", ""));
+        this.authorization = authorization.isBlank() ? null : authorization;
+        this.idPrefix = idPrefix;
+        this.bundleSize = Math.max(1, bundleSize);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBaseMillis = retryBaseMillis;
+        this.retryMaxMillis = retryMaxMillis;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMillis);
+        this.inFlight = new Semaphore(this.maxInFlight);
+
+        long retentionNanos = Duration.ofMinutes(retentionMinutes).toNanos();
+        this.jobs = Caffeine.newBuilder()
+                // Running transfers never expire; the retention period starts when run() puts the finished job back
+                .expireAfter(new Expiry<String, TransferJob>() {
+                    @Override
+                    public long expireAfterCreate(String jobId, TransferJob job, long currentTime) {
+                        return job.isFinished() ? retentionNanos : Long.MAX_VALUE;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String jobId, TransferJob job, long currentTime, long currentDuration) {
+                        return job.isFinished() ? retentionNanos : Long.MAX_VALUE;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String jobId, TransferJob job, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+
+        // HTTP/2 multiplexes the in-flight Bundles over a single connection (negotiated with ALPN on https;
+        // plain http falls back to HTTP/1.1 keep-alive connections, which the client pools as well)
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMillis))
+                .executor(executor)
+                .build();
+
+        Gauge.builder("lhsc.transfer.in-flight", inFlight, permits -> this.maxInFlight - permits.availablePermits())
+                .description("Transaction Bundles currently being sent to the receiver")
+                .register(meterRegistry);
+        this.bundleLatency = Timer.builder("lhsc.transfer.bundle.latency")
+                .description("Time for the receiver to accept one transaction Bundle, retries included")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.sentBundles = Counter.builder("lhsc.transfer.bundles").tag("outcome", "sent").register(meterRegistry);
+        this.retriedBundles = Counter.builder("lhsc.transfer.bundles").tag("outcome", "retried").register(meterRegistry);
+        this.failedBundles = Counter.builder("lhsc.transfer.bundles").tag("outcome", "failed").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return receiverUrl != null;
+    }
+
+    /**
+     * Starts transferring the charts of the given patients, in that order.
+     */
+    public TransferJob submit(List<Integer> patientIds) {
+        if (!isEnabled()) {
+            throw new IllegalStateException("lhsc.transfer.receiver-url is not set");
+        }
+        TransferJob job = new TransferJob(List.copyOf(patientIds));
+        jobs.put(job.getId(), job);
+        executor.submit(() -> run(job));
+        return job;
+    }
+
+    public Optional<TransferJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.getIfPresent(jobId));
+    }
+
+    private void run(TransferJob job) {
+        job.status = Status.IN_PROGRESS;
+        log.info("Transfer {} of {} patients to {} started", job.getId(), job.getPatientIds().size(), receiverUrl);
+        // Bounds the charts read but not yet sent, so a slow receiver cannot make us hold many charts in memory
+        Semaphore charts = new Semaphore(maxInFlight);
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            for (Integer patientId : job.getPatientIds()) {
+                charts.acquire();
+                pending.add(executor.submit(() -> {
+                    try {
+                        transferChart(job, patientId);
+                    } finally {
+                        charts.release();
+                    }
+                }));
+            }
+            for (Future<?> chart : pending) {
+                chart.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.errors.add("Interrupted");
+        } catch (ExecutionException e) {
+            job.errors.add(String.valueOf(e.getCause()));
+        }
+        job.endTime = Instant.now();
+        job.status = (job.getPatientsFailed() == 0 && job.getPatientsTransferred() == job.getPatientIds().size())
+                ? Status.COMPLETED
+                : Status.FAILED;
+        log.info("Transfer {} finished: {} patients transferred, {} failed, {} bundles, {} retries", job.getId(),
+                job.getPatientsTransferred(), job.getPatientsFailed(), job.getBundlesSent(), job.getRetries());
+        // Writing the finished job again starts its retention period
+        jobs.put(job.getId(), job);
+    }
+
+    private void transferChart(TransferJob job, Integer patientId) {
+        try {
+            // Read on a replica when one is configured and current; a transfer does not need the latest write
+            List<List<Resource>> phases = DataSourceRouting.call(DataSourceRouting.Target.REPLICA, () -> loadChart(patientId));
+            // Observations reference the encounters, so the encounters must be in before they are sent
+            for (List<Resource> phase : phases) {
+                sendAll(job, pack(phase));
+            }
+            job.patientsTransferred.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.fail("Patient/" + patientId + ": interrupted");
+        } catch (Exception e) {
+            Throwable cause = (e instanceof ExecutionException && e.getCause() != null) ? e.getCause() : e;
+            log.warn("Transfer {}: Patient/{} failed: {}", job.getId(), patientId, cause.getMessage());
+            job.fail("Patient/" + patientId + ": " + cause.getMessage());
+        }
+    }
+
+    /**
+     * @return The Patient with its Encounters, then the Observations, ready to be sent.
+     */
+    private List<List<Resource>> loadChart(Integer patientId) {
+        PatientEntity patient = patientRepository.findById(patientId)
+                .orElseThrow(() -> new IllegalArgumentException("Patient not found"));
+        IParser parser = fhirContext.newJsonParser();
+
+        List<Resource> first = new ArrayList<>();
+        first.add(forReceiver(patient.hasResourceJson()
+                ? parser.parseResource(Patient.class, patient.getResourceJson())
+                : patientProvider.transformToFhirPatient(patient)));
+        for (EncounterEntity encounter : encounterRepository.findByPatientId(patientId)) {
+            first.add(forReceiver(encounter.hasResourceJson()
+                    ? parser.parseResource(Encounter.class, encounter.getResourceJson())
+                    : encounterProvider.transformToFhirEncounter(encounter)));
+        }
+        List<Resource> second = new ArrayList<>();
+        for (ObservationEntity observation : observationRepository.findByPatientId(patientId)) {
+            second.add(forReceiver(observation.hasResourceJson()
+                    ? parser.parseResource(Observation.class, observation.getResourceJson())
+                    : observationProvider.transformToFhirObservation(observation)));
+        }
+        return List.of(first, second);
+    }
+
+    /**
+     * Gives the resource its id on the receiver and points its local references at the receiver's ids.
+     * Parsed fresh from the stored JSON (or built by the transform), so nothing shared is modified.
+     */
+    private Resource forReceiver(Resource resource) {
+        IdType id = resource.getIdElement();
+        resource.setId(receiverId(resource.fhirType(), id.getIdPart()));
+        // The receiver keeps its own versions
+        resource.getMeta().setVersionId(null).setLastUpdated(null);
+        for (Reference reference : fhirContext.newTerser().getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+            if (!reference.hasReference()) {
+                continue;
+            }
+            IdType target = new IdType(reference.getReference());
+            if (!target.hasBaseUrl() && target.hasResourceType() && target.hasIdPart()) {
+                reference.setReference(receiverId(target.getResourceType(), target.getIdPart()));
+            }
+        }
+        return resource;
+    }
+
+    private String receiverId(String resourceType, String localId) {
+        return resourceType + "/" + idPrefix + localId;
+    }
+
+    private List<Bundle> pack(List<Resource> resources) {
+        List<Bundle> bundles = new ArrayList<>();
+        for (int start = 0; start < resources.size(); start += bundleSize) {
+            Bundle bundle = new Bundle();
+            bundle.setType(Bundle.BundleType.TRANSACTION);
+            for (Resource resource : resources.subList(start, Math.min(resources.size(), start + bundleSize))) {
+                String reference = resource.getIdElement().getValue();
+                bundle.addEntry()
+                        .setFullUrl(receiverUrl + "/" + reference)
+                        .setResource(resource)
+                        .getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(reference);
+            }
+            bundles.add(bundle);
+        }
+        return bundles;
+    }
+
+    /**
+     * Sends the Bundles concurrently, waiting for a free slot before each one, and returns when all are in.
+     * @throws ExecutionException with the first Bundle's failure, after the others have finished.
+     */
+    private void sendAll(TransferJob job, List<Bundle> bundles) throws InterruptedException, ExecutionException {
+        IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+        List<Future<?>> sent = new ArrayList<>(bundles.size());
+        for (Bundle bundle : bundles) {
+            String body = parser.encodeResourceToString(bundle);
+            int entries = bundle.getEntry().size();
+            inFlight.acquire();
+            sent.add(executor.submit(() -> {
+                try {
+                    post(job, body);
+                    job.bundlesSent.incrementAndGet();
+                    job.resourcesSent.addAndGet(entries);
+                } finally {
+                    inFlight.release();
+                }
+                return null;
+            }));
+        }
+        ExecutionException failure = null;
+        for (Future<?> bundle : sent) {
+            try {
+                bundle.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * POSTs one transaction Bundle, retrying while the receiver is unreachable or overloaded.
+     * The slot in flight is kept while waiting to retry, so a struggling receiver gets fewer requests.
+     */
+    private void post(TransferJob job, String body) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(receiverUrl)
+                .timeout(requestTimeout)
+                .header(Constants.HEADER_CONTENT_TYPE, Constants.CT_FHIR_JSON_NEW + Constants.CHARSET_UTF8_CTSUFFIX)
+                .header(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW)
+                .header(Constants.HEADER_PREFER, Constants.HEADER_PREFER_RETURN + "=" + Constants.HEADER_PREFER_RETURN_MINIMAL)
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (authorization != null) {
+            request.header(Constants.HEADER_AUTHORIZATION, authorization);
+        }
+
+        long started = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            HttpResponse<String> response;
+            try {
+                response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    failedBundles.increment();
+                    throw e;
+                }
+                waitToRetry(job, backoffMillis(attempt));
+                continue;
+            }
+
+            int status = response.statusCode();
+            if (status >= 200 && status < 300) {
+                sentBundles.increment();
+                bundleLatency.record(Duration.ofNanos(System.nanoTime() - started));
+                return;
+            }
+            if (!isRetryable(status) || attempt >= maxAttempts) {
+                failedBundles.increment();
+                throw new IOException("Receiver answered " + status + ": " + abbreviate(response.body()));
+            }
+            waitToRetry(job, retryAfterMillis(response).orElse(backoffMillis(attempt)));
+        }
+    }
+
+    private void waitToRetry(TransferJob job, long delayMillis) throws InterruptedException {
+        job.retries.incrementAndGet();
+        retriedBundles.increment();
+        Thread.sleep(delayMillis);
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 408 || status == 429 || status >= 500;
+    }
+
+    // Full jitter: a random wait up to base * 2^(attempt - 1), capped, so retries from many Bundles spread out
+    private long backoffMillis(int attempt) {
+        long ceiling = Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private Optional<Long> retryAfterMillis(HttpResponse<?> response) {
+        return response.headers().firstValue(Constants.HEADER_RETRY_AFTER)
+                .filter(value -> value.matches("\\d{1,6}"))
+                .map(seconds -> Math.min(retryMaxMillis, Long.parseLong(seconds) * 1000));
+    }
+
+    private static String abbreviate(String body) {
+        return (body == null || body.length() <= 500) ? body : body.substring(0, 500) + "...";
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,14 +1,66 @@
 package com.masterehr.repository;
 
 import com.masterehr.entity.EncounterEntity;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
 public interface EncounterRepository extends JpaRepository<EncounterEntity, Integer> {
 
     // Find all encounters for a specific patient
     List<EncounterEntity> findByPatientId(Integer patientId);
+
+    // --- Keyset pagination on (patient_id, encounter_id) ---
+
+    // One page of a patient's encounters with an id greater than afterId; pass PageRequest.of(0, pageSize)
+    @Query("select e from EncounterEntity e where e.patientId = :patientId and e.encounterId > :afterId order by e.encounterId")
+    List<EncounterEntity> findPageByPatientId(@Param("patientId") Integer patientId, @Param("afterId") Integer afterId, Pageable page);
+
+    // Ids only, to skip ahead without loading the rows
+    @Query("select e.encounterId from EncounterEntity e where e.patientId = :patientId and e.encounterId > :afterId order by e.encounterId")
+    List<Integer> findIdPageByPatientId(@Param("patientId") Integer patientId, @Param("afterId") Integer afterId, Pageable page);
+
+    long countByPatientId(Integer patientId);
+
+    // Patient/$everything: the same keyset pages, limited to rows last updated at or after since (null for all)
+    @Query("select e from EncounterEntity e where e.patientId = :patientId and (:since is null or e.lastUpdated >= :since) and e.encounterId > :afterId order by e.encounterId")
+    List<EncounterEntity> findPageByPatientIdSince(@Param("patientId") Integer patientId, @Param("since") LocalDateTime since,
+            @Param("afterId") Integer afterId, Pageable page);
+
+    @Query("select e.encounterId from EncounterEntity e where e.patientId = :patientId and (:since is null or e.lastUpdated >= :since) and e.encounterId > :afterId order by e.encounterId")
+    List<Integer> findIdPageByPatientIdSince(@Param("patientId") Integer patientId, @Param("since") LocalDateTime since,
+            @Param("afterId") Integer afterId, Pageable page);
+
+    @Query("select count(e) from EncounterEntity e where e.patientId = :patientId and (:since is null or e.lastUpdated >= :since)")
+    long countByPatientIdSince(@Param("patientId") Integer patientId, @Param("since") LocalDateTime since);
+
+    // _revinclude=Encounter:patient for a page of patients; callers pass at most a few hundred ids per call
+    List<EncounterEntity> findByPatientIdInOrderByEncounterId(Collection<Integer> patientIds, Pageable page);
+
+    // Every row, read through a server-side cursor (Hibernate scroll) for bulk export.
+    // Must be consumed inside a transaction and closed; entities are read-only (no dirty-check snapshots).
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.fetchSize", value = "500"),
+            @QueryHint(name = "org.hibernate.readOnly", value = "true")})
+    @Query("select e from EncounterEntity e")
+    Stream<EncounterEntity> streamAll();
+
+    // Only the stored JSON and its version, without loading the rest of the row (used by the raw read path)
+    @Query("select new com.masterehr.repository.StoredResource(e.legacyResourceJson, e.resourceBlob, e.versionId, e.lastUpdated) from EncounterEntity e where e.encounterId = :id")
+    Optional<StoredResource> findStoredResourceById(@Param("id") Integer id);
+
+    // Just the version, to answer If-None-Match without reading resource_json
+    @Query("select e.versionId from EncounterEntity e where e.encounterId = :id")
+    Optional<Integer> findVersionIdById(@Param("id") Integer id);
 }
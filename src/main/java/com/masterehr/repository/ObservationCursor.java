@@ -0,0 +1,16 @@
+package com.masterehr.repository;
+
+import java.time.LocalDateTime;
+
+/**
+ * Position in an Observation search ordered by (effective_datetime, observation_id), used as the
+ * keyset for paging. START sorts before every row in either direction.
+ */
+public record ObservationCursor(LocalDateTime effectiveDatetime, Integer observationId) {
+
+    public static final ObservationCursor START = new ObservationCursor(null, null);
+
+    public boolean isStart() {
+        return observationId == null;
+    }
+}
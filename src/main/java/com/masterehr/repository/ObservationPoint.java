@@ -0,0 +1,10 @@
+package com.masterehr.repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * One value of a patient's series for a code: just the columns a trend needs, without the row's JSON.
+ */
+public record ObservationPoint(Integer observationId, LocalDateTime effectiveDatetime, BigDecimal valueQuantity) {
+}
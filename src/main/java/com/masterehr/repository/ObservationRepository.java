@@ -1,14 +1,97 @@
 package com.masterehr.repository;
 
 import com.masterehr.entity.ObservationEntity;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
-public interface ObservationRepository extends JpaRepository<ObservationEntity, Integer> {
+public interface ObservationRepository extends JpaRepository<ObservationEntity, Integer>, ObservationSearchRepository {
 
     // Find all observations for a specific patient
     List<ObservationEntity> findByPatientId(Integer patientId);
-}
\ No newline at end of file
+
+    // --- Patient/$everything: keyset pages of a patient's observations on (patient_id, observation_id),
+    // limited to rows last updated at or after since (null for all); pass PageRequest.of(0, pageSize) ---
+
+    @Query("select o from ObservationEntity o where o.patientId = :patientId and (:since is null or o.lastUpdated >= :since) and o.observationId > :afterId order by o.observationId")
+    List<ObservationEntity> findPageByPatientIdSince(@Param("patientId") Integer patientId, @Param("since") LocalDateTime since,
+            @Param("afterId") Integer afterId, Pageable page);
+
+    // Ids only, to skip ahead without loading the rows
+    @Query("select o.observationId from ObservationEntity o where o.patientId = :patientId and (:since is null or o.lastUpdated >= :since) and o.observationId > :afterId order by o.observationId")
+    List<Integer> findIdPageByPatientIdSince(@Param("patientId") Integer patientId, @Param("since") LocalDateTime since,
+            @Param("afterId") Integer afterId, Pageable page);
+
+    @Query("select count(o) from ObservationEntity o where o.patientId = :patientId and (:since is null or o.lastUpdated >= :since)")
+    long countByPatientIdSince(@Param("patientId") Integer patientId, @Param("since") LocalDateTime since);
+
+    // _revinclude=Observation:patient / Observation:encounter for a page of results;
+    // callers pass at most a few hundred ids per call
+    List<ObservationEntity> findByPatientIdInOrderByObservationId(Collection<Integer> patientIds, Pageable page);
+
+    List<ObservationEntity> findByEncounterIdInOrderByObservationId(Collection<Integer> encounterIds, Pageable page);
+
+    // --- $lastn: the newest N observations per code for one patient, ranked in SQL ---
+    // Served by IX_Obs_Patient_Code_Date: the window function reads each code's rows newest first.
+
+    @Query(nativeQuery = true, value = """
+            SELECT o.* FROM Observations o
+            JOIN (SELECT observation_id,
+                         ROW_NUMBER() OVER (PARTITION BY loinc_system, loinc_code
+                                            ORDER BY effective_datetime DESC, observation_id DESC) AS rn
+                  FROM Observations
+                  WHERE patient_id = :patientId) ranked ON ranked.observation_id = o.observation_id
+            WHERE ranked.rn <= :max
+            ORDER BY o.loinc_system, o.loinc_code, o.effective_datetime DESC, o.observation_id DESC""")
+    List<ObservationEntity> findLastN(@Param("patientId") Integer patientId, @Param("max") int max);
+
+    @Query(nativeQuery = true, value = """
+            SELECT o.* FROM Observations o
+            JOIN (SELECT observation_id,
+                         ROW_NUMBER() OVER (PARTITION BY loinc_system, loinc_code
+                                            ORDER BY effective_datetime DESC, observation_id DESC) AS rn
+                  FROM Observations
+                  WHERE patient_id = :patientId AND loinc_code IN (:codes)) ranked ON ranked.observation_id = o.observation_id
+            WHERE ranked.rn <= :max
+            ORDER BY o.loinc_system, o.loinc_code, o.effective_datetime DESC, o.observation_id DESC""")
+    List<ObservationEntity> findLastNForCodes(@Param("patientId") Integer patientId, @Param("codes") Collection<String> codes,
+            @Param("max") int max);
+
+    // --- $trend: the dated numeric values of one code for one patient (see ObservationSeriesStore) ---
+    // A seek on IX_Obs_Patient_Code_Date, which includes value_quantity, so no lookups into the base table;
+    // the index (with the clustered observation_id as its last key) already returns them in this order.
+    @Query("""
+            select new com.masterehr.repository.ObservationPoint(o.observationId, o.effectiveDatetime, o.valueQuantity)
+            from ObservationEntity o
+            where o.patientId = :patientId and o.loincCode = :code
+              and o.effectiveDatetime is not null and o.valueQuantity is not null
+            order by o.effectiveDatetime, o.observationId""")
+    List<ObservationPoint> findPoints(@Param("patientId") Integer patientId, @Param("code") String code);
+
+    // Every row, read through a server-side cursor (Hibernate scroll) for bulk export.
+    // Must be consumed inside a transaction and closed; entities are read-only (no dirty-check snapshots).
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.fetchSize", value = "500"),
+            @QueryHint(name = "org.hibernate.readOnly", value = "true")})
+    @Query("select o from ObservationEntity o")
+    Stream<ObservationEntity> streamAll();
+
+    // Only the stored JSON and its version, without loading the rest of the row (used by the raw read path)
+    @Query("select new com.masterehr.repository.StoredResource(e.legacyResourceJson, e.resourceBlob, e.versionId, e.lastUpdated) from ObservationEntity e where e.observationId = :id")
+    Optional<StoredResource> findStoredResourceById(@Param("id") Integer id);
+
+    // Just the version, to answer If-None-Match without reading resource_json
+    @Query("select e.versionId from ObservationEntity e where e.observationId = :id")
+    Optional<Integer> findVersionIdById(@Param("id") Integer id);
+}
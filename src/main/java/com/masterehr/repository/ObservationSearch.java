@@ -0,0 +1,19 @@
+package com.masterehr.repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * The filters of an Observation search, already translated from FHIR search parameters into
+ * column values. Null or empty fields are not filtered on.
+ *
+ * @param codes Matches if any of these codes matches (a code's system may be null for "any system").
+ * @param from Inclusive lower bound on effective_datetime.
+ * @param to Inclusive upper bound on effective_datetime.
+ * @param newestFirst Order by effective_datetime descending instead of ascending.
+ */
+public record ObservationSearch(Integer patientId, Integer encounterId, List<Code> codes, List<String> statuses,
+        LocalDateTime from, LocalDateTime to, boolean newestFirst) {
+
+    public record Code(String system, String code) {}
+}
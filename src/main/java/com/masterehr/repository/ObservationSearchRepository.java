@@ -0,0 +1,20 @@
+package com.masterehr.repository;
+
+import com.masterehr.entity.ObservationEntity;
+
+import java.util.List;
+
+/**
+ * Observation searches whose filters depend on which parameters the client sent. Implemented
+ * with the Criteria API in ObservationSearchRepositoryImpl and mixed into ObservationRepository.
+ */
+public interface ObservationSearchRepository {
+
+    // One page of matching rows after the cursor, ordered by (effective_datetime, observation_id)
+    List<ObservationEntity> searchPage(ObservationSearch search, ObservationCursor after, int limit);
+
+    // Only the cursors of the matching rows, to skip ahead without loading them
+    List<ObservationCursor> searchCursors(ObservationSearch search, ObservationCursor after, int limit);
+
+    long searchCount(ObservationSearch search);
+}
@@ -0,0 +1,112 @@
+package com.masterehr.repository;
+
+import com.masterehr.entity.ObservationEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Order;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a single parameterized query per search. Hibernate binds every value as a JDBC
+ * parameter, so SQL Server reuses one plan per combination of filters. The filters line up
+ * with the IX_Obs_* indexes in UpdateDatabase.sql.
+ */
+class ObservationSearchRepositoryImpl implements ObservationSearchRepository {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<ObservationEntity> searchPage(ObservationSearch search, ObservationCursor after, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<ObservationEntity> query = cb.createQuery(ObservationEntity.class);
+        Root<ObservationEntity> o = query.from(ObservationEntity.class);
+        query.select(o).where(filters(cb, o, search, after)).orderBy(order(cb, o, search));
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+
+    @Override
+    public List<ObservationCursor> searchCursors(ObservationSearch search, ObservationCursor after, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<ObservationCursor> query = cb.createQuery(ObservationCursor.class);
+        Root<ObservationEntity> o = query.from(ObservationEntity.class);
+        query.select(cb.construct(ObservationCursor.class, o.get("effectiveDatetime"), o.get("observationId")))
+                .where(filters(cb, o, search, after))
+                .orderBy(order(cb, o, search));
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+
+    @Override
+    public long searchCount(ObservationSearch search) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<ObservationEntity> o = query.from(ObservationEntity.class);
+        query.select(cb.count(o)).where(filters(cb, o, search, ObservationCursor.START));
+        return entityManager.createQuery(query).getSingleResult();
+    }
+
+    private Predicate[] filters(CriteriaBuilder cb, Root<ObservationEntity> o, ObservationSearch search,
+            ObservationCursor after) {
+        List<Predicate> predicates = new ArrayList<>();
+
+        if (search.patientId() != null) {
+            predicates.add(cb.equal(o.get("patientId"), search.patientId()));
+        }
+        if (search.encounterId() != null) {
+            predicates.add(cb.equal(o.get("encounterId"), search.encounterId()));
+        }
+        if (search.codes() != null && !search.codes().isEmpty()) {
+            List<Predicate> anyCode = new ArrayList<>();
+            for (ObservationSearch.Code code : search.codes()) {
+                Predicate matches = cb.equal(o.get("loincCode"), code.code());
+                if (code.system() != null) {
+                    matches = cb.and(matches, cb.equal(o.get("loincSystem"), code.system()));
+                }
+                anyCode.add(matches);
+            }
+            predicates.add(cb.or(anyCode.toArray(new Predicate[0])));
+        }
+        if (search.statuses() != null && !search.statuses().isEmpty()) {
+            predicates.add(o.get("status").in(search.statuses()));
+        }
+
+        Path<LocalDateTime> effective = o.get("effectiveDatetime");
+        if (search.from() != null) {
+            predicates.add(cb.greaterThanOrEqualTo(effective, search.from()));
+        }
+        if (search.to() != null) {
+            predicates.add(cb.lessThanOrEqualTo(effective, search.to()));
+        }
+
+        // Keyset: rows strictly after the cursor in (effective_datetime, observation_id) order
+        if (!after.isStart()) {
+            Path<Integer> id = o.get("observationId");
+            if (search.newestFirst()) {
+                predicates.add(cb.or(
+                        cb.lessThan(effective, after.effectiveDatetime()),
+                        cb.and(cb.equal(effective, after.effectiveDatetime()), cb.lessThan(id, after.observationId()))));
+            } else {
+                predicates.add(cb.or(
+                        cb.greaterThan(effective, after.effectiveDatetime()),
+                        cb.and(cb.equal(effective, after.effectiveDatetime()), cb.greaterThan(id, after.observationId()))));
+            }
+        }
+
+        return predicates.toArray(new Predicate[0]);
+    }
+
+    private List<Order> order(CriteriaBuilder cb, Root<ObservationEntity> o, ObservationSearch search) {
+        if (search.newestFirst()) {
+            return List.of(cb.desc(o.get("effectiveDatetime")), cb.desc(o.get("observationId")));
+        }
+        return List.of(cb.asc(o.get("effectiveDatetime")), cb.asc(o.get("observationId")));
+    }
+}
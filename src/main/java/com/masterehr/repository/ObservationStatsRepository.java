@@ -0,0 +1,100 @@
+package com.masterehr.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Aggregates a patient's numeric Observation values per code and time bucket in SQL for Observation/$stats.
+ *
+ * One GROUP BY over value_quantity and effective_datetime (an index seek on IX_Obs_Patient_Code_Date,
+ * which includes value_quantity) returns one row per (code, bucket); the rows themselves never leave the
+ * database and resource_json is not read. Buckets are handed to the caller one at a time as they are read.
+ */
+@Repository
+public class ObservationStatsRepository {
+
+    private static final String ORIGIN = "CAST('1900-01-01' AS DATETIME2)";
+
+    /**
+     * Bucket sizes. Buckets are counted from 1900-01-01, a Monday, so weeks start on Monday.
+     */
+    public enum Bucket {
+        HOUR("DATEADD(hour, DATEDIFF(hour, " + ORIGIN + ", o.effective_datetime), " + ORIGIN + ")"),
+        DAY("DATEADD(day, DATEDIFF(day, " + ORIGIN + ", o.effective_datetime), " + ORIGIN + ")"),
+        WEEK("DATEADD(day, (DATEDIFF(day, " + ORIGIN + ", o.effective_datetime) / 7) * 7, " + ORIGIN + ")"),
+        MONTH("DATEADD(month, DATEDIFF(month, " + ORIGIN + ", o.effective_datetime), " + ORIGIN + ")"),
+        YEAR("DATEADD(year, DATEDIFF(year, " + ORIGIN + ", o.effective_datetime), " + ORIGIN + ")");
+
+        private final String startExpression;
+
+        Bucket(String startExpression) {
+            this.startExpression = startExpression;
+        }
+    }
+
+    /**
+     * The aggregates of one code in one bucket. last is the value of the newest observation in the bucket;
+     * unit is only set when every value in the bucket has the same unit.
+     */
+    public record Stats(String code, LocalDateTime bucketStart, long count, BigDecimal min, BigDecimal max,
+            double mean, BigDecimal last, String unit) {}
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public ObservationStatsRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * @param codes The LOINC codes to aggregate, or empty for every code the patient has.
+     * @param from Inclusive lower bound of effective_datetime, or null.
+     * @param to Inclusive upper bound of effective_datetime, or null.
+     * @param sink Receives the buckets ordered by code, then bucket start.
+     */
+    public void aggregate(int patientId, Collection<String> codes, LocalDateTime from, LocalDateTime to,
+            Bucket bucket, Consumer<Stats> sink) {
+        List<Object> args = new ArrayList<>();
+        StringBuilder where = new StringBuilder(
+                "o.patient_id = ? AND o.value_quantity IS NOT NULL AND o.effective_datetime IS NOT NULL");
+        args.add(patientId);
+        if (!codes.isEmpty()) {
+            where.append(" AND o.loinc_code IN (").append(String.join(", ", Collections.nCopies(codes.size(), "?"))).append(')');
+            args.addAll(codes);
+        }
+        if (from != null) {
+            where.append(" AND o.effective_datetime >= ?");
+            args.add(Timestamp.valueOf(from));
+        }
+        if (to != null) {
+            where.append(" AND o.effective_datetime <= ?");
+            args.add(Timestamp.valueOf(to));
+        }
+
+        // The window picks each bucket's newest value; it is the same on every row of the group, hence MAX
+        String sql = "SELECT b.loinc_code, b.bucket_start, COUNT(*), MIN(b.value_quantity), MAX(b.value_quantity),"
+                + " AVG(CAST(b.value_quantity AS FLOAT)), MAX(b.last_value),"
+                + " CASE WHEN MIN(b.value_unit) = MAX(b.value_unit) AND COUNT(b.value_unit) = COUNT(*) THEN MIN(b.value_unit) END"
+                + " FROM (SELECT o.loinc_code, o.value_quantity, o.value_unit, " + bucket.startExpression + " AS bucket_start,"
+                + " FIRST_VALUE(o.value_quantity) OVER (PARTITION BY o.loinc_code, " + bucket.startExpression
+                + " ORDER BY o.effective_datetime DESC, o.observation_id DESC) AS last_value"
+                + " FROM Observations o WHERE " + where + ") b"
+                + " GROUP BY b.loinc_code, b.bucket_start"
+                + " ORDER BY b.loinc_code, b.bucket_start";
+
+        jdbcTemplate.query(sql, rs -> {
+            sink.accept(new Stats(rs.getString(1), rs.getTimestamp(2).toLocalDateTime(), rs.getLong(3),
+                    rs.getBigDecimal(4), rs.getBigDecimal(5), rs.getDouble(6), rs.getBigDecimal(7), rs.getString(8)));
+        }, args.toArray());
+    }
+}
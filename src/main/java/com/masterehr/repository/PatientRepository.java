@@ -1,21 +1,36 @@
 package com.masterehr.repository;
 
 import com.masterehr.entity.PatientEntity;
+import jakarta.persistence.QueryHint;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
-import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
-public interface PatientRepository extends JpaRepository<PatientEntity, Integer> {
-    
-    /**
-     * This custom method tells Spring Data JPA to create a query that finds all patients
-     * where the 'lastName' column matches the provided parameter.
-     * The method name itself defines the query!
-     * @param lastName The family name to search for.
-     * @return A list of matching patient entities.
-     */
-    List<PatientEntity> findByLastName(String lastName);
+public interface PatientRepository extends JpaRepository<PatientEntity, Integer>, PatientSearchRepository {
 
+    // Every row, read through a server-side cursor (Hibernate scroll) for bulk export.
+    // Must be consumed inside a transaction and closed; entities are read-only (no dirty-check snapshots).
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.fetchSize", value = "500"),
+            @QueryHint(name = "org.hibernate.readOnly", value = "true")})
+    @Query("select p from PatientEntity p")
+    Stream<PatientEntity> streamAll();
+
+    // Conditional create / update by identifier, when the in-memory OHIP index cannot answer
+    @Query("select p.patientId from PatientEntity p where p.ohipNumber = :ohipNumber")
+    Optional<Integer> findPatientIdByOhipNumber(@Param("ohipNumber") String ohipNumber);
+
+    // Only the stored JSON and its version, without loading the rest of the row (used by the raw read path)
+    @Query("select new com.masterehr.repository.StoredResource(e.legacyResourceJson, e.resourceBlob, e.versionId, e.lastUpdated) from PatientEntity e where e.patientId = :id")
+    Optional<StoredResource> findStoredResourceById(@Param("id") Integer id);
+
+    // Just the version, to answer If-None-Match without reading resource_json
+    @Query("select e.versionId from PatientEntity e where e.patientId = :id")
+    Optional<Integer> findVersionIdById(@Param("id") Integer id);
 }
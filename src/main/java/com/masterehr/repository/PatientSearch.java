@@ -0,0 +1,23 @@
+package com.masterehr.repository;
+
+import java.time.LocalDate;
+
+/**
+ * The filters of a Patient search, already translated from FHIR search parameters into
+ * column values. Null fields are not filtered on.
+ *
+ * @param name Matches the family or the given name.
+ * @param phoneticCode Double Metaphone code matched against family_phonetic or given_phonetic.
+ * @param bornFrom Inclusive lower bound on dob.
+ * @param bornTo Inclusive upper bound on dob.
+ */
+public record PatientSearch(NameFilter family, NameFilter given, NameFilter name, String phoneticCode,
+        LocalDate bornFrom, LocalDate bornTo, String ohipNumber) {
+
+    public enum Match { STARTS_WITH, CONTAINS, EXACT }
+
+    /**
+     * @param value The normalized name (NameNormalizer) for STARTS_WITH and CONTAINS, the text as given for EXACT.
+     */
+    public record NameFilter(Match match, String value) {}
+}
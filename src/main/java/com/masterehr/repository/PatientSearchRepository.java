@@ -0,0 +1,20 @@
+package com.masterehr.repository;
+
+import com.masterehr.entity.PatientEntity;
+
+import java.util.List;
+
+/**
+ * Patient searches whose filters depend on which parameters the client sent. Implemented
+ * with the Criteria API in PatientSearchRepositoryImpl and mixed into PatientRepository.
+ */
+public interface PatientSearchRepository {
+
+    // One page of matching rows with an id greater than afterId, ordered by patient_id
+    List<PatientEntity> searchPage(PatientSearch search, Integer afterId, int limit);
+
+    // Only the ids of the matching rows, to skip ahead without loading them
+    List<Integer> searchIds(PatientSearch search, Integer afterId, int limit);
+
+    long searchCount(PatientSearch search);
+}
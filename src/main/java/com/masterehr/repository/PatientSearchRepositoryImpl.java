@@ -0,0 +1,100 @@
+package com.masterehr.repository;
+
+import com.masterehr.entity.PatientEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a single parameterized query per search, like ObservationSearchRepositoryImpl.
+ * Name filters run against the normalized columns: "starts with" is LIKE 'abc%', a seek on
+ * IX_Patients_FamilyNorm / IX_Patients_GivenNorm; :contains is LIKE '%abc%', which scans the index.
+ * :exact compares the name column as stored, with the column's collation.
+ */
+class PatientSearchRepositoryImpl implements PatientSearchRepository {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<PatientEntity> searchPage(PatientSearch search, Integer afterId, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<PatientEntity> query = cb.createQuery(PatientEntity.class);
+        Root<PatientEntity> p = query.from(PatientEntity.class);
+        query.select(p).where(filters(cb, p, search, afterId)).orderBy(cb.asc(p.get("patientId")));
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+
+    @Override
+    public List<Integer> searchIds(PatientSearch search, Integer afterId, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Integer> query = cb.createQuery(Integer.class);
+        Root<PatientEntity> p = query.from(PatientEntity.class);
+        query.select(p.get("patientId")).where(filters(cb, p, search, afterId)).orderBy(cb.asc(p.get("patientId")));
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+
+    @Override
+    public long searchCount(PatientSearch search) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<PatientEntity> p = query.from(PatientEntity.class);
+        query.select(cb.count(p)).where(filters(cb, p, search, null));
+        return entityManager.createQuery(query).getSingleResult();
+    }
+
+    private Predicate[] filters(CriteriaBuilder cb, Root<PatientEntity> p, PatientSearch search, Integer afterId) {
+        List<Predicate> predicates = new ArrayList<>();
+
+        if (search.family() != null) {
+            predicates.add(nameMatches(cb, p.get("familyNorm"), p.get("lastName"), search.family()));
+        }
+        if (search.given() != null) {
+            predicates.add(nameMatches(cb, p.get("givenNorm"), p.get("firstName"), search.given()));
+        }
+        if (search.name() != null) {
+            predicates.add(cb.or(
+                    nameMatches(cb, p.get("familyNorm"), p.get("lastName"), search.name()),
+                    nameMatches(cb, p.get("givenNorm"), p.get("firstName"), search.name())));
+        }
+        if (search.phoneticCode() != null) {
+            predicates.add(cb.or(
+                    cb.equal(p.get("familyPhonetic"), search.phoneticCode()),
+                    cb.equal(p.get("givenPhonetic"), search.phoneticCode())));
+        }
+
+        Path<LocalDate> dob = p.get("dob");
+        if (search.bornFrom() != null) {
+            predicates.add(cb.greaterThanOrEqualTo(dob, search.bornFrom()));
+        }
+        if (search.bornTo() != null) {
+            predicates.add(cb.lessThanOrEqualTo(dob, search.bornTo()));
+        }
+        if (search.ohipNumber() != null) {
+            predicates.add(cb.equal(p.get("ohipNumber"), search.ohipNumber()));
+        }
+
+        if (afterId != null) {
+            predicates.add(cb.greaterThan(p.get("patientId"), afterId));
+        }
+        return predicates.toArray(new Predicate[0]);
+    }
+
+    // Normalized values are only a-z, 0-9 and spaces, so they never contain LIKE wildcards
+    private static Predicate nameMatches(CriteriaBuilder cb, Path<String> normalized, Path<String> stored,
+            PatientSearch.NameFilter filter) {
+        return switch (filter.match()) {
+            case STARTS_WITH -> cb.like(normalized, filter.value() + "%");
+            case CONTAINS -> cb.like(normalized, "%" + filter.value() + "%");
+            case EXACT -> cb.equal(stored, filter.value());
+        };
+    }
+}
@@ -0,0 +1,100 @@
+package com.masterehr.repository;
+
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.entity.PatientEntity;
+import com.masterehr.repository.ResourceChangeRepository.ResourceChange;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes many Patient, Encounter and Observation rows at once using plain JDBC batches.
+ * The entities must already carry their ids (see ResourceIdAllocator) and resource JSON,
+ * so every row is a single INSERT. Every row also gets its "created" entry in the change log
+ * (see ResourceChangeRepository). This class is used by the SystemProvider and AsyncIngestService
+ * and always runs inside the caller's transaction.
+ */
+@Repository
+public class ResourceBatchWriter {
+
+    private static final String[] PATIENT_COLUMNS = {
+            "patient_id", "patient_uid", "ohip_number", "first_name", "last_name", "family_norm", "given_norm", "family_phonetic", "given_phonetic", "dob", "gender", "address", "phone_number", "resource_blob", "version_id", "last_updated"};
+    private static final int[] PATIENT_TYPES = {
+            Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.NVARCHAR, Types.NVARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.DATE, Types.VARCHAR, Types.NVARCHAR, Types.VARCHAR, Types.VARBINARY, Types.INTEGER, Types.TIMESTAMP};
+
+    private static final String[] ENCOUNTER_COLUMNS = {
+            "encounter_id", "patient_id", "visit_date", "clinic", "reason_for_visit", "status", "discharge_date", "resource_blob", "version_id", "last_updated"};
+    private static final int[] ENCOUNTER_TYPES = {
+            Types.INTEGER, Types.INTEGER, Types.TIMESTAMP, Types.VARCHAR, Types.NVARCHAR, Types.VARCHAR, Types.TIMESTAMP, Types.VARBINARY, Types.INTEGER, Types.TIMESTAMP};
+
+    private static final String[] OBSERVATION_COLUMNS = {
+            "observation_id", "patient_id", "encounter_id", "loinc_system", "loinc_code", "status", "effective_datetime", "value_quantity", "value_unit", "resource_blob", "version_id", "last_updated"};
+    private static final int[] OBSERVATION_TYPES = {
+            Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.NVARCHAR, Types.NVARCHAR, Types.VARCHAR, Types.TIMESTAMP, Types.DECIMAL, Types.VARCHAR, Types.VARBINARY, Types.INTEGER, Types.TIMESTAMP};
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ResourceChangeRepository changeRepository;
+
+    @Autowired
+    public ResourceBatchWriter(JdbcTemplate jdbcTemplate, ResourceChangeRepository changeRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.changeRepository = changeRepository;
+    }
+
+    public void insertPatients(List<PatientEntity> patients) {
+        List<Object[]> rows = new ArrayList<>(patients.size());
+        List<ResourceChange> changes = new ArrayList<>(patients.size());
+        for (PatientEntity p : patients) {
+            rows.add(new Object[]{
+                    p.getPatientId(), p.getPatientUid() != null ? p.getPatientUid().toString() : null, p.getOhipNumber(),
+                    p.getFirstName(), p.getLastName(), p.getFamilyNorm(), p.getGivenNorm(), p.getFamilyPhonetic(),
+                    p.getGivenPhonetic(), p.getDob(), p.getGender(), p.getAddress(), p.getPhoneNumber(),
+                    p.getResourceBlob(), p.getVersionId(), p.getLastUpdated()});
+            changes.add(ResourceChange.created("Patient", p.getPatientId(), p.getVersionId(), p.getLastUpdated(), p.getResourceBlob()));
+        }
+        insert("Patients", PATIENT_COLUMNS, PATIENT_TYPES, rows);
+        changeRepository.append(changes);
+    }
+
+    public void insertEncounters(List<EncounterEntity> encounters) {
+        List<Object[]> rows = new ArrayList<>(encounters.size());
+        List<ResourceChange> changes = new ArrayList<>(encounters.size());
+        for (EncounterEntity e : encounters) {
+            rows.add(new Object[]{
+                    e.getEncounterId(), e.getPatientId(), e.getVisitDate(), e.getClinic(), e.getReasonForVisit(),
+                    e.getStatus(), e.getDischargeDate(), e.getResourceBlob(), e.getVersionId(), e.getLastUpdated()});
+            changes.add(ResourceChange.created("Encounter", e.getEncounterId(), e.getVersionId(), e.getLastUpdated(), e.getResourceBlob()));
+        }
+        insert("Encounters", ENCOUNTER_COLUMNS, ENCOUNTER_TYPES, rows);
+        changeRepository.append(changes);
+    }
+
+    public void insertObservations(List<ObservationEntity> observations) {
+        List<Object[]> rows = new ArrayList<>(observations.size());
+        List<ResourceChange> changes = new ArrayList<>(observations.size());
+        for (ObservationEntity o : observations) {
+            rows.add(new Object[]{
+                    o.getObservationId(), o.getPatientId(), o.getEncounterId(), o.getLoincSystem(), o.getLoincCode(),
+                    o.getStatus(), o.getEffectiveDatetime(), o.getValueQuantity(), o.getValueUnit(), o.getResourceBlob(),
+                    o.getVersionId(), o.getLastUpdated()});
+            changes.add(ResourceChange.created("Observation", o.getObservationId(), o.getVersionId(), o.getLastUpdated(), o.getResourceBlob()));
+        }
+        insert("Observations", OBSERVATION_COLUMNS, OBSERVATION_TYPES, rows);
+        changeRepository.append(changes);
+    }
+
+    private void insert(String table, String[] columns, int[] types, List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        String sql = "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES ("
+                + String.join(", ", Collections.nCopies(columns.length, "?")) + ")";
+        jdbcTemplate.batchUpdate(sql, rows, types);
+    }
+}
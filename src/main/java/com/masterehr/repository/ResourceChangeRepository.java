@@ -0,0 +1,166 @@
+package com.masterehr.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The change log (ResourceChanges, UpdateDatabase.sql step 15): one row per created or updated version of a
+ * Patient, Encounter or Observation, written in the same transaction as the resource row itself.
+ *
+ * change_seq is an IDENTITY, so it increases with every change and a consumer can page through everything
+ * that changed since its last visit with "change_seq > cursor", a range scan on the clustered key. Each row
+ * keeps the resource_blob of its version, which is also what _history returns.
+ */
+@Repository
+public class ResourceChangeRepository {
+
+    /**
+     * One version of a resource. seq is null until the row has been written.
+     * @param created true for the version that created the resource, false for an update.
+     */
+    public record ResourceChange(Long seq, String resourceType, Integer resourceId, Integer versionId,
+            boolean created, LocalDateTime changedAt, byte[] resourceBlob) {
+
+        public static ResourceChange created(String resourceType, Integer resourceId, Integer versionId,
+                LocalDateTime changedAt, byte[] resourceBlob) {
+            return new ResourceChange(null, resourceType, resourceId, versionId, true, changedAt, resourceBlob);
+        }
+
+        public static ResourceChange updated(String resourceType, Integer resourceId, Integer versionId,
+                LocalDateTime changedAt, byte[] resourceBlob) {
+            return new ResourceChange(null, resourceType, resourceId, versionId, false, changedAt, resourceBlob);
+        }
+    }
+
+    private static final String INSERT = "INSERT INTO ResourceChanges "
+            + "(resource_type, resource_id, version_id, change_type, changed_at, resource_blob) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final int[] INSERT_TYPES = {
+            Types.VARCHAR, Types.INTEGER, Types.INTEGER, Types.CHAR, Types.TIMESTAMP, Types.VARBINARY};
+
+    private static final String COLUMNS =
+            "change_seq, resource_type, resource_id, version_id, change_type, changed_at, resource_blob";
+
+    private static final RowMapper<ResourceChange> ROW_MAPPER = (rs, rowNum) -> new ResourceChange(
+            rs.getLong("change_seq"), rs.getString("resource_type"), rs.getInt("resource_id"), rs.getInt("version_id"),
+            "C".equals(rs.getString("change_type")), rs.getTimestamp("changed_at").toLocalDateTime(),
+            rs.getBytes("resource_blob"));
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public ResourceChangeRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Writes the changes with one JDBC batch. Must run in the transaction that writes the resources.
+     */
+    public void append(List<ResourceChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>(changes.size());
+        for (ResourceChange c : changes) {
+            rows.add(new Object[]{c.resourceType(), c.resourceId(), c.versionId(), c.created() ? "C" : "U",
+                    Timestamp.valueOf(c.changedAt()), c.resourceBlob()});
+        }
+        jdbcTemplate.batchUpdate(INSERT, rows, INSERT_TYPES);
+    }
+
+    /**
+     * History newest first: the versions of one resource (resourceType and resourceId set), of one type
+     * (resourceId null) or of everything (both null).
+     * @param since Only versions changed at or after this time, or null for all.
+     * @param beforeSeq Only versions older than this change, Long.MAX_VALUE for the first page.
+     */
+    public List<ResourceChange> findHistory(String resourceType, Integer resourceId, LocalDateTime since,
+            long beforeSeq, int limit) {
+        List<Object> args = new ArrayList<>();
+        String where = historyFilter(resourceType, resourceId, since, args) + " AND change_seq < ?";
+        args.add(beforeSeq);
+        return jdbcTemplate.query("SELECT TOP (" + limit + ") " + COLUMNS + " FROM ResourceChanges WHERE " + where
+                + " ORDER BY change_seq DESC", ROW_MAPPER, args.toArray());
+    }
+
+    /** Same as findHistory but only the sequence numbers, to skip ahead without reading the blobs. */
+    public List<Long> findHistorySeqs(String resourceType, Integer resourceId, LocalDateTime since,
+            long beforeSeq, int limit) {
+        List<Object> args = new ArrayList<>();
+        String where = historyFilter(resourceType, resourceId, since, args) + " AND change_seq < ?";
+        args.add(beforeSeq);
+        return jdbcTemplate.queryForList("SELECT TOP (" + limit + ") change_seq FROM ResourceChanges WHERE " + where
+                + " ORDER BY change_seq DESC", Long.class, args.toArray());
+    }
+
+    public long countHistory(String resourceType, Integer resourceId, LocalDateTime since) {
+        List<Object> args = new ArrayList<>();
+        String where = historyFilter(resourceType, resourceId, since, args);
+        Long count = jdbcTemplate.queryForObject("SELECT COUNT_BIG(*) FROM ResourceChanges WHERE " + where,
+                Long.class, args.toArray());
+        return (count != null) ? count : 0;
+    }
+
+    /**
+     * The change feed: up to limit changes after the cursor, oldest first.
+     *
+     * IDENTITY values are handed out at INSERT time but become visible at COMMIT, so a change with a lower
+     * seq can commit after one with a higher seq. READCOMMITTEDLOCK makes the scan wait for such an
+     * uncommitted row instead of skipping it (as row versioning would), so a consumer that moves its
+     * cursor to the last seq it received never misses a change.
+     * @param resourceTypes The types to include, or empty for all.
+     */
+    public List<ResourceChange> findAfter(long afterSeq, Collection<String> resourceTypes, int limit) {
+        List<Object> args = new ArrayList<>();
+        StringBuilder where = new StringBuilder("change_seq > ?");
+        args.add(afterSeq);
+        if (!resourceTypes.isEmpty()) {
+            where.append(" AND resource_type IN (")
+                    .append(String.join(", ", Collections.nCopies(resourceTypes.size(), "?"))).append(')');
+            args.addAll(resourceTypes);
+        }
+        return jdbcTemplate.query("SELECT TOP (" + limit + ") " + COLUMNS + " FROM ResourceChanges WITH (READCOMMITTEDLOCK)"
+                + " WHERE " + where + " ORDER BY change_seq", ROW_MAPPER, args.toArray());
+    }
+
+    /**
+     * @return The cursor to start the feed from to get every change at or after the given time
+     *         (a seek on IX_ResourceChanges_ChangedAt).
+     */
+    public long cursorAt(LocalDateTime since) {
+        Long first = jdbcTemplate.queryForObject("SELECT MIN(change_seq) FROM ResourceChanges WITH (READCOMMITTEDLOCK) WHERE changed_at >= ?",
+                Long.class, Timestamp.valueOf(since));
+        if (first != null) {
+            return first - 1;
+        }
+        // Nothing changed since then: continue after the newest change
+        Long last = jdbcTemplate.queryForObject("SELECT MAX(change_seq) FROM ResourceChanges WITH (READCOMMITTEDLOCK)", Long.class);
+        return (last != null) ? last : 0;
+    }
+
+    private static String historyFilter(String resourceType, Integer resourceId, LocalDateTime since, List<Object> args) {
+        StringBuilder where = new StringBuilder("1 = 1");
+        if (resourceType != null) {
+            where.append(" AND resource_type = ?");
+            args.add(resourceType);
+        }
+        if (resourceId != null) {
+            where.append(" AND resource_id = ?");
+            args.add(resourceId);
+        }
+        if (since != null) {
+            where.append(" AND changed_at >= ?");
+            args.add(Timestamp.valueOf(since));
+        }
+        return where.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package com.masterehr.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out primary keys for Patients, Encounters and Observations before they are inserted,
+ * so a new row and its resource_json can be written in a single INSERT.
+ *
+ * All three tables share one database sequence (see UpdateDatabase.sql, step 8) that
+ * increments by BLOCK_SIZE. Every value v we read from it reserves the block of ids
+ * (v - BLOCK_SIZE + 1 .. v) for this instance, so the database is only asked once per
+ * BLOCK_SIZE ids and several server instances never hand out the same id.
+ */
+@Component
+public class ResourceIdAllocator {
+
+    static final String SEQUENCE_NAME = "fhir_resource_id_seq";
+
+    // Must match the sequence's INCREMENT BY.
+    static final int BLOCK_SIZE = 50;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    // A lock rather than synchronized: fetching a block is a database round trip, and a virtual
+    // thread blocked inside synchronized would pin its carrier thread for that long.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // The next id to hand out and the last id of the current block (guarded by lock).
+    private int nextId = 1;
+    private int blockEnd = 0;
+
+    @Autowired
+    public ResourceIdAllocator(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Returns a single unused id.
+     */
+    public int nextId() {
+        lock.lock();
+        try {
+            if (nextId > blockEnd) {
+                startBlock(fetchBlockEnds(1).get(0));
+            }
+            return nextId++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the requested number of unused ids, reading all missing blocks from the
+     * database in one round trip. The ids are unique but not necessarily contiguous.
+     */
+    public int[] nextIds(int count) {
+        lock.lock();
+        try {
+            int[] ids = new int[count];
+            int filled = 0;
+            while (filled < count && nextId <= blockEnd) {
+                ids[filled++] = nextId++;
+            }
+            if (filled < count) {
+                int missingBlocks = (count - filled + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                for (int end : fetchBlockEnds(missingBlocks)) {
+                    startBlock(end);
+                    while (filled < count && nextId <= blockEnd) {
+                        ids[filled++] = nextId++;
+                    }
+                }
+            }
+            return ids;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startBlock(int end) {
+        blockEnd = end;
+        nextId = end - BLOCK_SIZE + 1;
+    }
+
+    /**
+     * Reads several values from the sequence at once. NEXT VALUE FOR is evaluated once
+     * per row, so a derived table with N rows reserves N blocks.
+     */
+    private List<Integer> fetchBlockEnds(int blocks) {
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < blocks; i++) {
+            rows.append(i == 0 ? "(" : ", (").append(i).append(")");
+        }
+        String sql = "SELECT NEXT VALUE FOR " + SEQUENCE_NAME + " FROM (VALUES " + rows + ") AS blocks(n)";
+        return jdbcTemplate.queryForList(sql, Integer.class);
+    }
+}
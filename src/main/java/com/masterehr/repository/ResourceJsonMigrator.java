@@ -0,0 +1,159 @@
+package com.masterehr.repository;
+
+import com.masterehr.entity.ResourceJsonCodec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves resource_json (NVARCHAR(MAX), UTF-16) into resource_blob (gzip, see ResourceJsonCodec)
+ * for rows written before compressed storage existed.
+ *
+ * Runs once on a low-priority background thread after startup, walking each table by primary key
+ * in batches of lhsc.storage.migrate.batch-size rows with a pause of lhsc.storage.migrate.pause-ms
+ * between batches, so it never holds more than one connection or long locks. A row is only
+ * converted while resource_blob is still NULL, so a concurrent update (which always writes
+ * resource_blob) wins. version_id is not touched: the content does not change.
+ * Reads handle both formats, so the server is fully usable while this runs.
+ *
+ * Sizes before and after are logged per table and published as lhsc.storage.migrated.bytes
+ * (tag format=nvarchar / gzip).
+ */
+@Component
+public class ResourceJsonMigrator {
+
+    private static final Logger log = LoggerFactory.getLogger(ResourceJsonMigrator.class);
+
+    private record Table(String name, String idColumn) {}
+
+    private static final List<Table> TABLES = List.of(
+            new Table("Patients", "patient_id"),
+            new Table("Encounters", "encounter_id"),
+            new Table("Observations", "observation_id"));
+
+    private record LegacyRow(int id, String json) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long pauseMillis;
+    private final Counter rowsMigrated;
+    private final Counter nvarcharBytes;
+    private final Counter gzipBytes;
+    private volatile boolean stopped;
+
+    @Autowired
+    public ResourceJsonMigrator(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry,
+            @Value("${lhsc.storage.migrate.enabled:true}") boolean enabled,
+            @Value("${lhsc.storage.migrate.batch-size:500}") int batchSize,
+            @Value("${lhsc.storage.migrate.pause-ms:250}") long pauseMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+        this.rowsMigrated = Counter.builder("lhsc.storage.migrated.rows")
+                .description("Rows moved from resource_json to resource_blob")
+                .register(meterRegistry);
+        this.nvarcharBytes = Counter.builder("lhsc.storage.migrated.bytes").tag("format", "nvarchar")
+                .description("Size of the migrated JSON as stored before")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.gzipBytes = Counter.builder("lhsc.storage.migrated.bytes").tag("format", "gzip")
+                .description("Size of the migrated JSON as stored now")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(this::migrateAll, "resource-json-migrator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+    }
+
+    private void migrateAll() {
+        for (Table table : TABLES) {
+            try {
+                migrate(table);
+            } catch (RuntimeException e) {
+                // Nothing is lost: unconverted rows stay readable and the next start picks them up
+                log.error("Moving {}.resource_json to resource_blob stopped", table.name(), e);
+            }
+        }
+    }
+
+    private void migrate(Table table) {
+        String select = "SELECT TOP (" + batchSize + ") " + table.idColumn() + ", resource_json FROM " + table.name()
+                + " WHERE " + table.idColumn() + " > ? AND resource_blob IS NULL AND resource_json IS NOT NULL"
+                + " ORDER BY " + table.idColumn();
+        String update = "UPDATE " + table.name() + " SET resource_blob = ?, resource_json = NULL"
+                + " WHERE " + table.idColumn() + " = ? AND resource_blob IS NULL";
+        int[] updateTypes = {Types.VARBINARY, Types.INTEGER};
+
+        long rows = 0;
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+        int lastId = Integer.MIN_VALUE;
+        while (!stopped) {
+            List<LegacyRow> batch = jdbcTemplate.query(select,
+                    (rs, rowNum) -> new LegacyRow(rs.getInt(1), rs.getString(2)), lastId);
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            List<Object[]> updates = new ArrayList<>(batch.size());
+            for (LegacyRow row : batch) {
+                byte[] blob = ResourceJsonCodec.encode(row.json());
+                // NVARCHAR stores 2 bytes per UTF-16 code unit
+                bytesBefore += 2L * row.json().length();
+                bytesAfter += blob.length;
+                updates.add(new Object[]{blob, row.id()});
+            }
+            jdbcTemplate.batchUpdate(update, updates, updateTypes);
+
+            lastId = batch.get(batch.size() - 1).id();
+            rows += batch.size();
+            rowsMigrated.increment(batch.size());
+            if (!pause()) {
+                break;
+            }
+        }
+        nvarcharBytes.increment(bytesBefore);
+        gzipBytes.increment(bytesAfter);
+        if (rows > 0) {
+            log.info("Moved {} {} rows to resource_blob: {} bytes as NVARCHAR -> {} bytes gzip ({}%)",
+                    rows, table.name(), bytesBefore, bytesAfter, bytesAfter * 100 / Math.max(1, bytesBefore));
+        }
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(pauseMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.masterehr.repository;
+
+import com.masterehr.entity.ResourceJsonCodec;
+
+import java.time.LocalDateTime;
+
+/**
+ * The stored JSON of a row together with its version, as read by the raw read path.
+ * Exactly one of legacyJson (not yet migrated) and resourceBlob (gzip) is normally set.
+ */
+public record StoredResource(String legacyJson, byte[] resourceBlob, Integer versionId, LocalDateTime lastUpdated) {
+
+    public boolean hasJson() {
+        return resourceBlob != null || (legacyJson != null && !legacyJson.isEmpty());
+    }
+
+    /**
+     * @return The stored bytes if they are gzip-compressed JSON and can be sent as they are, else null.
+     */
+    public byte[] gzippedJson() {
+        return ResourceJsonCodec.isGzip(resourceBlob) ? resourceBlob : null;
+    }
+
+    public String json() {
+        return (resourceBlob != null) ? ResourceJsonCodec.decode(resourceBlob) : legacyJson;
+    }
+}
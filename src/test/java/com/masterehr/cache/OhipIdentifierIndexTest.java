@@ -0,0 +1,118 @@
+package com.masterehr.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * The OHIP index and its primitive hash table, without a database: the startup load is driven through load().
+ */
+class OhipIdentifierIndexTest {
+
+    private final OhipIdentifierIndex index = new OhipIdentifierIndex(null);
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void mapKeepsEntriesAcrossProbeRunsAndResizes() {
+        // Starts tiny so the keys share probe runs and the table is resized several times
+        OhipIdentifierIndex.LongIntMap map = new OhipIdentifierIndex.LongIntMap(4);
+        int count = 5000;
+        for (int i = 1; i <= count; i++) {
+            map.put(key(i), i);
+        }
+        for (int i = 1; i <= count; i++) {
+            assertEquals(i, map.get(key(i)));
+        }
+
+        // Removing from the middle of probe runs must not hide the entries after the hole
+        for (int i = 1; i <= count; i += 3) {
+            map.remove(key(i));
+        }
+        for (int i = 1; i <= count; i++) {
+            assertEquals((i - 1) % 3 == 0 ? 0 : i, map.get(key(i)), "key " + key(i));
+        }
+
+        map.put(key(1), 42);
+        map.put(key(2), 43);
+        assertEquals(42, map.get(key(1)));
+        assertEquals(43, map.get(key(2)));
+        map.remove(key(count + 1));
+        assertEquals(0, map.get(key(count + 1)));
+    }
+
+    @Test
+    void loadDoesNotOverwriteAnEntryWrittenByACreate() {
+        index.put("1234567890", 5);
+        index.put("A123", 6);
+
+        index.load("1234567890", 9);
+        index.load("A123", 10);
+        index.load("2234567890", 11);
+
+        assertEquals(5, index.find("1234567890"));
+        assertEquals(6, index.find("A123"));
+        assertEquals(11, index.find("2234567890"));
+    }
+
+    @Test
+    void putAfterCommitIsDroppedOnRollback() {
+        TransactionSynchronizationManager.initSynchronization();
+        index.putAfterCommit(null, "3234567890", 7);
+        complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        assertNull(index.find("3234567890"));
+    }
+
+    @Test
+    void putAfterCommitAppliesOnCommitAndMovesAnUpdatedNumber() {
+        index.put("4234567890", 8);
+
+        TransactionSynchronizationManager.initSynchronization();
+        index.putAfterCommit("4234567890", "5234567890", 8);
+        assertEquals(8, index.find("4234567890"));
+        complete(TransactionSynchronization.STATUS_COMMITTED);
+
+        assertNull(index.find("4234567890"));
+        assertEquals(8, index.find("5234567890"));
+    }
+
+    @Test
+    void numbersThatDifferOnlyByALeadingZeroAreDifferentPatients() {
+        index.put("0123456789", 1);
+        index.put("123456789", 2);
+        index.put("1234567890", 3);
+
+        assertEquals(1, index.find("0123456789"));
+        assertEquals(2, index.find("123456789"));
+        assertEquals(3, index.find("1234567890"));
+        assertNull(index.find("00123456789"));
+    }
+
+    private static long key(int i) {
+        return 1_000_000_000L + i * 7919L;
+    }
+
+    // Ends the simulated transaction the way the transaction manager would
+    private static void complete(int status) {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        for (TransactionSynchronization synchronization : synchronizations) {
+            if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                synchronization.afterCommit();
+            }
+            synchronization.afterCompletion(status);
+        }
+    }
+}
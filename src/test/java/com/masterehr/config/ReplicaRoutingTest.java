@@ -0,0 +1,141 @@
+package com.masterehr.config;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.masterehr.interceptor.ReplicaRoutingInterceptor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Read replica routing against two embedded databases, one standing in for the primary and one for
+ * a replica. Replication is simulated by copying the heartbeat row by hand.
+ */
+class ReplicaRoutingTest {
+
+    private JdbcTemplate primary;
+    private JdbcTemplate replica;
+    private ReplicaSet replicaSet;
+    private JdbcTemplate routed;
+
+    @BeforeEach
+    void setUp() {
+        DataSource primaryDataSource = h2("replica-test-primary");
+        DataSource replicaDataSource = h2("replica-test-replica");
+        primary = new JdbcTemplate(primaryDataSource);
+        replica = new JdbcTemplate(replicaDataSource);
+        for (JdbcTemplate db : List.of(primary, replica)) {
+            db.execute("CREATE TABLE marker (name VARCHAR(20))");
+            db.execute("CREATE TABLE ReplicaHeartbeat (id INT NOT NULL PRIMARY KEY, beat_millis BIGINT NOT NULL)");
+        }
+        primary.update("INSERT INTO marker (name) VALUES ('primary')");
+        replica.update("INSERT INTO marker (name) VALUES ('replica')");
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        replicaSet = new ReplicaSet(primaryDataSource, List.of(replicaDataSource), 5000, 1000, meterRegistry);
+        routed = new JdbcTemplate(new ReplicaRoutingDataSource(primaryDataSource, replicaSet, meterRegistry));
+    }
+
+    @AfterEach
+    void tearDown() {
+        DataSourceRouting.clear();
+        primary.execute("DROP ALL OBJECTS");
+        replica.execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    void readsUsePrimaryWhileReplicaLagIsUnknown() {
+        replicaSet.checkLag();
+
+        assertEquals("primary", readMarker(DataSourceRouting.Target.REPLICA));
+    }
+
+    @Test
+    void readsUseReplicaOnceItHasCaughtUp() {
+        replicaSet.checkLag();
+        replicate();
+        replicaSet.checkLag();
+
+        assertEquals("replica", readMarker(DataSourceRouting.Target.REPLICA));
+        assertEquals("primary", readMarker(DataSourceRouting.Target.PRIMARY));
+        assertEquals("primary", routed.queryForObject("SELECT name FROM marker", String.class));
+    }
+
+    @Test
+    void readsFallBackToPrimaryWhenReplicaLagsTooFar() {
+        replicaSet.checkLag();
+        replicate();
+        replicaSet.checkLag();
+        replica.update("UPDATE ReplicaHeartbeat SET beat_millis = ? WHERE id = 1", System.currentTimeMillis() - 60_000);
+        replicaSet.checkLag();
+
+        assertEquals("primary", readMarker(DataSourceRouting.Target.REPLICA));
+    }
+
+    @Test
+    void interceptorRoutesReadsAndKeepsWritersOnPrimary() {
+        ReplicaRoutingInterceptor interceptor = new ReplicaRoutingInterceptor(
+                "jdbc:h2:mem:replica-test-replica", "$everything", 60_000, "");
+
+        assertEquals(DataSourceRouting.Target.REPLICA,
+                route(interceptor, request(RequestTypeEnum.GET, RestOperationTypeEnum.READ, null, "10.0.0.1")));
+        assertEquals(DataSourceRouting.Target.REPLICA,
+                route(interceptor, request(RequestTypeEnum.GET, RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE, "$everything", "10.0.0.1")));
+        assertEquals(DataSourceRouting.Target.PRIMARY,
+                route(interceptor, request(RequestTypeEnum.GET, RestOperationTypeEnum.EXTENDED_OPERATION_TYPE, "$ingest-status", "10.0.0.1")));
+
+        // A write from 10.0.0.1 keeps that client's reads on the primary; other clients are unaffected
+        assertEquals(DataSourceRouting.Target.PRIMARY,
+                route(interceptor, request(RequestTypeEnum.POST, RestOperationTypeEnum.CREATE, null, "10.0.0.1")));
+        assertEquals(DataSourceRouting.Target.PRIMARY,
+                route(interceptor, request(RequestTypeEnum.GET, RestOperationTypeEnum.SEARCH_TYPE, null, "10.0.0.1")));
+        assertEquals(DataSourceRouting.Target.REPLICA,
+                route(interceptor, request(RequestTypeEnum.GET, RestOperationTypeEnum.SEARCH_TYPE, null, "10.0.0.2")));
+    }
+
+    private String readMarker(DataSourceRouting.Target target) {
+        return DataSourceRouting.call(target, () -> routed.queryForObject("SELECT name FROM marker", String.class));
+    }
+
+    // Copies the primary's heartbeat to the replica, as replication would
+    private void replicate() {
+        Long beat = primary.queryForObject("SELECT beat_millis FROM ReplicaHeartbeat WHERE id = 1", Long.class);
+        replica.update("DELETE FROM ReplicaHeartbeat");
+        replica.update("INSERT INTO ReplicaHeartbeat (id, beat_millis) VALUES (1, ?)", beat);
+    }
+
+    private static DataSourceRouting.Target route(ReplicaRoutingInterceptor interceptor, ServletRequestDetails request) {
+        interceptor.route(request);
+        DataSourceRouting.Target target = DataSourceRouting.current();
+        interceptor.completed(request);
+        return target;
+    }
+
+    private static ServletRequestDetails request(RequestTypeEnum requestType, RestOperationTypeEnum operationType,
+            String operation, String remoteAddr) {
+        HttpServletRequest servletRequest = mock(HttpServletRequest.class);
+        when(servletRequest.getRemoteAddr()).thenReturn(remoteAddr);
+        ServletRequestDetails request = mock(ServletRequestDetails.class);
+        when(request.getRequestType()).thenReturn(requestType);
+        when(request.getRestOperationType()).thenReturn(operationType);
+        when(request.getOperation()).thenReturn(operation);
+        when(request.getServletRequest()).thenReturn(servletRequest);
+        return request;
+    }
+
+    private static DataSource h2(String name) {
+        return new DriverManagerDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "");
+    }
+}
@@ -0,0 +1,71 @@
+package com.masterehr.loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects request latencies per label and prints throughput and percentiles.
+ */
+class LatencyRecorder {
+
+    private static final class Samples {
+        private final List<Long> nanos = new ArrayList<>();
+        private final AtomicLong errors = new AtomicLong();
+
+        synchronized void add(long value) {
+            nanos.add(value);
+        }
+
+        synchronized long[] snapshot() {
+            long[] values = new long[nanos.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = nanos.get(i);
+            }
+            Arrays.sort(values);
+            return values;
+        }
+    }
+
+    private final Map<String, Samples> samples = new ConcurrentHashMap<>();
+
+    void record(String label, long nanos, boolean success) {
+        Samples s = samples.computeIfAbsent(label, key -> new Samples());
+        s.add(nanos);
+        if (!success) {
+            s.errors.incrementAndGet();
+        }
+    }
+
+    String report(double elapsedSeconds) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-40s %8s %8s %9s %9s %9s %9s %7s%n",
+                "request", "count", "req/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "errors"));
+        long totalCount = 0;
+        long totalErrors = 0;
+        for (Map.Entry<String, Samples> entry : new TreeMap<>(samples).entrySet()) {
+            long[] values = entry.getValue().snapshot();
+            long errors = entry.getValue().errors.get();
+            totalCount += values.length;
+            totalErrors += errors;
+            out.append(String.format("%-40s %8d %8.1f %9.2f %9.2f %9.2f %9.2f %7d%n",
+                    entry.getKey(), values.length, values.length / elapsedSeconds,
+                    percentile(values, 0.50), percentile(values, 0.95), percentile(values, 0.99),
+                    values.length == 0 ? 0 : values[values.length - 1] / 1e6, errors));
+        }
+        out.append(String.format("%-40s %8d %8.1f %47d%n", "TOTAL", totalCount, totalCount / elapsedSeconds, totalErrors));
+        return out.toString();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,153 @@
+package com.masterehr.loadtest;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Seeds the server through its own transaction endpoint and then starts scenarios at a fixed
+ * rate (an open workload: new scenarios start on schedule whether or not earlier ones have
+ * finished, so a slow server shows up as growing latency instead of a lower request rate).
+ */
+class LoadDriver {
+
+    private static final String FHIR_JSON = "application/fhir+json";
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .build();
+    private final String baseUrl;
+    private final FhirContext fhirContext;
+    private final SyntheticPopulation population;
+    private final LatencyRecorder recorder = new LatencyRecorder();
+    private final Random random;
+
+    private final List<String> patientIds = new CopyOnWriteArrayList<>();
+    private final List<String> encounterIds = new CopyOnWriteArrayList<>();
+    private final AtomicLong lateStarts = new AtomicLong();
+
+    LoadDriver(String baseUrl, FhirContext fhirContext, SyntheticPopulation population, long seed) {
+        this.baseUrl = baseUrl;
+        this.fhirContext = fhirContext;
+        this.population = population;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Posts one transaction Bundle per patient, at most `concurrency` at a time, and remembers
+     * the created patient and encounter ids for the script placeholders.
+     */
+    void seed(int patients, int concurrency) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(concurrency);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < patients; i++) {
+                int index = i;
+                inFlight.acquire();
+                executor.submit(() -> {
+                    try {
+                        HttpResponse<String> response = send("POST", "", population.patientChartTransaction(index));
+                        if (response.statusCode() >= 300) {
+                            throw new IllegalStateException("Seeding failed with " + response.statusCode() + ": " + response.body());
+                        }
+                        Bundle result = fhirContext.newJsonParser().parseResource(Bundle.class, response.body());
+                        for (Bundle.BundleEntryComponent entry : result.getEntry()) {
+                            String location = entry.getResponse().getLocation();
+                            if (location.startsWith("Patient/")) {
+                                patientIds.add(location.substring("Patient/".length()));
+                            } else if (location.startsWith("Encounter/")) {
+                                encounterIds.add(location.substring("Encounter/".length()));
+                            }
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        throw new IllegalStateException("Seeding failed", e);
+                    } finally {
+                        inFlight.release();
+                    }
+                    return null;
+                });
+            }
+        }
+        if (patientIds.isEmpty()) {
+            throw new IllegalStateException("No patients were seeded");
+        }
+    }
+
+    /**
+     * Starts scenarios from the script at `ratePerSecond` for the given duration, then waits
+     * for the started ones to finish.
+     */
+    void run(LoadScript script, double ratePerSecond, Duration duration) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long next = start; next < end; next += interval) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (wait < -interval) {
+                    lateStarts.incrementAndGet();
+                }
+                LoadScript.Scenario scenario = script.pick(random);
+                String patientId = patientIds.get(random.nextInt(patientIds.size()));
+                String encounterId = encounterIds.isEmpty() ? "0" : encounterIds.get(random.nextInt(encounterIds.size()));
+                executor.submit(() -> runScenario(scenario, patientId, encounterId));
+            }
+        }
+    }
+
+    String report(double elapsedSeconds) {
+        return recorder.report(elapsedSeconds)
+                + String.format("seeded patients: %d, encounters: %d, scenarios started late: %d%n",
+                        patientIds.size(), encounterIds.size(), lateStarts.get());
+    }
+
+    private void runScenario(LoadScript.Scenario scenario, String patientId, String encounterId) {
+        long scenarioStart = System.nanoTime();
+        boolean scenarioOk = true;
+        for (LoadScript.Step step : scenario.steps()) {
+            String path = step.path().replace("{patient}", patientId).replace("{encounter}", encounterId);
+            String body = (step.bodyTemplate() != null) ? population.body(step.bodyTemplate(), patientId) : null;
+            long stepStart = System.nanoTime();
+            boolean ok;
+            try {
+                HttpResponse<String> response = send(step.method(), path, body);
+                ok = response.statusCode() < 400;
+            } catch (IOException | InterruptedException e) {
+                ok = false;
+            }
+            recorder.record(step.label(), System.nanoTime() - stepStart, ok);
+            scenarioOk &= ok;
+        }
+        recorder.record("scenario " + scenario.name(), System.nanoTime() - scenarioStart, scenarioOk);
+    }
+
+    private HttpResponse<String> send(String method, String path, String body) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + "/" + path))
+                .timeout(Duration.ofSeconds(60))
+                .header("Accept", FHIR_JSON);
+        if (body != null) {
+            request.header("Content-Type", FHIR_JSON).method(method, HttpRequest.BodyPublishers.ofString(body));
+        } else {
+            request.method(method, HttpRequest.BodyPublishers.noBody());
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,122 @@
+package com.masterehr.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A weighted mix of scenarios, read from a small text format:
+ *
+ * <pre>
+ * # comment
+ * scenario 20 transfer                 weight, name
+ *   GET Patient/{patient}              method, path relative to /fhir, optional body template
+ *   GET Encounter?patient={patient}
+ *   POST Encounter encounter
+ * </pre>
+ *
+ * Each run of a scenario picks one seeded patient and executes its steps in order, so a
+ * scenario can replay a multi-request client workflow such as the BackendFHIR transfer.
+ * Placeholders: {patient} and {encounter} (a seeded encounter id).
+ */
+class LoadScript {
+
+    record Step(String method, String path, String bodyTemplate) {
+        String label() {
+            // Group latencies by request shape, not by the concrete ids
+            return method + " " + path.replaceAll("\\?.*", "");
+        }
+    }
+
+    record Scenario(String name, int weight, List<Step> steps) {}
+
+    private final List<Scenario> scenarios;
+    private final int totalWeight;
+
+    private LoadScript(List<Scenario> scenarios) {
+        if (scenarios.isEmpty()) {
+            throw new IllegalArgumentException("Load script has no scenarios");
+        }
+        this.scenarios = List.copyOf(scenarios);
+        this.totalWeight = scenarios.stream().mapToInt(Scenario::weight).sum();
+    }
+
+    /**
+     * Reads a script from a file path, or from the classpath if no such file exists.
+     */
+    static LoadScript load(String location) throws IOException {
+        Path path = Path.of(location);
+        if (Files.isRegularFile(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                return parse(reader);
+            }
+        }
+        InputStream in = LoadScript.class.getClassLoader().getResourceAsStream(location);
+        if (in == null) {
+            throw new IOException("Load script not found: " + location);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return parse(reader);
+        }
+    }
+
+    static LoadScript parse(BufferedReader reader) throws IOException {
+        List<Scenario> scenarios = new ArrayList<>();
+        String name = null;
+        int weight = 0;
+        List<Step> steps = null;
+
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.strip();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] parts = trimmed.split("\\s+");
+            if ("scenario".equals(parts[0])) {
+                if (name != null) {
+                    scenarios.add(new Scenario(name, weight, steps));
+                }
+                if (parts.length != 3) {
+                    throw new IOException("Line " + lineNumber + ": expected 'scenario <weight> <name>'");
+                }
+                weight = Integer.parseInt(parts[1]);
+                name = parts[2];
+                steps = new ArrayList<>();
+            } else {
+                if (name == null || parts.length < 2 || parts.length > 3) {
+                    throw new IOException("Line " + lineNumber + ": expected '<METHOD> <path> [body]' inside a scenario");
+                }
+                steps.add(new Step(parts[0].toUpperCase(), parts[1], parts.length == 3 ? parts[2] : null));
+            }
+        }
+        if (name != null) {
+            scenarios.add(new Scenario(name, weight, steps));
+        }
+        return new LoadScript(scenarios);
+    }
+
+    Scenario pick(Random random) {
+        int ticket = random.nextInt(totalWeight);
+        for (Scenario scenario : scenarios) {
+            ticket -= scenario.weight();
+            if (ticket < 0) {
+                return scenario;
+            }
+        }
+        return scenarios.get(scenarios.size() - 1);
+    }
+
+    List<Scenario> scenarios() {
+        return scenarios;
+    }
+}
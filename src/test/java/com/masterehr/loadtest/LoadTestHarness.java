@@ -0,0 +1,62 @@
+package com.masterehr.loadtest;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.Duration;
+
+/**
+ * Load test against the real server on an embedded H2 database in SQL Server mode.
+ * Skipped unless -Dloadtest=true, e.g.
+ *
+ *   mvn test -Dtest=LoadTestHarness -Dloadtest=true -Dloadtest.patients=1000 -Dloadtest.rate=100
+ *       -Dloadtest.script=loadtest/transfer-mix.txt
+ *
+ * Settings (system properties, defaults in brackets): loadtest.patients [200],
+ * loadtest.encountersPerPatient [5], loadtest.observationsPerEncounter [10], loadtest.rate
+ * (scenarios started per second) [50], loadtest.durationSeconds [60], loadtest.script
+ * (file path or classpath resource) [loadtest/default-mix.txt], loadtest.seed [42].
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("loadtest")
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+class LoadTestHarness {
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private FhirContext fhirContext;
+
+    @Test
+    void runLoad() throws Exception {
+        int patients = Integer.getInteger("loadtest.patients", 200);
+        int encountersPerPatient = Integer.getInteger("loadtest.encountersPerPatient", 5);
+        int observationsPerEncounter = Integer.getInteger("loadtest.observationsPerEncounter", 10);
+        double rate = Double.parseDouble(System.getProperty("loadtest.rate", "50"));
+        Duration duration = Duration.ofSeconds(Long.getLong("loadtest.durationSeconds", 60));
+        String scriptLocation = System.getProperty("loadtest.script", "loadtest/default-mix.txt");
+        long seed = Long.getLong("loadtest.seed", 42);
+
+        LoadScript script = LoadScript.load(scriptLocation);
+        SyntheticPopulation population = new SyntheticPopulation(fhirContext, seed, encountersPerPatient, observationsPerEncounter);
+        LoadDriver driver = new LoadDriver("http://localhost:" + port + "/fhir", fhirContext, population, seed);
+
+        long seedStart = System.nanoTime();
+        driver.seed(patients, 8);
+        System.out.printf("Seeded %d patients (%d encounters, %d observations each) in %.1f s%n",
+                patients, encountersPerPatient, observationsPerEncounter, (System.nanoTime() - seedStart) / 1e9);
+
+        long runStart = System.nanoTime();
+        driver.run(script, rate, duration);
+        double elapsed = (System.nanoTime() - runStart) / 1e9;
+
+        System.out.printf("Load run: script %s, %.1f scenarios/s target, %.1f s%n", scriptLocation, rate, elapsed);
+        System.out.print(driver.report(elapsed));
+    }
+}
@@ -0,0 +1,167 @@
+package com.masterehr.loadtest;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates synthetic patients, encounters and observations as FHIR JSON, from a fixed seed so
+ * runs are reproducible. Observations use common vital-sign and lab LOINC codes with values in
+ * a plausible range for each code.
+ */
+class SyntheticPopulation {
+
+    static final String OHIP_SYSTEM_URL = "http://hl7.org/fhir/sid/ca-on-ohip";
+    static final String LOINC_SYSTEM = "http://loinc.org";
+
+    /** code, display, UCUM unit, low, high */
+    private record LoincCode(String code, String display, String unit, double low, double high) {}
+
+    private static final LoincCode[] LOINC_CODES = {
+            new LoincCode("8867-4", "Heart rate", "/min", 50, 110),
+            new LoincCode("8480-6", "Systolic blood pressure", "mm[Hg]", 95, 170),
+            new LoincCode("8462-4", "Diastolic blood pressure", "mm[Hg]", 55, 105),
+            new LoincCode("8310-5", "Body temperature", "Cel", 36.0, 38.5),
+            new LoincCode("29463-7", "Body weight", "kg", 45, 130),
+            new LoincCode("2339-0", "Glucose [Mass/volume] in Blood", "mg/dL", 70, 200),
+            new LoincCode("2093-3", "Cholesterol [Mass/volume] in Serum or Plasma", "mg/dL", 130, 280),
+            new LoincCode("4548-4", "Hemoglobin A1c/Hemoglobin.total in Blood", "%", 4.5, 10),
+            new LoincCode("718-7", "Hemoglobin [Mass/volume] in Blood", "g/dL", 10, 17),
+            new LoincCode("2160-0", "Creatinine [Mass/volume] in Serum or Plasma", "mg/dL", 0.5, 1.8)};
+
+    private static final String[] FAMILY_NAMES = {"Smith", "Tremblay", "Singh", "Nguyen", "MacDonald", "Wong",
+            "Martin", "Roy", "Brown", "Li", "Gagnon", "Patel", "Wilson", "Campbell", "Chen", "Anderson"};
+    private static final String[] GIVEN_NAMES = {"Olivia", "Liam", "Emma", "Noah", "Amelia", "Lucas", "Aarav",
+            "Chloe", "William", "Sophia", "Mohammed", "Charlotte", "Ethan", "Maya", "Jacob", "Zoe"};
+    private static final String[] REASONS = {"Annual physical", "Follow-up", "Hypertension review",
+            "Diabetes management", "Shortness of breath", "Chest pain", "Medication review", "Lab results"};
+
+    private final IParser parser;
+    private final Random random;
+    private final int encountersPerPatient;
+    private final int observationsPerEncounter;
+
+    SyntheticPopulation(FhirContext ctx, long seed, int encountersPerPatient, int observationsPerEncounter) {
+        this.parser = ctx.newJsonParser().setPrettyPrint(false);
+        this.random = new Random(seed);
+        this.encountersPerPatient = encountersPerPatient;
+        this.observationsPerEncounter = observationsPerEncounter;
+    }
+
+    /**
+     * One transaction Bundle with a patient and their whole chart, linked with urn:uuid references.
+     * @param index Makes the patient's OHIP number unique.
+     */
+    synchronized String patientChartTransaction(int index) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+
+        String patientUrl = "urn:uuid:" + UUID.randomUUID();
+        addPost(bundle, patientUrl, patient(index));
+        for (int e = 0; e < encountersPerPatient; e++) {
+            String encounterUrl = "urn:uuid:" + UUID.randomUUID();
+            Encounter encounter = encounter(patientUrl);
+            addPost(bundle, encounterUrl, encounter);
+            LocalDateTime effective = toLocalDateTime(encounter.getPeriod().getStart());
+            for (int o = 0; o < observationsPerEncounter; o++) {
+                addPost(bundle, "urn:uuid:" + UUID.randomUUID(), observation(patientUrl, encounterUrl, effective));
+            }
+        }
+        return parser.encodeResourceToString(bundle);
+    }
+
+    /**
+     * A request body for a script step, e.g. "patient" or "encounter".
+     */
+    synchronized String body(String template, String patientId) {
+        switch (template) {
+            case "patient":
+                return parser.encodeResourceToString(patient(1_000_000 + random.nextInt(1_000_000_000)));
+            case "encounter":
+                return parser.encodeResourceToString(encounter("Patient/" + patientId));
+            case "observation":
+                return parser.encodeResourceToString(observation("Patient/" + patientId, null, LocalDateTime.now()));
+            default:
+                throw new IllegalArgumentException("Unknown body template: " + template);
+        }
+    }
+
+    private Patient patient(int index) {
+        Patient patient = new Patient();
+        patient.addIdentifier().setSystem(OHIP_SYSTEM_URL).setValue(Long.toString(1_000_000_000L + index));
+        patient.addName()
+                .setFamily(FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)])
+                .addGiven(GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+        patient.setGender(random.nextBoolean() ? Enumerations.AdministrativeGender.FEMALE : Enumerations.AdministrativeGender.MALE);
+        LocalDate birthDate = LocalDate.of(1930, 1, 1).plusDays(random.nextInt(90 * 365));
+        patient.setBirthDate(Date.from(birthDate.atStartOfDay(ZoneId.systemDefault()).toInstant()));
+        return patient;
+    }
+
+    private Encounter encounter(String patientReference) {
+        Encounter encounter = new Encounter();
+        encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+        encounter.setSubject(new Reference(patientReference));
+        encounter.addReasonCode(new CodeableConcept().setText(REASONS[random.nextInt(REASONS.length)]));
+        LocalDateTime start = LocalDateTime.of(2019, 1, 1, 8, 0).plusMinutes(random.nextInt(6 * 365 * 24 * 60));
+        encounter.setPeriod(new Period()
+                .setStart(toDate(start))
+                .setEnd(toDate(start.plusMinutes(15 + random.nextInt(240)))));
+        return encounter;
+    }
+
+    private Observation observation(String patientReference, String encounterReference, LocalDateTime effective) {
+        LoincCode loinc = LOINC_CODES[random.nextInt(LOINC_CODES.length)];
+        Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.setCode(new CodeableConcept().addCoding(
+                new Coding(LOINC_SYSTEM, loinc.code(), loinc.display())));
+        observation.setSubject(new Reference(patientReference));
+        if (encounterReference != null) {
+            observation.setEncounter(new Reference(encounterReference));
+        }
+        observation.setEffective(new DateTimeType(toDate(effective.plusMinutes(random.nextInt(60)))));
+        double value = loinc.low() + random.nextDouble() * (loinc.high() - loinc.low());
+        observation.setValue(new Quantity()
+                .setValue(BigDecimal.valueOf(value).setScale(1, RoundingMode.HALF_UP))
+                .setUnit(loinc.unit())
+                .setSystem("http://unitsofmeasure.org")
+                .setCode(loinc.unit()));
+        return observation;
+    }
+
+    private static void addPost(Bundle bundle, String fullUrl, Resource resource) {
+        bundle.addEntry()
+                .setFullUrl(fullUrl)
+                .setResource(resource)
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(resource.fhirType());
+    }
+
+    private static Date toDate(LocalDateTime dateTime) {
+        return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    private static LocalDateTime toLocalDateTime(Date date) {
+        return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
+    }
+}
@@ -0,0 +1,186 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ObservationRepository;
+import com.masterehr.repository.PatientRepository;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Transaction and batch Bundles against the embedded H2 database of the loadtest profile. The database
+ * is shared by the tests, so every test uses OHIP numbers of its own and only looks at its own rows.
+ */
+@SpringBootTest
+@ActiveProfiles("loadtest")
+class SystemProviderTest {
+
+    private static final String OHIP_SYSTEM_URL = "http://hl7.org/fhir/sid/ca-on-ohip";
+    // Ten digits, no leading zero, different on every run
+    private static final AtomicLong OHIP_NUMBERS = new AtomicLong(1_000_000_000L + System.nanoTime() % 8_000_000_000L);
+
+    @Autowired
+    private SystemProvider systemProvider;
+    @Autowired
+    private PatientRepository patientRepository;
+    @Autowired
+    private EncounterRepository encounterRepository;
+    @Autowired
+    private ObservationRepository observationRepository;
+
+    @Test
+    void transactionResolvesUrnUuidReferences() {
+        String ohip = nextOhip();
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        String patientUrl = addPost(bundle, patient(ohip));
+        String encounterUrl = addPost(bundle, encounter(patientUrl));
+        addPost(bundle, observation(patientUrl, encounterUrl));
+
+        Bundle response = systemProvider.transaction(bundle);
+
+        assertEquals(Bundle.BundleType.TRANSACTIONRESPONSE, response.getType());
+        for (Bundle.BundleEntryComponent entry : response.getEntry()) {
+            assertEquals("201 Created", entry.getResponse().getStatus());
+        }
+        int patientId = patientRepository.findPatientIdByOhipNumber(ohip).orElseThrow();
+        assertEquals("Patient/" + patientId, response.getEntry().get(0).getResponse().getLocation());
+
+        List<EncounterEntity> encounters = encounterRepository.findByPatientId(patientId);
+        assertEquals(1, encounters.size());
+        List<ObservationEntity> observations = observationRepository.findByPatientId(patientId);
+        assertEquals(1, observations.size());
+        assertEquals(encounters.get(0).getEncounterId(), observations.get(0).getEncounterId());
+    }
+
+    @Test
+    void transactionMatchesExistingPatientWithIfNoneExist() {
+        String ohip = nextOhip();
+        Bundle first = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        addPost(first, patient(ohip));
+        systemProvider.transaction(first);
+        int patientId = patientRepository.findPatientIdByOhipNumber(ohip).orElseThrow();
+
+        Bundle second = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        String patientUrl = addPost(second, patient(ohip));
+        second.getEntry().get(0).getRequest().setIfNoneExist("Patient?identifier=" + OHIP_SYSTEM_URL + "|" + ohip);
+        addPost(second, encounter(patientUrl));
+
+        Bundle response = systemProvider.transaction(second);
+
+        assertEquals("200 OK", response.getEntry().get(0).getResponse().getStatus());
+        assertEquals("Patient/" + patientId, response.getEntry().get(0).getResponse().getLocation());
+        assertEquals("201 Created", response.getEntry().get(1).getResponse().getStatus());
+        assertEquals(1, encounterRepository.findByPatientId(patientId).size());
+    }
+
+    @Test
+    void batchFailsOnlyTheEntryWithADuplicateOhipNumber() {
+        String existingOhip = nextOhip();
+        Bundle first = new Bundle().setType(Bundle.BundleType.BATCH);
+        addPost(first, patient(existingOhip));
+        systemProvider.transaction(first);
+        int existingId = patientRepository.findPatientIdByOhipNumber(existingOhip).orElseThrow();
+
+        String before = nextOhip();
+        String after = nextOhip();
+        Bundle batch = new Bundle().setType(Bundle.BundleType.BATCH);
+        addPost(batch, patient(before));
+        addPost(batch, patient(existingOhip));
+        addPost(batch, patient(after));
+
+        Bundle response = systemProvider.transaction(batch);
+
+        assertEquals(Bundle.BundleType.BATCHRESPONSE, response.getType());
+        assertEquals("201 Created", response.getEntry().get(0).getResponse().getStatus());
+        assertEquals("409 Conflict", response.getEntry().get(1).getResponse().getStatus());
+        assertTrue(response.getEntry().get(1).getResponse().hasOutcome());
+        assertEquals("201 Created", response.getEntry().get(2).getResponse().getStatus());
+        assertTrue(patientRepository.findPatientIdByOhipNumber(before).isPresent());
+        assertTrue(patientRepository.findPatientIdByOhipNumber(after).isPresent());
+        assertEquals(existingId, patientRepository.findPatientIdByOhipNumber(existingOhip).orElseThrow());
+    }
+
+    @Test
+    void failedTransactionLeavesNoRowsBehind() {
+        String ohip = nextOhip();
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+        String patientUrl = addPost(bundle, patient(ohip));
+        addPost(bundle, encounter(patientUrl));
+        // The updates run after the inserts, so this fails a transaction that has already written rows
+        Encounter missing = encounter("Patient/1");
+        bundle.addEntry().setResource(missing).getRequest()
+                .setMethod(Bundle.HTTPVerb.PUT)
+                .setUrl("Encounter/" + Integer.MAX_VALUE);
+
+        assertThrows(ResourceNotFoundException.class, () -> systemProvider.transaction(bundle));
+
+        assertTrue(patientRepository.findPatientIdByOhipNumber(ohip).isEmpty());
+        int encounterId = Integer.parseInt(new IdType(bundle.getEntry().get(1).getResource().getId()).getIdPart());
+        assertTrue(encounterRepository.findById(encounterId).isEmpty());
+    }
+
+    private static String nextOhip() {
+        return String.valueOf(OHIP_NUMBERS.incrementAndGet());
+    }
+
+    // Adds a POST entry with a urn:uuid fullUrl and returns the fullUrl
+    private static String addPost(Bundle bundle, Resource resource) {
+        String fullUrl = "urn:uuid:" + UUID.randomUUID();
+        bundle.addEntry()
+                .setFullUrl(fullUrl)
+                .setResource(resource)
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(resource.fhirType());
+        return fullUrl;
+    }
+
+    private static Patient patient(String ohip) {
+        Patient patient = new Patient();
+        patient.addIdentifier().setSystem(OHIP_SYSTEM_URL).setValue(ohip);
+        patient.addName().setFamily("Test").addGiven("Bundle");
+        patient.setGender(Enumerations.AdministrativeGender.UNKNOWN);
+        patient.setBirthDateElement(new DateType("1980-05-01"));
+        return patient;
+    }
+
+    private static Encounter encounter(String patientReference) {
+        Encounter encounter = new Encounter();
+        encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+        encounter.setSubject(new Reference(patientReference));
+        encounter.getPeriod().setStartElement(new DateTimeType("2024-03-01T09:00:00Z"));
+        return encounter;
+    }
+
+    private static Observation observation(String patientReference, String encounterReference) {
+        Observation observation = new Observation();
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8867-4");
+        observation.setSubject(new Reference(patientReference));
+        observation.setEncounter(new Reference(encounterReference));
+        observation.setEffective(new DateTimeType("2024-03-01T09:05:00Z"));
+        observation.setValue(new Quantity().setValue(72).setUnit("/min"));
+        return observation;
+    }
+}
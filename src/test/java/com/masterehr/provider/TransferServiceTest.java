@@ -0,0 +1,247 @@
+package com.masterehr.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.masterehr.entity.EncounterEntity;
+import com.masterehr.entity.ObservationEntity;
+import com.masterehr.entity.PatientEntity;
+import com.masterehr.repository.EncounterRepository;
+import com.masterehr.repository.ObservationRepository;
+import com.masterehr.repository.PatientRepository;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Transfers against an in-process stub of the receiver FHIR server that records every transaction Bundle
+ * it is sent and can be told to fail requests.
+ */
+class TransferServiceTest {
+
+    private static final int PATIENTS = 3;
+    private static final int ENCOUNTERS_PER_PATIENT = 4;
+    private static final int OBSERVATIONS_PER_PATIENT = 10;
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final Queue<Bundle> received = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final AtomicInteger unavailableResponses = new AtomicInteger();
+    private volatile boolean rejectAll;
+
+    private HttpServer receiver;
+    private ExecutorService receiverThreads;
+    private TransferService transferService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        receiverThreads = Executors.newCachedThreadPool();
+        receiver = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        receiver.createContext("/fhir", this::receive);
+        receiver.setExecutor(receiverThreads);
+        receiver.start();
+
+        PatientRepository patientRepository = mock(PatientRepository.class);
+        EncounterRepository encounterRepository = mock(EncounterRepository.class);
+        ObservationRepository observationRepository = mock(ObservationRepository.class);
+        for (int p = 1; p <= PATIENTS; p++) {
+            when(patientRepository.findById(p)).thenReturn(Optional.of(patient(p)));
+            List<EncounterEntity> encounters = new ArrayList<>();
+            List<ObservationEntity> observations = new ArrayList<>();
+            for (int i = 1; i <= ENCOUNTERS_PER_PATIENT; i++) {
+                encounters.add(encounter(p * 100 + i, p));
+            }
+            for (int i = 1; i <= OBSERVATIONS_PER_PATIENT; i++) {
+                observations.add(observation(p * 1000 + i, p, p * 100 + 1 + i % ENCOUNTERS_PER_PATIENT));
+            }
+            when(encounterRepository.findByPatientId(p)).thenReturn(encounters);
+            when(observationRepository.findByPatientId(p)).thenReturn(observations);
+        }
+
+        String receiverUrl = "http://127.0.0.1:" + receiver.getAddress().getPort() + "/fhir/";
+        // Small Bundles so every chart takes several, and short backoff so retries do not slow the test down
+        transferService = new TransferService(patientRepository, encounterRepository, observationRepository,
+                null, null, null, fhirContext, new SimpleMeterRegistry(),
+                receiverUrl, "Bearer test", "lhsc-", 3, MAX_IN_FLIGHT, 4, 10, 50, 5000, 10000, 60);
+    }
+
+    @AfterEach
+    void tearDown() {
+        transferService.shutdown();
+        receiver.stop(0);
+        receiverThreads.shutdownNow();
+    }
+
+    @Test
+    void transfersChartsWithReceiverIdsAndReferences() throws InterruptedException {
+        TransferService.TransferJob job = awaitFinished(transferService.submit(List.of(1, 2, 3)));
+
+        assertEquals(TransferService.Status.COMPLETED, job.getStatus());
+        assertEquals(PATIENTS, job.getPatientsTransferred());
+        assertEquals(0, job.getPatientsFailed());
+        assertEquals(received.size(), job.getBundlesSent());
+        assertEquals(PATIENTS * (1 + ENCOUNTERS_PER_PATIENT + OBSERVATIONS_PER_PATIENT), job.getResourcesSent());
+        assertTrue(maxConcurrent.get() <= MAX_IN_FLIGHT, "Bundles in flight: " + maxConcurrent.get());
+
+        List<Bundle.BundleEntryComponent> entries = received.stream().flatMap(b -> b.getEntry().stream()).toList();
+        assertEquals(job.getResourcesSent(), entries.size());
+        for (Bundle.BundleEntryComponent entry : entries) {
+            assertEquals(Bundle.HTTPVerb.PUT, entry.getRequest().getMethod());
+            assertTrue(entry.getRequest().getUrl().matches("(Patient|Encounter|Observation)/lhsc-\\d+"),
+                    entry.getRequest().getUrl());
+            assertFalse(entry.getResource().getMeta().hasVersionId());
+        }
+
+        Observation observation = (Observation) entries.stream()
+                .filter(e -> e.getRequest().getUrl().equals("Observation/lhsc-2003")).findFirst().orElseThrow()
+                .getResource();
+        assertEquals("Patient/lhsc-2", observation.getSubject().getReference());
+        assertEquals("Encounter/lhsc-204", observation.getEncounter().getReference());
+    }
+
+    @Test
+    void sendsEncountersBeforeObservationsOfTheSameChart() throws InterruptedException {
+        awaitFinished(transferService.submit(List.of(1)));
+
+        List<String> urls = received.stream().flatMap(b -> b.getEntry().stream())
+                .map(e -> e.getRequest().getUrl()).toList();
+        int lastEncounter = -1;
+        int firstObservation = Integer.MAX_VALUE;
+        for (int i = 0; i < urls.size(); i++) {
+            if (urls.get(i).startsWith("Encounter/") || urls.get(i).startsWith("Patient/")) {
+                lastEncounter = i;
+            } else {
+                firstObservation = Math.min(firstObservation, i);
+            }
+        }
+        assertTrue(lastEncounter < firstObservation, urls.toString());
+    }
+
+    @Test
+    void retriesWhileReceiverIsUnavailable() throws InterruptedException {
+        unavailableResponses.set(3);
+
+        TransferService.TransferJob job = awaitFinished(transferService.submit(List.of(1, 2)));
+
+        assertEquals(TransferService.Status.COMPLETED, job.getStatus());
+        assertEquals(2, job.getPatientsTransferred());
+        assertEquals(3, job.getRetries());
+    }
+
+    @Test
+    void failsChartsTheReceiverRejects() throws InterruptedException {
+        rejectAll = true;
+
+        TransferService.TransferJob job = awaitFinished(transferService.submit(List.of(1, 2)));
+
+        assertEquals(TransferService.Status.FAILED, job.getStatus());
+        assertEquals(0, job.getPatientsTransferred());
+        assertEquals(2, job.getPatientsFailed());
+        assertEquals(0, job.getRetries());
+        assertEquals(2, job.getErrors().size());
+        assertTrue(job.getErrors().get(0).contains("Receiver answered 400"), job.getErrors().get(0));
+    }
+
+    private TransferService.TransferJob awaitFinished(TransferService.TransferJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!job.isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(job.isFinished(), "Transfer did not finish");
+        return job;
+    }
+
+    private void receive(HttpExchange exchange) throws IOException {
+        maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+        try {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            // Long enough for the client to have other Bundles on the wire if it were not limiting them
+            Thread.sleep(20);
+            if (rejectAll) {
+                respond(exchange, 400, "{\"resourceType\":\"OperationOutcome\"}");
+                return;
+            }
+            if (unavailableResponses.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                respond(exchange, 503, "");
+                return;
+            }
+            Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, body);
+            received.add(bundle);
+            Bundle response = new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+            bundle.getEntry().forEach(e -> response.addEntry().getResponse().setStatus("200 OK"));
+            respond(exchange, 200, fhirContext.newJsonParser().encodeResourceToString(response));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 500, "");
+        } finally {
+            concurrent.decrementAndGet();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private PatientEntity patient(int id) {
+        Patient patient = new Patient();
+        patient.setId("Patient/" + id);
+        patient.getMeta().setVersionId("1");
+        patient.addName().setFamily("Test" + id);
+        PatientEntity entity = new PatientEntity();
+        entity.setPatientId(id);
+        entity.setResourceJson(fhirContext.newJsonParser().encodeResourceToString(patient));
+        return entity;
+    }
+
+    private EncounterEntity encounter(int id, int patientId) {
+        Encounter encounter = new Encounter();
+        encounter.setId("Encounter/" + id);
+        encounter.setSubject(new Reference("Patient/" + patientId));
+        EncounterEntity entity = new EncounterEntity();
+        entity.setResourceJson(fhirContext.newJsonParser().encodeResourceToString(encounter));
+        return entity;
+    }
+
+    private ObservationEntity observation(int id, int patientId, int encounterId) {
+        Observation observation = new Observation();
+        observation.setId("Observation/" + id);
+        observation.setSubject(new Reference("Patient/" + patientId));
+        observation.setEncounter(new Reference("Encounter/" + encounterId));
+        ObservationEntity entity = new ObservationEntity();
+        entity.setResourceJson(fhirContext.newJsonParser().encodeResourceToString(observation));
+        return entity;
+    }
+}
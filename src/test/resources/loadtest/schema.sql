@@ -0,0 +1,18 @@
+-- Must match ResourceIdAllocator.BLOCK_SIZE, like the sequence in UpdateDatabase.sql
+CREATE SEQUENCE IF NOT EXISTS fhir_resource_id_seq AS INT START WITH 50 INCREMENT BY 50;
+
+-- The change log from UpdateDatabase.sql step 15; it has no entity, so Hibernate does not create it
+CREATE TABLE IF NOT EXISTS ResourceChanges (
+    change_seq    BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+    resource_type VARCHAR(20)    NOT NULL,
+    resource_id   INT            NOT NULL,
+    version_id    INT            NOT NULL,
+    change_type   CHAR(1)        NOT NULL,
+    changed_at    TIMESTAMP      NOT NULL,
+    resource_blob VARBINARY      NULL
+);
+CREATE INDEX IF NOT EXISTS IX_ResourceChanges_Resource ON ResourceChanges (resource_type, resource_id, change_seq);
+CREATE INDEX IF NOT EXISTS IX_ResourceChanges_Type ON ResourceChanges (resource_type, change_seq);
+
+-- The unique OHIP number from UpdateDatabase.sql step 8b; the entity does not declare it
+ALTER TABLE Patients ADD CONSTRAINT IF NOT EXISTS UQ_Patients_Ohip UNIQUE (ohip_number);